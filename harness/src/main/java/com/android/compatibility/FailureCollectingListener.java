@@ -16,43 +16,150 @@
 
 package com.android.compatibility;
 
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.TestDescription;
 
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Collects the failures and metrics reported by an instrumentation run.
+ *
+ * <p>Every failure event is kept as a {@link FailureRecord}, up to a bounded number of records so
+ * that a misbehaving run cannot exhaust memory. Later failures are counted but not kept.
+ */
 public final class FailureCollectingListener implements ITestInvocationListener {
-    private String mTestTrace = null;
+    @VisibleForTesting static final int MAX_FAILURE_RECORDS = 10;
+
+    /** The kind of event a failure was reported through. */
+    public enum EventKind {
+        TEST_FAILED,
+        TEST_ASSUMPTION_FAILURE,
+        RUN_FAILED,
+    }
+
+    /** A failure reported by an instrumentation run. */
+    public static final class FailureRecord {
+        private final EventKind mKind;
+        @Nullable private final TestDescription mTest;
+        private final long mTimestampMillis;
+        private final String mTrace;
+
+        FailureRecord(
+                EventKind kind,
+                @Nullable TestDescription test,
+                long timestampMillis,
+                String trace) {
+            mKind = kind;
+            mTest = test;
+            mTimestampMillis = timestampMillis;
+            mTrace = trace;
+        }
+
+        public EventKind getKind() {
+            return mKind;
+        }
+
+        /** Returns the test case that failed, or null if the failure is not tied to one. */
+        @Nullable
+        public TestDescription getTest() {
+            return mTest;
+        }
+
+        /** Returns the time the failure was reported at, in milliseconds since the epoch. */
+        public long getTimestampMillis() {
+            return mTimestampMillis;
+        }
+
+        /** Returns the stack trace or error message of the failure. */
+        public String getTrace() {
+            return mTrace;
+        }
+    }
+
+    private final List<FailureRecord> mFailures = new ArrayList<>();
+    private int mDroppedFailureCount = 0;
+    private Map<String, Metric> mTestMetrics = new HashMap<>();
 
     @Override
     public void testFailed(TestDescription test, String trace) {
-        setStackTrace(trace != null ? trace : "unknown failure");
+        addFailure(EventKind.TEST_FAILED, test, trace != null ? trace : "unknown failure");
     }
 
     @Override
     public void testAssumptionFailure(TestDescription test, String trace) {
-        setStackTrace(trace != null ? trace : "unknown assumption failure");
+        addFailure(
+                EventKind.TEST_ASSUMPTION_FAILURE,
+                test,
+                trace != null ? trace : "unknown assumption failure");
+    }
+
+    @Override
+    public void testEnded(TestDescription test, HashMap<String, Metric> testMetrics) {
+        mTestMetrics = testMetrics != null ? testMetrics : new HashMap<>();
     }
 
     /** {@inheritDoc} */
     @Override
     public void testRunFailed(String errorMessage) {
-        setStackTrace(errorMessage);
+        addFailure(
+                EventKind.RUN_FAILED,
+                null,
+                errorMessage != null ? errorMessage : "unknown run failure");
     }
 
     /**
-     * Fetches the stack trace if any.
+     * Fetches the stack traces of the recorded failures if any.
      *
-     * @return the stack trace.
+     * @return the traces of all recorded failures in the order they were reported, or null if no
+     *     failure was reported.
      */
     public String getStackTrace() {
-        return mTestTrace;
+        if (mFailures.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder trace = new StringBuilder();
+        for (FailureRecord failure : mFailures) {
+            if (trace.length() > 0) {
+                trace.append("\n\n");
+            }
+            trace.append(failure.getTrace());
+        }
+        if (mDroppedFailureCount > 0) {
+            trace.append(
+                    String.format("\n\n... %d more failures omitted ...", mDroppedFailureCount));
+        }
+        return trace.toString();
+    }
+
+    /** Returns the recorded failures in the order they were reported. */
+    public List<FailureRecord> getFailures() {
+        return Collections.unmodifiableList(mFailures);
     }
 
     /**
-     * Sets the stack trace.
+     * Fetches the metrics reported by the test case.
      *
-     * @param stackTrace {@link String} stack trace to set.
+     * @return the metrics of the last test case that ended, empty if none did.
      */
-    public void setStackTrace(String stackTrace) {
-        this.mTestTrace = stackTrace;
+    public Map<String, Metric> getTestMetrics() {
+        return mTestMetrics;
+    }
+
+    private void addFailure(EventKind kind, @Nullable TestDescription test, String trace) {
+        if (mFailures.size() >= MAX_FAILURE_RECORDS) {
+            mDroppedFailureCount++;
+            return;
+        }
+        mFailures.add(new FailureRecord(kind, test, System.currentTimeMillis(), trace));
     }
 }
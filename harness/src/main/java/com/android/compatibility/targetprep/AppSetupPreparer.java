@@ -18,7 +18,10 @@ package com.android.compatibility.targetprep;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import com.android.csuite.core.LaunchResultStore;
+import com.android.csuite.core.PackageInventory;
 import com.android.csuite.core.SystemPackageUninstaller;
+import com.android.csuite.core.TimeoutExecutor;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.Option;
@@ -34,16 +37,26 @@ import com.android.tradefed.targetprep.TestAppInstallSetup;
 import com.android.tradefed.util.AaptParser.AaptVersion;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.util.concurrent.SimpleTimeLimiter;
-import com.google.common.util.concurrent.TimeLimiter;
-import com.google.common.util.concurrent.UncheckedTimeoutException;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Executors;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /** A Tradefed preparer that downloads and installs an app on the target device. */
 public final class AppSetupPreparer implements ITargetPreparer {
@@ -62,6 +75,9 @@ public final class AppSetupPreparer implements ITargetPreparer {
     @VisibleForTesting static final String OPTION_MAX_RETRY = "max-retry";
     @VisibleForTesting static final String OPTION_AAPT_VERSION = "aapt-version";
     @VisibleForTesting static final String OPTION_INCREMENTAL_INSTALL = "incremental";
+    @VisibleForTesting static final String OPTION_RESULT_HISTORY_FILE = "result-history-file";
+    @VisibleForTesting static final String OPTION_SKIP_UNCHANGED = "skip-unchanged";
+    @VisibleForTesting static final String OPTION_UNCHANGED_SAMPLE_RATE = "unchanged-sample-rate";
 
     @Option(name = "package-name", description = "Package name of testing app.")
     private String mPackageName;
@@ -109,13 +125,41 @@ public final class AppSetupPreparer implements ITargetPreparer {
             description =
                     "Timeout value for a setUp operation. "
                             + "Note that the timeout is not a global timeout and will "
-                            + "be applied to each retry attempt.")
+                            + "be applied to each retry attempt. It includes the time "
+                            + "spent waiting for a free setup thread.")
     private long mSetupOnceTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
 
+    @Option(
+            name = OPTION_RESULT_HISTORY_FILE,
+            description =
+                    "Local launch result history used to find out whether the APK files of the "
+                            + "package changed since it last passed. The install time and APK "
+                            + "hash are handed to the launch test through it, so the test must "
+                            + "use the same file.")
+    private File mResultHistoryFile;
+
+    @Option(
+            name = OPTION_SKIP_UNCHANGED,
+            description =
+                    "Skip installing and testing the package when its APK files are identical "
+                            + "to the ones of its last passing result. Requires "
+                            + OPTION_RESULT_HISTORY_FILE
+                            + ".")
+    private boolean mSkipUnchanged = false;
+
+    @Option(
+            name = OPTION_UNCHANGED_SAMPLE_RATE,
+            description =
+                    "Fraction between 0 and 1 of the unchanged packages that are still tested "
+                            + "when "
+                            + OPTION_SKIP_UNCHANGED
+                            + " is set.")
+    private double mUnchangedSampleRate = 0;
+
     private final TestAppInstallSetup mTestAppInstallSetup;
     private final Sleeper mSleeper;
-    private final TimeLimiter mTimeLimiter =
-            SimpleTimeLimiter.create(Executors.newCachedThreadPool());
+    private final TimeoutExecutor mTimeoutExecutor = TimeoutExecutor.getInstance();
+    private final Random mRandom = new Random();
 
     public AppSetupPreparer() {
         this(new TestAppInstallSetup(), Sleepers.DefaultSleeper.INSTANCE);
@@ -136,33 +180,48 @@ public final class AppSetupPreparer implements ITargetPreparer {
                 mExponentialBackoffMultiplierSeconds,
                 OPTION_EXPONENTIAL_BACKOFF_MULTIPLIER_SECONDS);
         checkArgumentNonNegative(mSetupOnceTimeoutMillis, OPTION_SETUP_TIMEOUT_MILLIS);
+        checkArgument(
+                mUnchangedSampleRate >= 0 && mUnchangedSampleRate <= 1,
+                "%s (%s) must be between 0 and 1",
+                OPTION_UNCHANGED_SAMPLE_RATE,
+                mUnchangedSampleRate);
+
+        if (skipUnchangedPackage()) {
+            return;
+        }
 
         int runCount = 0;
         while (true) {
             TargetSetupError currentException;
             try {
                 runCount++;
+                long startTime = System.currentTimeMillis();
 
-                ITargetPreparer handler =
-                        mTimeLimiter.newProxy(
-                                new ITargetPreparer() {
-                                    @Override
-                                    public void setUp(ITestDevice device, IBuildInfo buildInfo)
-                                            throws DeviceNotAvailableException, BuildError,
-                                                    TargetSetupError {
-                                        setUpOnce(device, buildInfo);
-                                    }
-                                },
-                                ITargetPreparer.class,
-                                mSetupOnceTimeoutMillis,
-                                TimeUnit.MILLISECONDS);
-                handler.setUp(device, buildInfo);
+                mTimeoutExecutor.call(
+                        () -> {
+                            setUpOnce(device, buildInfo);
+                            return null;
+                        },
+                        mSetupOnceTimeoutMillis);
 
+                recordInstallTime(System.currentTimeMillis() - startTime);
                 break;
-            } catch (TargetSetupError e) {
-                currentException = e;
-            } catch (UncheckedTimeoutException e) {
-                currentException = new TargetSetupError(e.getMessage(), e);
+            } catch (TimeoutException e) {
+                currentException =
+                        new TargetSetupError(
+                                String.format(
+                                        "setUp timed out after %d ms. Active setups: %d, queued"
+                                                + " setups: %d, timed out setups: %d",
+                                        mSetupOnceTimeoutMillis,
+                                        mTimeoutExecutor.getActiveCount(),
+                                        mTimeoutExecutor.getQueuedCount(),
+                                        mTimeoutExecutor.getTimedOutCount()),
+                                e);
+            } catch (ExecutionException e) {
+                currentException = toTargetSetupError(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TargetSetupError(e.getMessage(), e);
             }
 
             waitForDeviceAvailable(device);
@@ -182,6 +241,25 @@ public final class AppSetupPreparer implements ITargetPreparer {
         }
     }
 
+    /**
+     * Rethrows the failure of a setUp attempt unless it is a {@link TargetSetupError} that can be
+     * retried.
+     */
+    private static TargetSetupError toTargetSetupError(Throwable cause)
+            throws DeviceNotAvailableException, BuildError {
+        if (cause instanceof TargetSetupError) {
+            return (TargetSetupError) cause;
+        }
+        if (cause instanceof DeviceNotAvailableException) {
+            throw (DeviceNotAvailableException) cause;
+        }
+        if (cause instanceof BuildError) {
+            throw (BuildError) cause;
+        }
+        Throwables.throwIfUnchecked(cause);
+        throw new UndeclaredThrowableException(cause);
+    }
+
     private void setUpOnce(ITestDevice device, IBuildInfo buildInfo)
             throws DeviceNotAvailableException, BuildError, TargetSetupError {
         mTestAppInstallSetup.setAaptVersion(mAaptVersion);
@@ -205,7 +283,83 @@ public final class AppSetupPreparer implements ITargetPreparer {
             mTestAppInstallSetup.addInstallArg(installArg);
         }
 
-        mTestAppInstallSetup.setUp(device, buildInfo);
+        try {
+            mTestAppInstallSetup.setUp(device, buildInfo);
+        } finally {
+            if (mPackageName != null) {
+                PackageInventory.get(device).invalidate(mPackageName);
+            }
+        }
+    }
+
+    /**
+     * Records the content hash of the APK files for the launch test and returns whether the package
+     * is unchanged since it last passed and should not be installed nor tested.
+     */
+    private boolean skipUnchangedPackage() throws TargetSetupError {
+        if (mResultHistoryFile == null || mPackageName == null) {
+            return false;
+        }
+
+        String apkHash;
+        try {
+            apkHash = hashTestFiles();
+        } catch (IOException e) {
+            throw new TargetSetupError("Failed to hash the APK files of " + mPackageName, e);
+        }
+        if (apkHash == null) {
+            return false;
+        }
+        LaunchResultStore store = LaunchResultStore.open(mResultHistoryFile.toPath());
+        store.recordApkHash(mPackageName, apkHash);
+
+        if (!mSkipUnchanged
+                || !store.isUnchangedSinceLastPass(mPackageName, apkHash)
+                || mRandom.nextDouble() < mUnchangedSampleRate) {
+            return false;
+        }
+
+        CLog.i("Skipping %s as its APK files did not change since it last passed.", mPackageName);
+        store.recordUnchangedSetup(mPackageName);
+        return true;
+    }
+
+    /**
+     * Returns a SHA-256 hash of the content of all test files, or null if some of them were not
+     * resolved to local files.
+     */
+    private String hashTestFiles() throws IOException {
+        if (mTestFiles.isEmpty()) {
+            return null;
+        }
+
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (File testFile : mTestFiles) {
+            if (!testFile.exists()) {
+                return null;
+            }
+
+            Path root = testFile.toPath();
+            List<Path> paths;
+            try (Stream<Path> stream = Files.walk(root)) {
+                paths = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path path : paths) {
+                hasher.putString(root.relativize(path).toString(), StandardCharsets.UTF_8);
+                hasher.putBytes(MoreFiles.asByteSource(path).hash(Hashing.sha256()).asBytes());
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /** Passes the time taken by the successful setUp attempt on to the launch test. */
+    private void recordInstallTime(long installTimeMillis) {
+        if (mResultHistoryFile == null || mPackageName == null) {
+            return;
+        }
+
+        LaunchResultStore.open(mResultHistoryFile.toPath())
+                .recordInstallTime(mPackageName, installTimeMillis);
     }
 
     /** {@inheritDoc} */
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.targetprep;
+
+import com.android.csuite.core.DeviceLogcatCollector;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.invoker.TestInformation;
+import com.android.tradefed.targetprep.ITargetPreparer;
+import com.android.tradefed.targetprep.TargetSetupError;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+
+/**
+ * Starts a logcat capture that is shared by all the app launch tests run on a device.
+ *
+ * <p>This preparer is meant to be declared in the test plan so that the capture outlives the
+ * generated per-package modules. App launch tests use the shared capture when it is running and
+ * fall back to a capture of their own otherwise.
+ */
+public final class SharedLogcatPreparer implements ITargetPreparer {
+
+    @VisibleForTesting static final String OPTION_ENABLE = "enable-shared-logcat";
+
+    @Option(
+            name = OPTION_ENABLE,
+            description = "Capture the device logcat once for all tests instead of once per test.")
+    private boolean mEnable = false;
+
+    /** {@inheritDoc} */
+    @Override
+    public void setUp(TestInformation testInfo)
+            throws TargetSetupError, DeviceNotAvailableException {
+        if (!mEnable) {
+            return;
+        }
+
+        try {
+            DeviceLogcatCollector.start(testInfo.getDevice());
+        } catch (IOException e) {
+            throw new TargetSetupError("Failed to start the shared logcat capture", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void tearDown(TestInformation testInfo, Throwable e) throws DeviceNotAvailableException {
+        if (!mEnable) {
+            return;
+        }
+
+        DeviceLogcatCollector.stop(testInfo.getDevice());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.targetprep;
+
+import com.android.csuite.core.PackageNameProvider;
+import com.android.csuite.core.SystemPackageUninstaller;
+import com.android.tradefed.config.IConfiguration;
+import com.android.tradefed.config.IConfigurationReceiver;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.invoker.TestInformation;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.targetprep.ITargetPreparer;
+import com.android.tradefed.targetprep.TargetSetupError;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Uninstalls the system apps of all the tested packages at once before the test modules run.
+ *
+ * <p>Uninstalling a system app requires remounting the system partition and restarting the
+ * framework, which takes tens of seconds. This preparer is meant to be declared in the test plan
+ * so that all packages share a single remount and restart. The per-module uninstall then finds the
+ * packages already removed. Packages that fail to be uninstalled here are only logged and are
+ * uninstalled again by their own module.
+ */
+public final class SystemAppUninstallPreparer implements ITargetPreparer, IConfigurationReceiver {
+
+    @VisibleForTesting static final String OPTION_ENABLE = "batch-uninstall-system-apps";
+    private static final String PACKAGE_NAME_PROVIDER = "PACKAGE_NAME_PROVIDER";
+
+    @Option(
+            name = OPTION_ENABLE,
+            description = "Uninstall the system apps of all tested packages before any test runs.")
+    private boolean mEnable = false;
+
+    private IConfiguration mConfiguration;
+
+    @Override
+    public void setConfiguration(IConfiguration configuration) {
+        mConfiguration = configuration;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setUp(TestInformation testInfo)
+            throws TargetSetupError, DeviceNotAvailableException {
+        if (!mEnable) {
+            return;
+        }
+
+        Set<String> packageNames = new TreeSet<>();
+        try {
+            for (Object provider :
+                    mConfiguration.getConfigurationObjectList(PACKAGE_NAME_PROVIDER)) {
+                packageNames.addAll(((PackageNameProvider) provider).get());
+            }
+        } catch (IOException e) {
+            throw new TargetSetupError("Failed to get the package names", e);
+        }
+
+        Map<String, TargetSetupError> errors =
+                SystemPackageUninstaller.uninstallPackages(packageNames, testInfo.getDevice());
+        for (Map.Entry<String, TargetSetupError> entry : errors.entrySet()) {
+            CLog.w(
+                    "Failed to uninstall %s in batch, its module will retry: %s",
+                    entry.getKey(), entry.getValue().getMessage());
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void tearDown(TestInformation testInfo, Throwable e) {
+        // Intentionally left blank since uninstalled system apps are not restored.
+    }
+}
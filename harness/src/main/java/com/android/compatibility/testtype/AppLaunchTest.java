@@ -20,12 +20,22 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.android.compatibility.FailureCollectingListener;
+import com.android.compatibility.targetprep.AppSetupPreparer;
+import com.android.csuite.core.ApkInstallPipeline;
+import com.android.csuite.core.DeviceLogcatCollector;
+import com.android.csuite.core.FailureCluster;
+import com.android.csuite.core.FailureFingerprint;
+import com.android.csuite.core.LaunchDurationEstimator;
+import com.android.csuite.core.LaunchRecord;
+import com.android.csuite.core.LaunchResultStore;
+import com.android.csuite.core.PackageInventory;
+import com.android.csuite.core.PackageScheduler;
 import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.config.IConfigurationReceiver;
 import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionCopier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
-import com.android.tradefed.device.LogcatReceiver;
 import com.android.tradefed.invoker.TestInformation;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
@@ -35,13 +45,15 @@ import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.targetprep.ITargetPreparer;
+import com.android.tradefed.targetprep.TargetSetupError;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.testtype.IShardableTest;
 import com.android.tradefed.testtype.ITestFilterReceiver;
 import com.android.tradefed.testtype.InstrumentationTest;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
-import com.android.tradefed.util.StreamUtil;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
@@ -49,16 +61,47 @@ import com.google.common.base.Strings;
 import org.json.JSONException;
 import org.junit.Assert;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.function.LongSupplier;
 
-/** A test that verifies that a single app can be successfully launched. */
+/**
+ * A test that verifies that apps can be successfully launched.
+ *
+ * <p>By default a single package is launched per instrumentation run. When batch package names are
+ * given, they are launched up to batch-size at a time in a single instrumentation run and one test
+ * case is reported for each package. Batch package names may also be read from a file, which lets a
+ * single generated module test a large number of packages.
+ *
+ * <p>When a batch of packages is sharded, the shards share a single queue of packages instead of
+ * being assigned a fixed subset. Each shard takes the next few packages from the queue once it is
+ * done with its previous ones so that devices finishing early keep working. The queue only exists
+ * in memory and therefore requires shards to be run by the same TradeFed process.
+ */
 public class AppLaunchTest
-        implements IDeviceTest, IRemoteTest, IConfigurationReceiver, ITestFilterReceiver {
+        implements IDeviceTest,
+                IRemoteTest,
+                IShardableTest,
+                IConfigurationReceiver,
+                ITestFilterReceiver {
     @VisibleForTesting static final String SCREENSHOT_AFTER_LAUNCH = "screenshot-after-launch";
 
     @Option(
@@ -69,15 +112,77 @@ public class AppLaunchTest
     @Option(name = "package-name", description = "Package name of testing app.")
     private String mPackageName;
 
+    @Option(
+            name = "batch-package-name",
+            description =
+                    "Package names of testing apps to launch in a single instrumentation run. "
+                            + "Can be repeated. When set, package-name is ignored.")
+    private final List<String> mBatchPackageNames = new ArrayList<>();
+
+    @Option(
+            name = "batch-package-file",
+            description =
+                    "File listing batch package names, one per line. Empty lines and lines "
+                            + "starting with # are ignored. The packages are added to the "
+                            + "batch-package-name ones.")
+    private File mBatchPackageFile;
+
+    @Option(
+            name = "batch-size",
+            description =
+                    "Maximum number of batch packages launched in a single instrumentation run. "
+                            + "Shards take this many packages at a time from their shared queue.")
+    private int mBatchSize = 10;
+
+    @Option(
+            name = "apk-directory",
+            description =
+                    "Directory containing one subdirectory of APK files per batch package. When "
+                            + "set, the test installs the batch packages itself and pushes the "
+                            + "APK files of the next packages while the current ones are tested. "
+                            + "Only supported for batches, and not together with an "
+                            + "AppSetupPreparer as its retries, timeout and install options are "
+                            + "not applied.")
+    private File mApkDirectory;
+
+    @Option(
+            name = "install-arg",
+            description = "Additional arguments used to install packages from the apk-directory.")
+    private final List<String> mInstallArgs = new ArrayList<>();
+
     @Option(name = "test-label", description = "Unique test identifier label.")
     private String mTestLabel = "AppCompatibility";
 
-    /** @deprecated */
+    /** @deprecated use max-retries-per-package instead. */
     @Deprecated
     @Option(
             name = "retry-count",
-            description = "Number of times to retry a failed test case. 0 means no retry.")
-    private int mRetryCount = 0;
+            description =
+                    "Deprecated alias of max-retries-per-package. Takes precedence over it when "
+                            + "set.")
+    private Integer mRetryCount = null;
+
+    @Option(
+            name = "max-retries-per-package",
+            description =
+                    "Maximum number of times a package is launched again after a retryable "
+                            + "failure. 0 means no retry.")
+    private int mMaxRetriesPerPackage = 2;
+
+    @Option(
+            name = "retry-failure-kind",
+            description =
+                    "Kind of launch failure to retry, such as TIMEOUT or CRASH. Defaults to "
+                            + "TIMEOUT and INSTRUMENTATION_CRASH. Launches that could "
+                            + "not be attempted are always retried.")
+    private Set<LaunchFailureKind> mRetryFailureKinds = new HashSet<>();
+
+    @Option(
+            name = "retry-budget",
+            description =
+                    "Maximum number of retries of all the packages tested in an invocation, "
+                            + "shared by its modules and shards. A negative value means no limit.")
+    private int mRetryBudget = 20;
 
     @Option(name = "include-filter", description = "The include filter of the test type.")
     protected Set<String> mIncludeFilters = new HashSet<>();
@@ -90,21 +195,125 @@ public class AppLaunchTest
 
     @Option(
             name = "app-launch-timeout-ms",
-            description = "Time to wait for app to launch in msecs.")
+            description =
+                    "Time to wait for app to launch in msecs. The wait ends early when the app "
+                            + "crashes or stops responding.")
     private int mAppLaunchTimeoutMs = 15000;
 
+    @Option(
+            name = "adaptive-launch-timeout",
+            description =
+                    "Derive the time to wait for each app to launch from the 99th percentile of "
+                            + "its launch times recorded in the result history, multiplied by "
+                            + "the adaptive launch timeout factor. Apps with too few recorded "
+                            + "launches use app-launch-timeout-ms.")
+    private boolean mAdaptiveLaunchTimeout = false;
+
+    @Option(
+            name = "adaptive-launch-timeout-factor",
+            description = "Safety factor applied to the recorded launch times of an app.")
+    private double mAdaptiveLaunchTimeoutFactor = 3.0;
+
+    @Option(
+            name = "min-adaptive-launch-timeout-ms",
+            description = "Lower bound in msecs of an adaptive launch timeout.")
+    private int mMinAdaptiveLaunchTimeoutMs = 5000;
+
+    @Option(
+            name = "max-adaptive-launch-timeout-ms",
+            description = "Upper bound in msecs of an adaptive launch timeout.")
+    private int mMaxAdaptiveLaunchTimeoutMs = 60000;
+
+    @Option(
+            name = "event-driven-launch",
+            description =
+                    "Stop waiting for a launched app once it is shown or resumed and then stable "
+                            + "for the launch stability window, instead of always waiting for "
+                            + "the full app launch timeout.")
+    private boolean mEventDrivenLaunch = false;
+
+    @Option(
+            name = "launch-stability-window-ms",
+            description =
+                    "Time in msecs to keep watching an app for crashes after it has launched. "
+                            + "Only used when event-driven-launch is enabled.")
+    private int mLaunchStabilityWindowMs = 3000;
+
+    @Option(
+            name = "launch-measurement-count",
+            description =
+                    "Number of cold, warm and hot launches each timed per package after the "
+                            + "package launched successfully. The median, 90th percentile and "
+                            + "standard deviation of each launch type are reported as metrics. "
+                            + "0 disables the measurements.")
+    private int mLaunchMeasurementCount = 0;
+
+    @Option(
+            name = "resource-sample-interval-ms",
+            description =
+                    "Interval in msecs at which the memory, CPU time and thread count of a "
+                            + "launched app are sampled while it launches. The peak values and "
+                            + "the sampled series are reported as metrics. 0 disables sampling.")
+    private int mResourceSampleIntervalMs = 0;
+
+    @Option(
+            name = "collect-frame-stats",
+            description =
+                    "Report the number of frames, the janky frame percentage and the frame time "
+                            + "percentiles rendered by each app while it is held in the "
+                            + "foreground after launch.")
+    private boolean mCollectFrameStats = true;
+
+    @Option(
+            name = "result-history-file",
+            description =
+                    "Local file to append the result of each tested package to. The recorded "
+                            + "launch durations are used to order packages between shards.")
+    private File mResultHistoryFile;
+
+    @Option(
+            name = "failure-cluster-file",
+            description =
+                    "Local file to write the failures recorded in the result history to, grouped "
+                            + "by cause across packages and runs. Each line holds the failure "
+                            + "fingerprint, the number of failures, the number of packages, the "
+                            + "failure signature and the failed packages, separated by tabs.")
+    private File mFailureClusterFile;
+
     private static final String LAUNCH_TEST_RUNNER =
             "com.android.compatibilitytest.AppCompatibilityRunner";
     private static final String LAUNCH_TEST_PACKAGE = "com.android.compatibilitytest";
     private static final String PACKAGE_TO_LAUNCH = "package_to_launch";
+    private static final String PACKAGES_TO_LAUNCH = "packages_to_launch";
+    private static final String PACKAGE_SEPARATOR = ",";
     private static final String ARG_DISMISS_DIALOG = "ARG_DISMISS_DIALOG";
     private static final String APP_LAUNCH_TIMEOUT_LABEL = "app_launch_timeout_ms";
+    private static final String APP_LAUNCH_TIMEOUTS_LABEL = "app_launch_timeouts_ms";
+    private static final String TIMEOUT_SEPARATOR = ":";
+    private static final String EVENT_DRIVEN_LAUNCH_LABEL = "event_driven_launch";
+    private static final String STABILITY_WINDOW_LABEL = "stability_window_ms";
+    private static final String RESOURCE_SAMPLE_INTERVAL_LABEL = "resource_sample_interval_ms";
+    private static final String COLLECT_FRAME_STATS_LABEL = "collect_frame_stats";
     private static final int LOGCAT_SIZE_BYTES = 20 * 1024 * 1024;
     private static final int BASE_INSTRUMENTATION_TEST_TIMEOUT_MS = 10 * 1000;
+    @VisibleForTesting static final int MIN_ADAPTIVE_LAUNCH_TIMEOUT_SAMPLES = 5;
+    private static final int MAX_FAILURE_SIGNATURE_LENGTH = 200;
 
     private ITestDevice mDevice;
-    private LogcatReceiver mLogcat;
+    private DeviceLogcatCollector mLogcat;
+    // Whether mLogcat was started by this test rather than shared by all tests on the device.
+    private boolean mOwnsLogcat;
     private IConfiguration mConfiguration;
+    // The queue of packages shared with the other shards, or null if this test is not a shard.
+    private PackageScheduler mScheduler;
+    // Installs the batch packages when an APK directory is given, null otherwise.
+    private ApkInstallPipeline mInstallPipeline;
+    // The launch timings of the packages tested in the current run.
+    private LaunchMetrics mLaunchMetrics = new LaunchMetrics();
+    // Decides which failed launches of the current run are attempted again.
+    private LaunchRetryPolicy mRetryPolicy;
+    // The retry budget shared with the other shards, or null if this test is not a shard.
+    private LaunchRetryPolicy.Budget mSharedRetryBudget;
 
     public AppLaunchTest() {
         this(null);
@@ -112,7 +321,7 @@ public class AppLaunchTest
 
     @VisibleForTesting
     public AppLaunchTest(String packageName) {
-        this(packageName, 0);
+        mPackageName = packageName;
     }
 
     @VisibleForTesting
@@ -126,25 +335,102 @@ public class AppLaunchTest
      * the package being tested (provided as a parameter).
      */
     protected InstrumentationTest createInstrumentationTest(String packageBeingTested) {
+        int launchTimeoutMs = getLaunchTimeoutMs(packageBeingTested);
+        InstrumentationTest instrumentationTest =
+                createInstrumentationTest(launchTimeoutMs, launchTimeoutMs);
+        instrumentationTest.addInstrumentationArg(PACKAGE_TO_LAUNCH, packageBeingTested);
+        return instrumentationTest;
+    }
+
+    /**
+     * Creates and sets up an instrumentation test that launches all the given packages in a single
+     * run and reports one test case per package.
+     *
+     * <p>Each package is given its own launch timeout. The run is given enough time for the launch
+     * timeouts of all its packages.
+     */
+    protected InstrumentationTest createBatchInstrumentationTest(List<String> packagesBeingTested) {
+        List<String> launchTimeouts = new ArrayList<>();
+        int maxLaunchTimeoutMs = 0;
+        int totalLaunchTimeoutMs = 0;
+        for (String packageName : packagesBeingTested) {
+            int launchTimeoutMs = getLaunchTimeoutMs(packageName);
+            launchTimeouts.add(packageName + TIMEOUT_SEPARATOR + launchTimeoutMs);
+            maxLaunchTimeoutMs = Math.max(maxLaunchTimeoutMs, launchTimeoutMs);
+            totalLaunchTimeoutMs += launchTimeoutMs;
+        }
+        InstrumentationTest instrumentationTest =
+                createInstrumentationTest(maxLaunchTimeoutMs, totalLaunchTimeoutMs);
+        instrumentationTest.addInstrumentationArg(
+                PACKAGES_TO_LAUNCH, String.join(PACKAGE_SEPARATOR, packagesBeingTested));
+        instrumentationTest.addInstrumentationArg(
+                APP_LAUNCH_TIMEOUTS_LABEL, String.join(PACKAGE_SEPARATOR, launchTimeouts));
+        return instrumentationTest;
+    }
+
+    /**
+     * Creates an instrumentation test whose packages wait for {@code launchTimeoutMs} to launch
+     * unless given their own launch timeout, and whose run may last for the sum of the launch
+     * timeouts of its packages.
+     */
+    private InstrumentationTest createInstrumentationTest(
+            int launchTimeoutMs, int totalLaunchTimeoutMs) {
         InstrumentationTest instrumentationTest = new InstrumentationTest();
 
         instrumentationTest.setPackageName(LAUNCH_TEST_PACKAGE);
         instrumentationTest.setConfiguration(mConfiguration);
-        instrumentationTest.addInstrumentationArg(PACKAGE_TO_LAUNCH, packageBeingTested);
         instrumentationTest.setRunnerName(LAUNCH_TEST_RUNNER);
         instrumentationTest.setDevice(mDevice);
         instrumentationTest.addInstrumentationArg(
-                APP_LAUNCH_TIMEOUT_LABEL, Integer.toString(mAppLaunchTimeoutMs));
+                APP_LAUNCH_TIMEOUT_LABEL, Integer.toString(launchTimeoutMs));
         instrumentationTest.addInstrumentationArg(
                 ARG_DISMISS_DIALOG, Boolean.toString(mDismissDialog));
+        instrumentationTest.addInstrumentationArg(
+                EVENT_DRIVEN_LAUNCH_LABEL, Boolean.toString(mEventDrivenLaunch));
+        instrumentationTest.addInstrumentationArg(
+                STABILITY_WINDOW_LABEL, Integer.toString(mLaunchStabilityWindowMs));
+        instrumentationTest.addInstrumentationArg(
+                RESOURCE_SAMPLE_INTERVAL_LABEL, Integer.toString(mResourceSampleIntervalMs));
+        instrumentationTest.addInstrumentationArg(
+                COLLECT_FRAME_STATS_LABEL, Boolean.toString(mCollectFrameStats));
 
-        int testTimeoutMs = BASE_INSTRUMENTATION_TEST_TIMEOUT_MS + mAppLaunchTimeoutMs * 2;
+        int testTimeoutMs = BASE_INSTRUMENTATION_TEST_TIMEOUT_MS + totalLaunchTimeoutMs * 2;
         instrumentationTest.setShellTimeout(testTimeoutMs);
         instrumentationTest.setTestTimeout(testTimeoutMs);
 
         return instrumentationTest;
     }
 
+    /**
+     * Returns the time to wait for a package to launch. When adaptive launch timeouts are enabled,
+     * it is derived from the launch times of the package recorded in the result history.
+     */
+    @VisibleForTesting
+    int getLaunchTimeoutMs(String packageName) {
+        LaunchResultStore store = getResultStore();
+        if (!mAdaptiveLaunchTimeout || store == null) {
+            return mAppLaunchTimeoutMs;
+        }
+
+        Optional<Long> timeToLaunch =
+                store.getTimeToLaunchPercentile(
+                        packageName, 99, MIN_ADAPTIVE_LAUNCH_TIMEOUT_SAMPLES);
+        if (!timeToLaunch.isPresent()) {
+            return mAppLaunchTimeoutMs;
+        }
+
+        long timeoutMs = Math.round(timeToLaunch.get() * mAdaptiveLaunchTimeoutFactor);
+        int clampedTimeoutMs =
+                (int)
+                        Math.max(
+                                mMinAdaptiveLaunchTimeoutMs,
+                                Math.min(mMaxAdaptiveLaunchTimeoutMs, timeoutMs));
+        CLog.d(
+                "Using a launch timeout of %d ms for %s (p99 time to launch: %d ms)",
+                clampedTimeoutMs, packageName, timeToLaunch.get());
+        return clampedTimeoutMs;
+    }
+
     /*
      * {@inheritDoc}
      */
@@ -154,10 +440,16 @@ public class AppLaunchTest
         CLog.d("Start of run method.");
         CLog.d("Include filters: %s", mIncludeFilters);
         CLog.d("Exclude filters: %s", mExcludeFilters);
+        checkApkDirectory();
+
+        if (isBatch()) {
+            runBatch(testInfo, listener);
+            return;
+        }
 
         Assert.assertNotNull("Package name cannot be null", mPackageName);
 
-        TestDescription testDescription = createTestDescription();
+        TestDescription testDescription = createTestDescription(mPackageName);
 
         if (!inFilter(testDescription.toString())) {
             CLog.d("Test case %s doesn't match any filter", testDescription);
@@ -166,9 +458,18 @@ public class AppLaunchTest
         CLog.d("Complete filtering test case: %s", testDescription);
 
         long start = System.currentTimeMillis();
+        mLaunchMetrics = new LaunchMetrics();
+        mRetryPolicy = createRetryPolicy(testInfo);
         listener.testRunStarted(mTestLabel, 1);
-        mLogcat = new LogcatReceiver(getDevice(), LOGCAT_SIZE_BYTES, 0);
-        mLogcat.start();
+
+        if (isSetUpAsUnchanged(mPackageName)) {
+            reportUnchanged(mPackageName, listener);
+            listener.testRunEnded(
+                    System.currentTimeMillis() - start, new HashMap<String, Metric>());
+            return;
+        }
+
+        startLogcat();
 
         try {
             testPackage(testInfo, testDescription, listener);
@@ -176,12 +477,376 @@ public class AppLaunchTest
             CLog.e(e);
             throw new RuntimeException(e);
         } finally {
-            mLogcat.stop();
+            stopLogcat();
+            writeFailureClusters();
             listener.testRunEnded(
-                    System.currentTimeMillis() - start, new HashMap<String, Metric>());
+                    System.currentTimeMillis() - start, mLaunchMetrics.getRunMetrics());
         }
     }
 
+    private void runBatch(final TestInformation testInfo, final ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        checkArgument(mBatchSize > 0, "batch-size (%s) must be positive", mBatchSize);
+
+        boolean sharded = mScheduler != null;
+        PackageScheduler scheduler =
+                sharded
+                        ? mScheduler
+                        : new PackageScheduler(getBatchPackageNames(), getDurationEstimator());
+        List<String> packageNames = scheduler.poll(mBatchSize);
+        if (packageNames.isEmpty()) {
+            return;
+        }
+        if (mScreenshotAfterLaunch) {
+            CLog.w("Screenshots after launch are not supported when launching a batch of apps.");
+        }
+
+        long start = System.currentTimeMillis();
+        mLaunchMetrics = new LaunchMetrics();
+        mRetryPolicy = createRetryPolicy(testInfo);
+        // A shard does not know upfront how many packages it will take from the shared queue.
+        listener.testRunStarted(
+                mTestLabel, sharded ? 0 : packageNames.size() + scheduler.size());
+        startLogcat();
+        if (mApkDirectory != null) {
+            mInstallPipeline = new ApkInstallPipeline(mDevice, mApkDirectory, mInstallArgs);
+        }
+
+        try {
+            while (!packageNames.isEmpty()) {
+                List<String> nextPackageNames = null;
+                if (mInstallPipeline != null) {
+                    // Takes the next packages early so that their APK files are pushed to the
+                    // device while the current packages are tested.
+                    nextPackageNames = scheduler.poll(mBatchSize);
+                    mInstallPipeline.prefetch(packageNames);
+                    mInstallPipeline.prefetch(nextPackageNames);
+                }
+
+                testPackages(testInfo, packageNames, listener);
+
+                if (mInstallPipeline != null) {
+                    mInstallPipeline.uninstall(packageNames);
+                }
+                packageNames =
+                        nextPackageNames != null ? nextPackageNames : scheduler.poll(mBatchSize);
+            }
+        } finally {
+            if (mInstallPipeline != null) {
+                mInstallPipeline.close();
+                mInstallPipeline = null;
+            }
+            stopLogcat();
+            writeFailureClusters();
+            listener.testRunEnded(
+                    System.currentTimeMillis() - start, mLaunchMetrics.getRunMetrics());
+        }
+    }
+
+    /**
+     * Checks that the packages of the apk-directory are not also set up by an {@link
+     * AppSetupPreparer}, since the test installs them without its retries, timeout and install
+     * options.
+     */
+    private void checkApkDirectory() {
+        if (mApkDirectory == null) {
+            return;
+        }
+        checkArgument(
+                isBatch(),
+                "apk-directory is only supported with batch-package-name or batch-package-file");
+        if (mConfiguration == null) {
+            return;
+        }
+        for (ITargetPreparer preparer : mConfiguration.getTargetPreparers()) {
+            checkArgument(
+                    !(preparer instanceof AppSetupPreparer),
+                    "apk-directory cannot be used together with %s",
+                    AppSetupPreparer.class.getSimpleName());
+        }
+    }
+
+    private boolean isBatch() {
+        return !mBatchPackageNames.isEmpty() || mBatchPackageFile != null;
+    }
+
+    /** Returns the batch package names that match the filters, without duplicates. */
+    private List<String> getBatchPackageNames() {
+        Set<String> batchPackageNames = new LinkedHashSet<>(mBatchPackageNames);
+        if (mBatchPackageFile != null) {
+            try {
+                for (String line :
+                        Files.readAllLines(mBatchPackageFile.toPath(), StandardCharsets.UTF_8)) {
+                    String packageName = line.trim();
+                    if (!packageName.isEmpty() && !packageName.startsWith("#")) {
+                        batchPackageNames.add(packageName);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(
+                        "Failed to read batch package file " + mBatchPackageFile, e);
+            }
+        }
+
+        List<String> packageNames = new ArrayList<>();
+        for (String packageName : batchPackageNames) {
+            TestDescription testDescription = createTestDescription(packageName);
+            if (!inFilter(testDescription.toString())) {
+                CLog.d("Test case %s doesn't match any filter", testDescription);
+                continue;
+            }
+            packageNames.add(packageName);
+        }
+        return packageNames;
+    }
+
+    /**
+     * Splits a batch of packages into shards that take packages from a shared queue, longest
+     * expected launch first. Tests of a single package are not splittable.
+     */
+    @Override
+    public Collection<IRemoteTest> split(int shardCountHint) {
+        if (!isBatch() || shardCountHint <= 1) {
+            return null;
+        }
+        checkArgument(mBatchSize > 0, "batch-size (%s) must be positive", mBatchSize);
+
+        List<String> packageNames = getBatchPackageNames();
+        int shardCount = Math.min(shardCountHint, packageNames.size());
+        if (shardCount <= 1) {
+            return null;
+        }
+
+        PackageScheduler scheduler = new PackageScheduler(packageNames, getDurationEstimator());
+        LaunchRetryPolicy.Budget retryBudget = new LaunchRetryPolicy.Budget(mRetryBudget);
+        List<IRemoteTest> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            AppLaunchTest shard = createShard();
+            shard.mScheduler = scheduler;
+            shard.mSharedRetryBudget = retryBudget;
+            shards.add(shard);
+        }
+        CLog.d("Split %d packages into %d shards.", packageNames.size(), shardCount);
+        return shards;
+    }
+
+    /** Creates a new instance of this test with the same options to be used as a shard. */
+    @VisibleForTesting
+    protected AppLaunchTest createShard() {
+        AppLaunchTest shard = new AppLaunchTest();
+        OptionCopier.copyOptionsNoThrow(this, shard);
+        shard.setConfiguration(mConfiguration);
+        return shard;
+    }
+
+    /**
+     * Tests a batch of packages in as few instrumentation runs as possible and reports one test
+     * case per package. Failed packages are retried together as a smaller batch, and each package
+     * is reported as soon as its attempts are final.
+     */
+    private void testPackages(
+            final TestInformation testInfo,
+            List<String> packageNames,
+            ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        List<String> changedPackageNames = new ArrayList<>();
+        for (String packageName : packageNames) {
+            if (isSetUpAsUnchanged(packageName)) {
+                reportUnchanged(packageName, listener);
+            } else {
+                changedPackageNames.add(packageName);
+            }
+        }
+        packageNames = changedPackageNames;
+        CLog.d("Started testing %d packages.", packageNames.size());
+
+        Map<String, LaunchAttempt> attempts = new LinkedHashMap<>();
+        // The outcome of every launch attempt of each package, in order.
+        Map<String, List<String>> outcomes = new HashMap<>();
+        Set<String> reported = new HashSet<>();
+        List<String> pending = packageNames;
+        try {
+            for (int i = 0; !pending.isEmpty(); i++) {
+                attempts.putAll(launchPackages(testInfo, pending));
+                List<String> retried = new ArrayList<>();
+                for (String packageName : pending) {
+                    LaunchAttempt attempt = attempts.get(packageName);
+                    outcomes.computeIfAbsent(packageName, k -> new ArrayList<>())
+                            .add(LaunchRetryPolicy.getOutcome(attempt.result, attempt.failureKind));
+                    if (mRetryPolicy.shouldRetry(attempt.result, attempt.failureKind, i)) {
+                        retried.add(packageName);
+                    } else {
+                        reported.add(packageName);
+                        reportPackage(attempt, outcomes.get(packageName), listener);
+                    }
+                }
+                pending = retried;
+            }
+        } finally {
+            // Only reached with packages left when the batch ended early, for example because the
+            // device became unavailable. Each of them is still reported, and the error that ended
+            // the batch is the one thrown.
+            for (String packageName : packageNames) {
+                if (reported.contains(packageName)) {
+                    continue;
+                }
+                LaunchAttempt attempt = attempts.get(packageName);
+                if (attempt == null) {
+                    attempt = new LaunchAttempt(packageName, getLogcatOffset());
+                    attempt.result.status = CompatibilityTestResult.STATUS_ERROR;
+                    attempt.result.message = "The package was not launched";
+                }
+                try {
+                    reportPackage(
+                            attempt,
+                            outcomes.getOrDefault(packageName, Collections.emptyList()),
+                            listener);
+                } catch (DeviceNotAvailableException e) {
+                    CLog.w("Device unavailable while reporting package %s.", packageName);
+                }
+            }
+            CLog.d("Completed testing %d packages.", packageNames.size());
+        }
+    }
+
+    /**
+     * Reports the final launch attempt of a package of a batch, after measuring its launch times.
+     * The test case is ended even if the device becomes unavailable.
+     *
+     * @param outcomes the outcome of every launch attempt of the package, in order.
+     */
+    private void reportPackage(
+            LaunchAttempt attempt, List<String> outcomes, ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        String packageName = attempt.result.packageName;
+        TestDescription testDescription = createTestDescription(packageName);
+        listener.testStarted(testDescription, attempt.startTime);
+        try {
+            attempt.launchTimeMetrics.putAll(measureLaunchTimes(attempt.result));
+            stopPackage(packageName);
+        } finally {
+            reportResult(listener, testDescription, attempt.result);
+            try {
+                postLogcat(
+                        attempt.result,
+                        attempt.logcatStartOffset,
+                        attempt.logcatEndOffset,
+                        listener);
+            } catch (JSONException e) {
+                CLog.w("Posting failed: %s.", e.getMessage());
+            }
+            if (!outcomes.isEmpty()) {
+                attempt.metrics.put(LaunchMetrics.LAUNCH_ATTEMPTS, (long) outcomes.size());
+            }
+            addTimeToFullyDrawn(
+                    attempt.metrics,
+                    packageName,
+                    attempt.logcatStartOffset,
+                    attempt.logcatEndOffset);
+            HashMap<String, Metric> packageMetrics =
+                    mLaunchMetrics.addPackageValues(attempt.metrics, attempt.series);
+            packageMetrics.putAll(attempt.launchTimeMetrics);
+            listener.testEnded(
+                    testDescription, Math.max(attempt.endTime, attempt.startTime), packageMetrics);
+            recordResult(
+                    attempt.result,
+                    attempt.failureKind,
+                    outcomes,
+                    attempt.metrics,
+                    attempt.startTime,
+                    attempt.endTime);
+        }
+    }
+
+    /** Launches a batch of packages in a single instrumentation run. */
+    private Map<String, LaunchAttempt> launchPackages(
+            final TestInformation testInfo, List<String> packageNames)
+            throws DeviceNotAvailableException {
+        Map<String, LaunchAttempt> attempts = new LinkedHashMap<>();
+        List<String> launchable = new ArrayList<>();
+        long logcatStartOffset = getLogcatOffset();
+
+        for (String packageName : packageNames) {
+            LaunchAttempt attempt = new LaunchAttempt(packageName, logcatStartOffset);
+            attempts.put(packageName, attempt);
+
+            if (mInstallPipeline != null) {
+                try {
+                    mInstallPipeline.install(packageName);
+                } catch (TargetSetupError e) {
+                    CLog.w("Failed to install package %s: %s", packageName, e.getMessage());
+                    attempt.result.status = CompatibilityTestResult.STATUS_ERROR;
+                    attempt.result.message = e.getMessage();
+                    continue;
+                }
+            }
+
+            long resetStartTime = System.currentTimeMillis();
+            CommandResult resetResult = resetPackage(packageName);
+            attempt.metrics.put(
+                    LaunchMetrics.PM_CLEAR_DURATION, System.currentTimeMillis() - resetStartTime);
+            if (resetResult.getStatus() != CommandStatus.SUCCESS) {
+                attempt.result.status = CompatibilityTestResult.STATUS_ERROR;
+                attempt.result.message = resetResult.getStatus() + resetResult.getStderr();
+                continue;
+            }
+            launchable.add(packageName);
+        }
+
+        if (launchable.isEmpty()) {
+            return attempts;
+        }
+
+        CLog.d("Launching packages: %s.", launchable);
+        InstrumentationTest instrTest = createBatchInstrumentationTest(launchable);
+        BatchResultCollector collector = new BatchResultCollector(this::getLogcatOffset);
+        long runStartTime = System.currentTimeMillis();
+        instrTest.run(testInfo, collector);
+        long runDuration = System.currentTimeMillis() - runStartTime;
+        long logcatEndOffset = getLogcatOffset();
+
+        Map<String, Map<String, Long>> packageValues = new LinkedHashMap<>();
+        Map<String, Map<String, Metric>> testMetrics = new HashMap<>();
+        for (String packageName : launchable) {
+            packageValues.put(packageName, attempts.get(packageName).metrics);
+            FailureCollectingListener failureListener = collector.getListener(packageName);
+            if (failureListener != null) {
+                testMetrics.put(packageName, failureListener.getTestMetrics());
+                attempts.get(packageName)
+                        .series
+                        .putAll(LaunchMetrics.getDeviceSeries(failureListener.getTestMetrics()));
+            }
+        }
+        LaunchMetrics.addInstrumentationValues(packageValues, testMetrics, runDuration);
+
+        for (String packageName : launchable) {
+            LaunchAttempt attempt = attempts.get(packageName);
+            FailureCollectingListener failureListener = collector.getListener(packageName);
+            attempt.logcatEndOffset = logcatEndOffset;
+
+            if (failureListener == null) {
+                CLog.w("No result reported for package: %s.", packageName);
+                attempt.result.status = CompatibilityTestResult.STATUS_FAILURE;
+                attempt.result.message =
+                        collector.getRunFailure() != null
+                                ? collector.getRunFailure()
+                                : "No result reported by the instrumentation";
+                attempt.failureKind = LaunchFailureKind.classifyRunFailure(attempt.result.message);
+                continue;
+            }
+
+            attempt.startTime = collector.getStartTime(packageName);
+            attempt.endTime = collector.getEndTime(packageName);
+            attempt.logcatStartOffset = collector.getLogcatStartOffset(packageName);
+            attempt.logcatEndOffset =
+                    collector.getLogcatEndOffset(packageName, logcatEndOffset);
+            attempt.failureKind = LaunchFailureKind.classify(failureListener);
+            setLaunchResult(attempt.result, attempt.failureKind, failureListener);
+        }
+
+        return attempts;
+    }
+
     /**
      * Attempts to test a package and reports the results.
      *
@@ -195,22 +860,38 @@ public class AppLaunchTest
             throws DeviceNotAvailableException, InterruptedException {
         CLog.d("Started testing package: %s.", mPackageName);
 
-        listener.testStarted(testDescription, System.currentTimeMillis());
+        long logcatStartOffset = getLogcatOffset();
+        long startTime = System.currentTimeMillis();
+        listener.testStarted(testDescription, startTime);
 
         CompatibilityTestResult result = createCompatibilityTestResult();
         result.packageName = mPackageName;
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        Map<String, String> series = new LinkedHashMap<>();
+        Map<String, Metric> launchTimeMetrics = Collections.emptyMap();
+        // Excludes the launches of the measurements when looking for the time to fully drawn.
+        Long launchLogcatEndOffset = null;
+        LaunchFailureKind failureKind = null;
+        // The outcome of every launch attempt, in order.
+        List<String> outcomes = new ArrayList<>();
 
         try {
-            for (int i = 0; i <= mRetryCount; i++) {
+            for (int i = 0; ; i++) {
                 result.status = null;
                 result.message = null;
                 // Clear test result between retries.
-                launchPackage(testInfo, result);
-                if (result.status == CompatibilityTestResult.STATUS_SUCCESS) {
+                metrics.clear();
+                series.clear();
+                failureKind = launchPackage(testInfo, result, metrics, series);
+                outcomes.add(LaunchRetryPolicy.getOutcome(result, failureKind));
+                if (!mRetryPolicy.shouldRetry(result, failureKind, i)) {
                     break;
                 }
             }
+            metrics.put(LaunchMetrics.LAUNCH_ATTEMPTS, (long) outcomes.size());
+            launchLogcatEndOffset = getLogcatOffset();
 
+            // Captures the launch being judged before the measurements launch the package again.
             if (mScreenshotAfterLaunch) {
                 try (InputStreamSource screenSource = mDevice.getScreenshot()) {
                     listener.testLog(
@@ -224,18 +905,29 @@ public class AppLaunchTest
                     throw e;
                 }
             }
+            launchTimeMetrics = measureLaunchTimes(result);
         } finally {
             reportResult(listener, testDescription, result);
-            stopPackage();
+            stopPackage(mPackageName);
+            long logcatEndOffset = getLogcatOffset();
             try {
-                postLogcat(result, listener);
+                postLogcat(result, logcatStartOffset, logcatEndOffset, listener);
             } catch (JSONException e) {
                 CLog.w("Posting failed: %s.", e.getMessage());
             }
-            listener.testEnded(
-                    testDescription,
-                    System.currentTimeMillis(),
-                    Collections.<String, String>emptyMap());
+            long endTime = System.currentTimeMillis();
+            addTimeToFullyDrawn(
+                    metrics,
+                    mPackageName,
+                    logcatStartOffset,
+                    launchLogcatEndOffset != null ? launchLogcatEndOffset : logcatEndOffset);
+            HashMap<String, Metric> packageMetrics =
+                    mLaunchMetrics.addPackageValues(metrics, series);
+            packageMetrics.putAll(launchTimeMetrics);
+            listener.testEnded(testDescription, endTime, packageMetrics);
+            // Recorded once the test case is ended as looking up the version code needs the
+            // device.
+            recordResult(result, failureKind, outcomes, metrics, startTime, endTime);
 
             CLog.d("Completed testing package: %s.", mPackageName);
         }
@@ -248,34 +940,90 @@ public class AppLaunchTest
      * result status will be set to failure.
      *
      * @param result the {@link CompatibilityTestResult} containing the package info.
+     * @param metrics the map the launch timings of the package are added to.
+     * @param series the map the time series sampled on the device are added to.
+     * @return the kind of failure the launch ended with, or null if it did not fail or could not
+     *     be attempted.
      * @throws DeviceNotAvailableException
      */
-    private void launchPackage(final TestInformation testInfo, CompatibilityTestResult result)
+    private LaunchFailureKind launchPackage(
+            final TestInformation testInfo,
+            CompatibilityTestResult result,
+            Map<String, Long> metrics,
+            Map<String, String> series)
             throws DeviceNotAvailableException {
         CLog.d("Launching package: %s.", result.packageName);
 
-        CommandResult resetResult = resetPackage();
+        long resetStartTime = System.currentTimeMillis();
+        CommandResult resetResult = resetPackage(result.packageName);
+        metrics.put(LaunchMetrics.PM_CLEAR_DURATION, System.currentTimeMillis() - resetStartTime);
         if (resetResult.getStatus() != CommandStatus.SUCCESS) {
             result.status = CompatibilityTestResult.STATUS_ERROR;
             result.message = resetResult.getStatus() + resetResult.getStderr();
-            return;
+            return null;
         }
 
         InstrumentationTest instrTest = createInstrumentationTest(result.packageName);
 
         FailureCollectingListener failureListener = createFailureListener();
+        long runStartTime = System.currentTimeMillis();
         instrTest.run(testInfo, failureListener);
+        long runDuration = System.currentTimeMillis() - runStartTime;
         CLog.d("Stack Trace: %s", failureListener.getStackTrace());
 
-        if (failureListener.getStackTrace() != null) {
-            CLog.w("Failed to launch package: %s.", result.packageName);
-            result.status = CompatibilityTestResult.STATUS_FAILURE;
-            result.message = failureListener.getStackTrace();
-        } else {
+        LaunchMetrics.addInstrumentationValues(
+                Collections.singletonMap(result.packageName, metrics),
+                Collections.singletonMap(result.packageName, failureListener.getTestMetrics()),
+                runDuration);
+        series.putAll(LaunchMetrics.getDeviceSeries(failureListener.getTestMetrics()));
+
+        LaunchFailureKind failureKind = LaunchFailureKind.classify(failureListener);
+        setLaunchResult(result, failureKind, failureListener);
+
+        CLog.d("Completed launching package: %s", result.packageName);
+        return failureKind;
+    }
+
+    /** Sets the status and message of a launch result from the failure the launch ended with. */
+    private static void setLaunchResult(
+            CompatibilityTestResult result,
+            LaunchFailureKind failureKind,
+            FailureCollectingListener failureListener) {
+        if (failureKind == null) {
             result.status = CompatibilityTestResult.STATUS_SUCCESS;
+            return;
         }
 
-        CLog.d("Completed launching package: %s", result.packageName);
+        if (failureKind == LaunchFailureKind.NO_LAUNCH_INTENT) {
+            // Packages without an activity to launch have always passed; only the kind is kept
+            // so that the launch history can tell them apart.
+            CLog.i("No launch intent found for package %s.", result.packageName);
+            result.status = CompatibilityTestResult.STATUS_SUCCESS;
+            return;
+        }
+        CLog.w("Failed to launch package: %s (%s).", result.packageName, failureKind);
+        result.status = CompatibilityTestResult.STATUS_FAILURE;
+        result.message = failureListener.getStackTrace();
+    }
+
+    /**
+     * Returns whether the preparer did not install a package because it is unchanged since it last
+     * passed.
+     */
+    private boolean isSetUpAsUnchanged(String packageName) {
+        LaunchResultStore store = getResultStore();
+        return store != null && store.getSetup(packageName).isUnchanged();
+    }
+
+    /** Reports a package that is not tested because it is unchanged since it last passed. */
+    private void reportUnchanged(String packageName, ITestInvocationListener listener) {
+        CLog.i("Skipping %s as it did not change since it last passed.", packageName);
+        getResultStore().clearSetup(packageName);
+        TestDescription testDescription = createTestDescription(packageName);
+        listener.testStarted(testDescription, System.currentTimeMillis());
+        listener.testIgnored(testDescription);
+        listener.testEnded(
+                testDescription, System.currentTimeMillis(), new HashMap<String, Metric>());
     }
 
     /** Helper method which reports a test failed if the status is either a failure or an error. */
@@ -298,10 +1046,16 @@ public class AppLaunchTest
         return null;
     }
 
-    /** Helper method which posts the logcat. */
-    private void postLogcat(CompatibilityTestResult result, ITestInvocationListener listener)
+    /**
+     * Helper method which posts the logcat. The result header is streamed ahead of the logcat data
+     * so that the logcat is never copied into memory.
+     */
+    private void postLogcat(
+            CompatibilityTestResult result,
+            long logcatStartOffset,
+            long logcatEndOffset,
+            ITestInvocationListener listener)
             throws JSONException {
-        InputStreamSource stream = null;
         String header =
                 String.format(
                         "%s%s%s\n",
@@ -309,20 +1063,82 @@ public class AppLaunchTest
                         result.toJsonString(),
                         CompatibilityTestResult.SEPARATOR);
 
-        try (InputStreamSource logcatData = mLogcat.getLogcatData()) {
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                baos.write(header.getBytes());
-                StreamUtil.copyStreams(logcatData.createInputStream(), baos);
-                stream = new ByteArrayInputStreamSource(baos.toByteArray());
-            } catch (IOException e) {
-                CLog.e("error inserting compatibility test result into logcat");
-                CLog.e(e);
-                // fallback to logcat data
-                stream = logcatData;
-            }
+        try (InputStreamSource stream =
+                new HeaderPrefixedInputStreamSource(
+                        header.getBytes(StandardCharsets.UTF_8),
+                        getLogcatData(logcatStartOffset, logcatEndOffset))) {
             listener.testLog("logcat_" + result.packageName, LogDataType.LOGCAT, stream);
-        } finally {
-            StreamUtil.cancel(stream);
+        }
+    }
+
+    /**
+     * Starts capturing the device logcat. The capture shared by all tests on the device is used
+     * when it is running, otherwise a capture dedicated to this test is started.
+     */
+    private void startLogcat() {
+        mLogcat = DeviceLogcatCollector.get(getDevice());
+        if (mLogcat != null) {
+            CLog.d("Using the shared logcat capture of the device.");
+            return;
+        }
+        try {
+            mLogcat = DeviceLogcatCollector.startDedicated(getDevice(), LOGCAT_SIZE_BYTES);
+            mOwnsLogcat = true;
+        } catch (IOException e) {
+            CLog.e("Failed to start capturing the logcat.");
+            CLog.e(e);
+        }
+    }
+
+    private void stopLogcat() {
+        if (mOwnsLogcat) {
+            mLogcat.close();
+            mOwnsLogcat = false;
+        }
+        mLogcat = null;
+    }
+
+    /** Returns the current logcat offset used to cut the log of a single package. */
+    private long getLogcatOffset() {
+        return mLogcat != null ? mLogcat.getOffset() : 0;
+    }
+
+    /** Returns the logcat written between two offsets. */
+    private InputStreamSource getLogcatData(long startOffset, long endOffset) {
+        if (mLogcat == null) {
+            return new ByteArrayInputStreamSource(new byte[0]);
+        }
+        return mLogcat.getSlice(startOffset, endOffset);
+    }
+
+    /**
+     * Times repeated launches of a successfully launched package when measurements are enabled
+     * and returns their summary as metrics. The summary is reported with the package only and
+     * not aggregated over the run.
+     */
+    private Map<String, Metric> measureLaunchTimes(CompatibilityTestResult result)
+            throws DeviceNotAvailableException {
+        if (mLaunchMeasurementCount <= 0
+                || !CompatibilityTestResult.STATUS_SUCCESS.equals(result.status)) {
+            return Collections.emptyMap();
+        }
+        CLog.d("Measuring the launch times of package: %s.", result.packageName);
+        return LaunchTimeMeasurer.toMetrics(
+                new LaunchTimeMeasurer(mDevice, mLaunchMeasurementCount, mAppLaunchTimeoutMs)
+                        .measure(result.packageName));
+    }
+
+    /** Adds the time to fully drawn of a launched package found in its logcat, if any. */
+    private void addTimeToFullyDrawn(
+            Map<String, Long> metrics, String packageName, long startOffset, long endOffset) {
+        if (!metrics.containsKey(LaunchMetrics.LAUNCH_DURATION)) {
+            return;
+        }
+        try (InputStreamSource logcat = getLogcatData(startOffset, endOffset)) {
+            long timeToFullyDrawn = LaunchMetrics.parseTimeToFullyDrawn(logcat, packageName);
+            if (timeToFullyDrawn >= 0) {
+                metrics.put(LaunchMetrics.TIME_TO_FULLY_DRAWN, timeToFullyDrawn);
+            }
         }
     }
 
@@ -341,12 +1157,163 @@ public class AppLaunchTest
         return false;
     }
 
-    protected CommandResult resetPackage() throws DeviceNotAvailableException {
-        return mDevice.executeShellV2Command(String.format("pm clear %s", mPackageName));
+    protected CommandResult resetPackage(String packageName) throws DeviceNotAvailableException {
+        return mDevice.executeShellV2Command(String.format("pm clear %s", packageName));
+    }
+
+    private void stopPackage(String packageName) throws DeviceNotAvailableException {
+        mDevice.executeShellCommand(String.format("am force-stop %s", packageName));
+    }
+
+    /**
+     * Creates the policy that decides which packages are retried in this run. The retry budget is
+     * shared with the other shards of the batch, or else with the other tests of the invocation.
+     */
+    private LaunchRetryPolicy createRetryPolicy(TestInformation testInfo) {
+        LaunchRetryPolicy.Budget budget = mSharedRetryBudget;
+        if (budget == null) {
+            budget =
+                    testInfo != null
+                            ? LaunchRetryPolicy.Budget.forInvocation(
+                                    testInfo.properties(), mRetryBudget)
+                            : new LaunchRetryPolicy.Budget(mRetryBudget);
+        }
+        return new LaunchRetryPolicy(getmRetryCount(), budget, mRetryFailureKinds);
+    }
+
+    /** Returns the result history store, or null if no history file was specified. */
+    private LaunchResultStore getResultStore() {
+        return mResultHistoryFile == null
+                ? null
+                : LaunchResultStore.open(mResultHistoryFile.toPath());
+    }
+
+    /** Returns the estimator used to order packages, backed by the result history if kept. */
+    private LaunchDurationEstimator getDurationEstimator() {
+        LaunchResultStore store = getResultStore();
+        return store != null ? store : LaunchDurationEstimator.UNKNOWN;
+    }
+
+    /** Appends the result of a tested package to the result history if one is kept. */
+    private void recordResult(
+            CompatibilityTestResult result,
+            LaunchFailureKind failureKind,
+            List<String> attemptOutcomes,
+            Map<String, Long> metrics,
+            long startTime,
+            long endTime)
+            throws DeviceNotAvailableException {
+        LaunchResultStore store = getResultStore();
+        if (store == null || result.status == null) {
+            return;
+        }
+
+        FailureFingerprint fingerprint = getFailureFingerprint(result);
+        LaunchResultStore.PackageSetup setup = store.getSetup(result.packageName);
+        store.clearSetup(result.packageName);
+        LaunchRecord record =
+                LaunchRecord.builder()
+                        .setPackageName(result.packageName)
+                        .setVersionCode(getVersionCode(result.packageName))
+                        .setStatus(result.status)
+                        .setTimestampMillis(endTime)
+                        .setLaunchLatencyMillis(
+                                endTime > startTime && startTime > 0
+                                        ? endTime - startTime
+                                        : LaunchRecord.UNKNOWN)
+                        .setTimeToLaunchMillis(getTimeToLaunch(metrics))
+                        .setInstallTimeMillis(setup.getInstallTimeMillis())
+                        .setFailureSignature(
+                                fingerprint != null
+                                        ? truncate(
+                                                fingerprint.getSignature(),
+                                                MAX_FAILURE_SIGNATURE_LENGTH)
+                                        : null)
+                        .setFailureFingerprint(fingerprint != null ? fingerprint.getId() : null)
+                        .setFailureKind(failureKind != null ? failureKind.name() : null)
+                        .setAttemptOutcomes(attemptOutcomes)
+                        .setApkHash(setup.getApkHash())
+                        .build();
+        try {
+            store.append(record);
+        } catch (IOException e) {
+            CLog.e("Failed to record the result of package %s", result.packageName);
+            CLog.e(e);
+        }
+    }
+
+    /**
+     * Returns the earliest of the time to first frame and time to resume reported for a launch, or
+     * {@link LaunchRecord#UNKNOWN} if neither was reported.
+     */
+    private static long getTimeToLaunch(Map<String, Long> metrics) {
+        long timeToLaunch = LaunchRecord.UNKNOWN;
+        for (String name :
+                Arrays.asList(LaunchMetrics.TIME_TO_FIRST_FRAME, LaunchMetrics.TIME_TO_RESUMED)) {
+            Long value = metrics.get(name);
+            if (value != null
+                    && value >= 0
+                    && (timeToLaunch == LaunchRecord.UNKNOWN || value < timeToLaunch)) {
+                timeToLaunch = value;
+            }
+        }
+        return timeToLaunch;
+    }
+
+    private long getVersionCode(String packageName) throws DeviceNotAvailableException {
+        try {
+            return PackageInventory.get(mDevice)
+                    .getEntry(packageName)
+                    .map(PackageInventory.Entry::getVersionCode)
+                    .orElse(LaunchRecord.UNKNOWN);
+        } catch (TargetSetupError e) {
+            CLog.w("Failed to get the version code of %s: %s", packageName, e.getMessage());
+            return LaunchRecord.UNKNOWN;
+        }
+    }
+
+    /** Returns the fingerprint of the failure of a package, or null if it passed. */
+    private static FailureFingerprint getFailureFingerprint(CompatibilityTestResult result) {
+        if (CompatibilityTestResult.STATUS_SUCCESS.equals(result.status)) {
+            return null;
+        }
+        return FailureFingerprint.of(Strings.nullToEmpty(result.message), result.packageName);
     }
 
-    private void stopPackage() throws DeviceNotAvailableException {
-        mDevice.executeShellCommand(String.format("am force-stop %s", mPackageName));
+    private static String truncate(String value, int maxLength) {
+        return value.length() > maxLength ? value.substring(0, maxLength) : value;
+    }
+
+    /**
+     * Writes the failures recorded in the result history grouped by cause to the failure cluster
+     * file if one was specified.
+     */
+    private void writeFailureClusters() {
+        LaunchResultStore store = getResultStore();
+        if (mFailureClusterFile == null || store == null) {
+            return;
+        }
+
+        StringBuilder content = new StringBuilder();
+        for (FailureCluster cluster : store.getFailureClusters()) {
+            content.append(
+                    String.join(
+                            "\t",
+                            cluster.getFingerprint(),
+                            Integer.toString(cluster.getCount()),
+                            Integer.toString(cluster.getPackageNames().size()),
+                            cluster.getSignature(),
+                            String.join(PACKAGE_SEPARATOR, cluster.getPackageNames())));
+            content.append(System.lineSeparator());
+        }
+        try {
+            Files.write(
+                    mFailureClusterFile.toPath(),
+                    content.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            CLog.e("Failed to write the failure clusters to %s", mFailureClusterFile);
+            CLog.e(e);
+        }
     }
 
     @Override
@@ -370,16 +1337,17 @@ public class AppLaunchTest
         return mDevice;
     }
 
+    /** Returns the maximum number of retries of a package, honouring the deprecated alias. */
     public int getmRetryCount() {
-        return mRetryCount;
+        return mRetryCount != null ? mRetryCount : mMaxRetriesPerPackage;
     }
 
     /**
      * Get a test description for use in logging. For compatibility with logs, this should be
      * TestDescription(test class name, test type).
      */
-    private TestDescription createTestDescription() {
-        return new TestDescription(getClass().getSimpleName(), mPackageName);
+    private TestDescription createTestDescription(String packageName) {
+        return new TestDescription(getClass().getSimpleName(), packageName);
     }
 
     /** Get a FailureCollectingListener for failure listening. */
@@ -446,4 +1414,151 @@ public class AppLaunchTest
     public Set<String> getExcludeFilters() {
         return Collections.unmodifiableSet(mExcludeFilters);
     }
+
+    /** An {@link InputStreamSource} that prepends a header to the content of another source. */
+    private static final class HeaderPrefixedInputStreamSource implements InputStreamSource {
+        private final byte[] mHeader;
+        private final InputStreamSource mSource;
+
+        HeaderPrefixedInputStreamSource(byte[] header, InputStreamSource source) {
+            mHeader = header;
+            mSource = source;
+        }
+
+        @Override
+        public InputStream createInputStream() {
+            return new SequenceInputStream(
+                    new ByteArrayInputStream(mHeader), mSource.createInputStream());
+        }
+
+        @Override
+        public long size() {
+            return mHeader.length + mSource.size();
+        }
+
+        @Override
+        public void close() {
+            mSource.close();
+        }
+    }
+
+    /** The outcome of the latest launch attempt of a package in a batch. */
+    private static final class LaunchAttempt {
+        final CompatibilityTestResult result = new CompatibilityTestResult();
+        // The launch timings of the package, in milliseconds.
+        final Map<String, Long> metrics = new LinkedHashMap<>();
+        // The time series sampled on the device, as comma separated values.
+        final Map<String, String> series = new LinkedHashMap<>();
+        // The summary of the repeated launch time measurements of the package.
+        final Map<String, Metric> launchTimeMetrics = new HashMap<>();
+        // The kind of failure of the launch, null if it did not fail.
+        LaunchFailureKind failureKind;
+        long startTime = System.currentTimeMillis();
+        long endTime = 0;
+        long logcatStartOffset;
+        long logcatEndOffset;
+
+        LaunchAttempt(String packageName, long logcatOffset) {
+            result.packageName = packageName;
+            logcatStartOffset = logcatOffset;
+            logcatEndOffset = logcatOffset;
+        }
+    }
+
+    /**
+     * Splits the results of a batched instrumentation run by package. The on-device test reports
+     * one parameterized test case named {@code testAppStability[<package>]} per package.
+     */
+    private static final class BatchResultCollector implements ITestInvocationListener {
+        private final Map<String, FailureCollectingListener> mListeners = new HashMap<>();
+        private final Map<String, Long> mStartTimes = new HashMap<>();
+        private final Map<String, Long> mEndTimes = new HashMap<>();
+        private final Map<String, Long> mLogcatStartOffsets = new HashMap<>();
+        private final Map<String, Long> mLogcatEndOffsets = new HashMap<>();
+        private final LongSupplier mLogcatOffsetSupplier;
+        private String mCurrentPackage;
+        private String mRunFailure;
+
+        BatchResultCollector(LongSupplier logcatOffsetSupplier) {
+            mLogcatOffsetSupplier = logcatOffsetSupplier;
+        }
+
+        @Override
+        public void testStarted(TestDescription test) {
+            mCurrentPackage = getPackageName(test);
+            mListeners.put(mCurrentPackage, new FailureCollectingListener());
+            mStartTimes.put(mCurrentPackage, System.currentTimeMillis());
+            mLogcatStartOffsets.put(mCurrentPackage, mLogcatOffsetSupplier.getAsLong());
+        }
+
+        @Override
+        public void testFailed(TestDescription test, String trace) {
+            FailureCollectingListener listener = mListeners.get(getPackageName(test));
+            if (listener != null) {
+                listener.testFailed(test, trace);
+            }
+        }
+
+        @Override
+        public void testAssumptionFailure(TestDescription test, String trace) {
+            FailureCollectingListener listener = mListeners.get(getPackageName(test));
+            if (listener != null) {
+                listener.testAssumptionFailure(test, trace);
+            }
+        }
+
+        @Override
+        public void testEnded(TestDescription test, HashMap<String, Metric> testMetrics) {
+            FailureCollectingListener listener = mListeners.get(getPackageName(test));
+            if (listener != null) {
+                listener.testEnded(test, testMetrics);
+            }
+            mEndTimes.put(getPackageName(test), System.currentTimeMillis());
+            mLogcatEndOffsets.put(getPackageName(test), mLogcatOffsetSupplier.getAsLong());
+            mCurrentPackage = null;
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+            mRunFailure = errorMessage;
+            // The package being launched when the run failed did not complete its test case.
+            if (mCurrentPackage != null) {
+                mListeners.get(mCurrentPackage).testRunFailed(errorMessage);
+            }
+        }
+
+        FailureCollectingListener getListener(String packageName) {
+            return mListeners.get(packageName);
+        }
+
+        long getStartTime(String packageName) {
+            return mStartTimes.getOrDefault(packageName, System.currentTimeMillis());
+        }
+
+        long getEndTime(String packageName) {
+            return mEndTimes.getOrDefault(packageName, System.currentTimeMillis());
+        }
+
+        long getLogcatStartOffset(String packageName) {
+            return mLogcatStartOffsets.getOrDefault(packageName, 0L);
+        }
+
+        long getLogcatEndOffset(String packageName, long defaultOffset) {
+            return mLogcatEndOffsets.getOrDefault(packageName, defaultOffset);
+        }
+
+        String getRunFailure() {
+            return mRunFailure;
+        }
+
+        private static String getPackageName(TestDescription test) {
+            String testName = test.getTestName();
+            int start = testName.indexOf('[');
+            int end = testName.lastIndexOf(']');
+            if (start < 0 || end < start) {
+                return testName;
+            }
+            return testName.substring(start + 1, end);
+        }
+    }
 }
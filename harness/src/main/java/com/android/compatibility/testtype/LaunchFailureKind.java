@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.testtype;
+
+import com.android.compatibility.FailureCollectingListener;
+import com.android.compatibility.FailureCollectingListener.EventKind;
+import com.android.compatibility.FailureCollectingListener.FailureRecord;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/** The kind of failure an app launch ended with, as classified from the failure records. */
+enum LaunchFailureKind {
+    /** The app crashed in managed or native code. */
+    CRASH,
+    /** The app stopped responding. */
+    ANR,
+    /** The on-device test process crashed or the instrumentation run failed. */
+    INSTRUMENTATION_CRASH,
+    /** The instrumentation run did not complete in time. */
+    TIMEOUT,
+    /** The package has no activity to launch. Such launches are still reported as passed. */
+    NO_LAUNCH_INTENT,
+    /** The test failed for another reason, such as the app exiting without crashing. */
+    OTHER;
+
+    // Reported by the on-device test when the package has no launch intent.
+    static final String NO_LAUNCH_INTENT_METRIC = "no_launch_intent";
+
+    // Errors collected by the on-device test are typed as "### Type: <type>, Details:" and process
+    // exits are described with their exit reason.
+    private static final Pattern ANR_PATTERN =
+            Pattern.compile("### Type: (?:ANR|dropbox:\\w*_anr)\\b|reason: ANR\\b");
+    private static final Pattern CRASH_PATTERN =
+            Pattern.compile(
+                    "### Type: (?:crash|dropbox:\\w*_crash|dropbox:SYSTEM_TOMBSTONE)\\b"
+                            + "|reason: CRASH(?:_NATIVE)?\\b");
+    private static final Pattern TIMEOUT_PATTERN = Pattern.compile("timed out|timeout");
+
+    /**
+     * Classifies the failures collected from the instrumentation run of a package.
+     *
+     * @return the kind of failure, or null if the launch did not fail.
+     */
+    static LaunchFailureKind classify(FailureCollectingListener listener) {
+        Metric noLaunchIntent = listener.getTestMetrics().get(NO_LAUNCH_INTENT_METRIC);
+        if (noLaunchIntent != null
+                && "true".equals(noLaunchIntent.getMeasurements().getSingleString())) {
+            return NO_LAUNCH_INTENT;
+        }
+        if (listener.getFailures().isEmpty()) {
+            return null;
+        }
+
+        boolean crashed = false;
+        for (FailureRecord failure : listener.getFailures()) {
+            if (failure.getKind() == EventKind.RUN_FAILED) {
+                return classifyRunFailure(failure.getTrace());
+            }
+        }
+        for (FailureRecord failure : listener.getFailures()) {
+            // An app that stops responding is usually killed, so an ANR takes precedence.
+            if (ANR_PATTERN.matcher(failure.getTrace()).find()) {
+                return ANR;
+            }
+            crashed |= CRASH_PATTERN.matcher(failure.getTrace()).find();
+        }
+        return crashed ? CRASH : OTHER;
+    }
+
+    /** Classifies the error message of an instrumentation run that failed. */
+    static LaunchFailureKind classifyRunFailure(String errorMessage) {
+        return TIMEOUT_PATTERN.matcher(errorMessage.toLowerCase(Locale.ROOT)).find()
+                ? TIMEOUT
+                : INSTRUMENTATION_CRASH;
+    }
+
+    /** Returns whether launching the package again may end differently. */
+    boolean isRetryable() {
+        return this != NO_LAUNCH_INTENT;
+    }
+}
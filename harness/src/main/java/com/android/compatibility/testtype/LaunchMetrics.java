@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.testtype;
+
+import com.android.csuite.core.Statistics;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Directionality;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.InputStreamSource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects the launch timings, resource usage and frame timings of the packages tested in a run and
+ * converts them to metrics.
+ *
+ * <p>Values are durations in milliseconds unless their name ends with another unit or names a
+ * count. Each tested package is reported with its own values while the run is reported with the
+ * median and maximum value of each metric. The time series sampled on the device are reported as
+ * is for each package.
+ */
+final class LaunchMetrics {
+    // Reported by the on-device test.
+    static final String LAUNCH_DURATION = "launch_duration_ms";
+    static final String TIME_TO_FIRST_FRAME = "time_to_first_frame_ms";
+    static final String TIME_TO_RESUMED = "time_to_resumed_ms";
+    static final String PEAK_PSS = "peak_pss_kb";
+    static final String PEAK_RSS = "peak_rss_kb";
+    static final String PEAK_THREADS = "peak_thread_count";
+    static final String CPU_TIME = "cpu_time_ms";
+    static final String TOTAL_FRAMES = "total_frames";
+    static final String JANKY_FRAMES = "janky_frames";
+    static final String JANKY_FRAMES_PERCENT = "janky_frames_percent";
+    static final String FRAME_TIME_P50 = "frame_time_p50_ms";
+    static final String FRAME_TIME_P90 = "frame_time_p90_ms";
+    static final String FRAME_TIME_P99 = "frame_time_p99_ms";
+    // Measured on the host.
+    static final String TIME_TO_FULLY_DRAWN = "time_to_fully_drawn_ms";
+    static final String PM_CLEAR_DURATION = "pm_clear_ms";
+    static final String INSTRUMENTATION_OVERHEAD = "instrumentation_overhead_ms";
+    static final String WALL_TIME = "wall_time_ms";
+    static final String LAUNCH_ATTEMPTS = "launch_attempts";
+
+    static final String MEDIAN_SUFFIX = "_median";
+    static final String MAX_SUFFIX = "_max";
+    // Comma separated values sampled on the device, such as "pss_kb_series".
+    static final String SERIES_SUFFIX = "_series";
+
+    private static final List<String> DEVICE_METRICS =
+            Arrays.asList(
+                    LAUNCH_DURATION,
+                    TIME_TO_FIRST_FRAME,
+                    TIME_TO_RESUMED,
+                    PEAK_PSS,
+                    PEAK_RSS,
+                    PEAK_THREADS,
+                    CPU_TIME,
+                    TOTAL_FRAMES,
+                    JANKY_FRAMES,
+                    JANKY_FRAMES_PERCENT,
+                    FRAME_TIME_P50,
+                    FRAME_TIME_P90,
+                    FRAME_TIME_P99);
+    // Matches lines like "ActivityTaskManager: Fully drawn com.example/.Main: +1s234ms".
+    private static final Pattern FULLY_DRAWN_PATTERN =
+            Pattern.compile("Fully drawn (\\S+)/\\S+: \\+(?:(\\d+)s)?(\\d+)ms");
+
+    private final Map<String, List<Long>> mRunValues = new LinkedHashMap<>();
+
+    /** Returns the values reported by the on-device test among the metrics of a test case. */
+    static Map<String, Long> getDeviceValues(Map<String, Metric> metrics) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (String name : DEVICE_METRICS) {
+            Metric metric = metrics.get(name);
+            if (metric == null) {
+                continue;
+            }
+            Measurements measurements = metric.getMeasurements();
+            try {
+                switch (measurements.getMeasurementCase()) {
+                    case SINGLE_INT:
+                        values.put(name, measurements.getSingleInt());
+                        break;
+                    case SINGLE_STRING:
+                        values.put(name, Long.parseLong(measurements.getSingleString().trim()));
+                        break;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                CLog.w("Ignoring malformed metric %s: %s", name, measurements);
+            }
+        }
+        return values;
+    }
+
+    /** Returns the time series reported by the on-device test among the metrics of a test case. */
+    static Map<String, String> getDeviceSeries(Map<String, Metric> metrics) {
+        Map<String, String> series = new LinkedHashMap<>();
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            Measurements measurements = entry.getValue().getMeasurements();
+            if (entry.getKey().endsWith(SERIES_SUFFIX) && measurements.hasSingleString()) {
+                series.put(entry.getKey(), measurements.getSingleString());
+            }
+        }
+        return series;
+    }
+
+    /**
+     * Returns the time to fully drawn reported by the last activity of a package that called
+     * {@code reportFullyDrawn} in a logcat, or -1 if none did.
+     */
+    static long parseTimeToFullyDrawn(InputStreamSource logcat, String packageName) {
+        long timeToFullyDrawn = -1;
+        try (InputStream in = logcat.createInputStream()) {
+            if (in == null) {
+                return -1;
+            }
+            BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.contains("Fully drawn")) {
+                    continue;
+                }
+                Matcher matcher = FULLY_DRAWN_PATTERN.matcher(line);
+                if (matcher.find() && matcher.group(1).equals(packageName)) {
+                    long seconds = matcher.group(2) != null ? Long.parseLong(matcher.group(2)) : 0;
+                    timeToFullyDrawn = seconds * 1000 + Long.parseLong(matcher.group(3));
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to read the logcat of %s: %s", packageName, e.getMessage());
+        }
+        return timeToFullyDrawn;
+    }
+
+    /**
+     * Adds the values reported by the on-device test to the values of the packages launched by an
+     * instrumentation run. The part of the run not spent launching packages is split evenly
+     * between them as overhead.
+     *
+     * @param packageValues the values of each launched package, keyed by package name.
+     * @param testMetrics the metrics of the test case of each package that reported one.
+     * @param runDurationMillis the wall time of the instrumentation run.
+     */
+    static void addInstrumentationValues(
+            Map<String, Map<String, Long>> packageValues,
+            Map<String, Map<String, Metric>> testMetrics,
+            long runDurationMillis) {
+        if (packageValues.isEmpty()) {
+            return;
+        }
+
+        long launchDurations = 0;
+        for (Map.Entry<String, Map<String, Long>> entry : packageValues.entrySet()) {
+            Map<String, Metric> metrics = testMetrics.get(entry.getKey());
+            if (metrics != null) {
+                entry.getValue().putAll(getDeviceValues(metrics));
+            }
+            launchDurations += entry.getValue().getOrDefault(LAUNCH_DURATION, 0L);
+        }
+
+        long overhead = Math.max(0, runDurationMillis - launchDurations) / packageValues.size();
+        for (Map<String, Long> values : packageValues.values()) {
+            values.put(INSTRUMENTATION_OVERHEAD, overhead);
+            values.put(
+                    WALL_TIME,
+                    values.getOrDefault(PM_CLEAR_DURATION, 0L)
+                            + values.getOrDefault(LAUNCH_DURATION, 0L)
+                            + overhead);
+        }
+    }
+
+    /** Adds the values of a tested package to the run and returns them as metrics. */
+    HashMap<String, Metric> addPackageValues(Map<String, Long> values) {
+        return addPackageValues(values, Collections.emptyMap());
+    }
+
+    /**
+     * Adds the values of a tested package to the run and returns them as metrics along with the
+     * time series of the package.
+     */
+    HashMap<String, Metric> addPackageValues(Map<String, Long> values, Map<String, String> series) {
+        HashMap<String, Metric> metrics = new HashMap<>();
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            mRunValues
+                    .computeIfAbsent(entry.getKey(), k -> new ArrayList<>())
+                    .add(entry.getValue());
+            metrics.put(entry.getKey(), createMetric(entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<String, String> entry : series.entrySet()) {
+            metrics.put(
+                    entry.getKey(),
+                    Metric.newBuilder()
+                            .setMeasurements(
+                                    Measurements.newBuilder().setSingleString(entry.getValue()))
+                            .setUnit(getUnit(entry.getKey()))
+                            .setType(DataType.RAW)
+                            .build());
+        }
+        return metrics;
+    }
+
+    /** Returns the median and maximum of each metric over the packages tested in the run. */
+    HashMap<String, Metric> getRunMetrics() {
+        HashMap<String, Metric> metrics = new HashMap<>();
+        for (Map.Entry<String, List<Long>> entry : mRunValues.entrySet()) {
+            metrics.put(
+                    entry.getKey() + MEDIAN_SUFFIX,
+                    createMetric(
+                            entry.getKey(), Math.round(Statistics.median(entry.getValue()))));
+            metrics.put(
+                    entry.getKey() + MAX_SUFFIX,
+                    createMetric(entry.getKey(), Collections.max(entry.getValue())));
+        }
+        return metrics;
+    }
+
+    private static Metric createMetric(String name, long value) {
+        return createMetric(name, value, getUnit(name));
+    }
+
+    /** Creates the metric of a value whose unit can't be derived from its name. */
+    static Metric createMetric(String name, long value, String unit) {
+        return Metric.newBuilder()
+                .setMeasurements(Measurements.newBuilder().setSingleInt(value))
+                .setUnit(unit)
+                .setDirection(
+                        name.equals(TOTAL_FRAMES)
+                                ? Directionality.DIRECTIONALITY_UNSPECIFIED
+                                : Directionality.DOWN_BETTER)
+                .setType(DataType.RAW)
+                .build();
+    }
+
+    private static String getUnit(String name) {
+        String baseName =
+                name.endsWith(SERIES_SUFFIX)
+                        ? name.substring(0, name.length() - SERIES_SUFFIX.length())
+                        : name;
+        if (baseName.endsWith("_kb")) {
+            return "kB";
+        }
+        if (baseName.endsWith("_ms")) {
+            return "ms";
+        }
+        if (baseName.endsWith("_percent")) {
+            return "%";
+        }
+        return "";
+    }
+}
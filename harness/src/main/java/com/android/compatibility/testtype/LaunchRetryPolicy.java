@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.testtype;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.CompatibilityTestResult;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Decides whether a package is launched again after a failed launch.
+ *
+ * <p>Only the kinds of failure that are known to be flaky are retried, such as instrumentation
+ * timeouts or the device failing to reset the package. Crashes and ANRs are usually deterministic
+ * and are reported after the first attempt, as are unrecognized failures unless configured
+ * otherwise. The retries of all the packages tested in an invocation are taken from a shared
+ * {@link Budget}.
+ */
+final class LaunchRetryPolicy {
+    static final Set<LaunchFailureKind> DEFAULT_RETRYABLE_KINDS =
+            Collections.unmodifiableSet(
+                    EnumSet.of(
+                            LaunchFailureKind.TIMEOUT,
+                            LaunchFailureKind.INSTRUMENTATION_CRASH));
+
+    private final int mMaxRetriesPerPackage;
+    private final Set<LaunchFailureKind> mRetryableKinds;
+    private final Budget mBudget;
+
+    /**
+     * @param maxRetriesPerPackage the number of times a package may be launched again.
+     * @param retryBudget the number of retries of all packages, negative for no limit.
+     * @param retryableKinds the kinds of failure to retry, {@link #DEFAULT_RETRYABLE_KINDS} if
+     *     empty.
+     */
+    LaunchRetryPolicy(
+            int maxRetriesPerPackage, int retryBudget, Set<LaunchFailureKind> retryableKinds) {
+        this(maxRetriesPerPackage, new Budget(retryBudget), retryableKinds);
+    }
+
+    /**
+     * @param maxRetriesPerPackage the number of times a package may be launched again.
+     * @param budget the retries of all packages, possibly shared with other policies.
+     * @param retryableKinds the kinds of failure to retry, {@link #DEFAULT_RETRYABLE_KINDS} if
+     *     empty.
+     */
+    LaunchRetryPolicy(
+            int maxRetriesPerPackage, Budget budget, Set<LaunchFailureKind> retryableKinds) {
+        mMaxRetriesPerPackage = maxRetriesPerPackage;
+        mBudget = budget;
+        mRetryableKinds =
+                retryableKinds.isEmpty()
+                        ? DEFAULT_RETRYABLE_KINDS
+                        : Collections.unmodifiableSet(EnumSet.copyOf(retryableKinds));
+    }
+
+    /**
+     * Returns whether a package is launched again after a launch attempt, and takes the retry from
+     * the budget if so.
+     *
+     * @param result the result of the launch attempt.
+     * @param failureKind the kind of failure of the attempt, null if the launch did not fail or
+     *     could not be attempted.
+     * @param retryCount the number of times the package has already been retried.
+     */
+    boolean shouldRetry(
+            CompatibilityTestResult result,
+            @Nullable LaunchFailureKind failureKind,
+            int retryCount) {
+        if (!isRetryable(result, failureKind) || retryCount >= mMaxRetriesPerPackage) {
+            return false;
+        }
+        if (!mBudget.take()) {
+            CLog.i("Not retrying package %s as the retry budget is exhausted.", result.packageName);
+            return false;
+        }
+        CLog.i(
+                "Retrying package %s after %s.",
+                result.packageName,
+                getOutcome(result, failureKind));
+        return true;
+    }
+
+    /** Returns whether the failure of a launch attempt may go away when launching again. */
+    boolean isRetryable(CompatibilityTestResult result, @Nullable LaunchFailureKind failureKind) {
+        if (CompatibilityTestResult.STATUS_SUCCESS.equals(result.status)) {
+            return false;
+        }
+        // The launch could not be attempted, for example because the package could not be reset.
+        if (failureKind == null) {
+            return true;
+        }
+        return failureKind.isRetryable() && mRetryableKinds.contains(failureKind);
+    }
+
+    /** Returns the number of retries left in the budget, negative if unlimited. */
+    int getRemainingBudget() {
+        return mBudget.getRemaining();
+    }
+
+    /**
+     * Describes the outcome of a launch attempt as the kind of failure it ended with, or its status
+     * if it did not fail or could not be attempted.
+     */
+    static String getOutcome(
+            CompatibilityTestResult result, @Nullable LaunchFailureKind failureKind) {
+        return failureKind != null ? failureKind.name() : String.valueOf(result.status);
+    }
+
+    /**
+     * The number of retries left for the packages of an invocation.
+     *
+     * <p>A test module is run per package when modules are generated, and a sharded batch is run
+     * by several tests, so the budget outlives the tests that use it. This class is thread-safe.
+     */
+    static final class Budget {
+        // The budgets of the invocations in progress, keyed by their execution properties.
+        private static final Map<Object, Budget> sInvocationBudgets =
+                Collections.synchronizedMap(new WeakHashMap<>());
+
+        // The number of retries left, negative if unlimited.
+        private int mRemaining;
+
+        /** @param size the number of retries, negative for no limit. */
+        Budget(int size) {
+            mRemaining = size;
+        }
+
+        /**
+         * Returns the budget shared by the tests of an invocation, creating it with the given size
+         * for the first test.
+         *
+         * @param invocationKey an object shared by all the tests of the invocation only.
+         * @param size the number of retries, negative for no limit.
+         */
+        static Budget forInvocation(Object invocationKey, int size) {
+            return sInvocationBudgets.computeIfAbsent(invocationKey, k -> new Budget(size));
+        }
+
+        /** Takes a retry from the budget, returns false if none is left. */
+        synchronized boolean take() {
+            if (mRemaining == 0) {
+                return false;
+            }
+            if (mRemaining > 0) {
+                mRemaining--;
+            }
+            return true;
+        }
+
+        /** Returns the number of retries left, negative if unlimited. */
+        synchronized int getRemaining() {
+            return mRemaining;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.testtype;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.android.csuite.core.Statistics;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the launch time of a package over repeated cold, warm and hot launches.
+ *
+ * <p>Launches are started with {@code am start -W} and timed by the activity manager. A cold
+ * launch starts from a stopped package and, when adb runs as root, an empty page cache. A warm
+ * launch starts from a running process whose activity was closed with the back key, and a hot
+ * launch from an activity sent to the background with the home key. Launches are classified by the
+ * launch state reported by the activity manager when available since apps may, for example,
+ * handle the back key themselves.
+ *
+ * <p>The outliers of each launch type are discarded before the median, 90th percentile and
+ * standard deviation are reported.
+ */
+final class LaunchTimeMeasurer {
+    @VisibleForTesting static final String DROP_CACHES_COMMAND =
+            "sync && echo 3 > /proc/sys/vm/drop_caches";
+    private static final Pattern LAUNCH_STATE_PATTERN =
+            Pattern.compile("^LaunchState: (\\w+)\\s*$", Pattern.MULTILINE);
+    private static final Pattern TOTAL_TIME_PATTERN =
+            Pattern.compile("^TotalTime: (\\d+)\\s*$", Pattern.MULTILINE);
+    private static final Pattern WAIT_TIME_PATTERN =
+            Pattern.compile("^WaitTime: (\\d+)\\s*$", Pattern.MULTILINE);
+    // The number of launches discarded as outliers, reported as a count.
+    private static final String OUTLIERS = "outliers";
+
+    /** The state a package is launched from. */
+    enum LaunchType {
+        COLD,
+        WARM,
+        HOT;
+
+        String getMetricName(String statistic) {
+            return name().toLowerCase(Locale.US) + "_launch_ms_" + statistic;
+        }
+    }
+
+    private final ITestDevice mDevice;
+    private final int mLaunchCount;
+    private final long mLaunchTimeoutMillis;
+
+    LaunchTimeMeasurer(ITestDevice device, int launchCount, long launchTimeoutMillis) {
+        checkArgument(launchCount > 0, "launchCount (%s) must be positive", launchCount);
+        mDevice = device;
+        mLaunchCount = launchCount;
+        mLaunchTimeoutMillis = launchTimeoutMillis;
+    }
+
+    /**
+     * Launches a package the configured number of times for each launch type and returns the
+     * summary of the launch times. Returns an empty map if the package has no launcher activity.
+     */
+    Map<String, Long> measure(String packageName) throws DeviceNotAvailableException {
+        String component = resolveLauncherActivity(packageName);
+        if (component == null) {
+            CLog.w("Not measuring launch times of %s without a launcher activity", packageName);
+            return new LinkedHashMap<>();
+        }
+        boolean canDropCaches = mDevice.isAdbRoot();
+        if (!canDropCaches) {
+            CLog.w("Cold launches of %s keep the page cache as adb is not root", packageName);
+        }
+
+        Map<LaunchType, List<Long>> launchTimes = new EnumMap<>(LaunchType.class);
+        for (LaunchType type : LaunchType.values()) {
+            launchTimes.put(type, new ArrayList<>());
+        }
+
+        for (int i = 0; i < mLaunchCount; i++) {
+            mDevice.executeShellCommand("am force-stop " + packageName);
+            if (canDropCaches) {
+                mDevice.executeShellCommand(DROP_CACHES_COMMAND);
+            }
+            launch(component, LaunchType.COLD, launchTimes);
+        }
+        for (int i = 0; i < mLaunchCount; i++) {
+            mDevice.executeShellCommand("input keyevent KEYCODE_BACK");
+            launch(component, LaunchType.WARM, launchTimes);
+        }
+        for (int i = 0; i < mLaunchCount; i++) {
+            mDevice.executeShellCommand("input keyevent KEYCODE_HOME");
+            launch(component, LaunchType.HOT, launchTimes);
+        }
+        mDevice.executeShellCommand("am force-stop " + packageName);
+
+        return summarize(launchTimes);
+    }
+
+    @VisibleForTesting
+    static Map<String, Long> summarize(Map<LaunchType, List<Long>> launchTimes) {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        for (Map.Entry<LaunchType, List<Long>> entry : launchTimes.entrySet()) {
+            List<Long> kept = Statistics.withoutOutliers(entry.getValue());
+            if (kept.isEmpty()) {
+                continue;
+            }
+            LaunchType type = entry.getKey();
+            summary.put(type.getMetricName("median"), Math.round(Statistics.median(kept)));
+            summary.put(type.getMetricName("p90"), Math.round(Statistics.percentile(kept, 90)));
+            summary.put(
+                    type.getMetricName("stddev"), Math.round(Statistics.standardDeviation(kept)));
+            summary.put(
+                    type.getMetricName(OUTLIERS),
+                    (long) (entry.getValue().size() - kept.size()));
+        }
+        return summary;
+    }
+
+    /**
+     * Converts a summary of launch times to metrics. The summary is already aggregated over the
+     * launches of a package so it is reported as is rather than added to the run aggregation.
+     */
+    static HashMap<String, Metric> toMetrics(Map<String, Long> summary) {
+        HashMap<String, Metric> metrics = new HashMap<>();
+        for (Map.Entry<String, Long> entry : summary.entrySet()) {
+            String unit = entry.getKey().endsWith("_" + OUTLIERS) ? "" : "ms";
+            metrics.put(
+                    entry.getKey(),
+                    LaunchMetrics.createMetric(entry.getKey(), entry.getValue(), unit));
+        }
+        return metrics;
+    }
+
+    private void launch(
+            String component, LaunchType expectedType, Map<LaunchType, List<Long>> launchTimes)
+            throws DeviceNotAvailableException {
+        CommandResult result =
+                mDevice.executeShellV2Command(
+                        "am start -W -n " + component,
+                        mLaunchTimeoutMillis,
+                        TimeUnit.MILLISECONDS);
+        if (result == null
+                || result.getStatus() != CommandStatus.SUCCESS
+                || result.getStdout() == null) {
+            CLog.w("Failed to launch %s: %s", component, result);
+            return;
+        }
+
+        String output = result.getStdout();
+        Long launchTime = findLong(TOTAL_TIME_PATTERN, output);
+        if (launchTime == null) {
+            launchTime = findLong(WAIT_TIME_PATTERN, output);
+        }
+        if (launchTime == null) {
+            CLog.w("No launch time reported for %s: %s", component, output);
+            return;
+        }
+
+        LaunchType type = expectedType;
+        Matcher matcher = LAUNCH_STATE_PATTERN.matcher(output);
+        if (matcher.find()) {
+            try {
+                type = LaunchType.valueOf(matcher.group(1));
+            } catch (IllegalArgumentException e) {
+                CLog.d("Unknown launch state %s of %s", matcher.group(1), component);
+            }
+        }
+        if (type != expectedType) {
+            CLog.d("Expected a %s launch of %s but got a %s one", expectedType, component, type);
+        }
+        launchTimes.get(type).add(launchTime);
+    }
+
+    /** Returns the component name of the launcher activity of a package, or null if none. */
+    private String resolveLauncherActivity(String packageName)
+            throws DeviceNotAvailableException {
+        String output =
+                mDevice.executeShellCommand(
+                        "cmd package resolve-activity --brief"
+                                + " -a android.intent.action.MAIN"
+                                + " -c android.intent.category.LAUNCHER "
+                                + packageName);
+        if (output == null) {
+            return null;
+        }
+        String[] lines = output.trim().split("\\r?\\n");
+        String component = lines[lines.length - 1].trim();
+        return component.startsWith(packageName + "/") ? component : null;
+    }
+
+    private static Long findLong(Pattern pattern, String output) {
+        Matcher matcher = pattern.matcher(output);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : null;
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.android.csuite.config;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import com.android.compatibility.common.tradefed.build.CompatibilityBuildHelper;
 import com.android.csuite.core.PackageNameProvider;
 import com.android.tradefed.build.IBuildInfo;
@@ -25,6 +27,7 @@ import com.android.tradefed.config.Option;
 import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.invoker.TestInformation;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.targetprep.ITargetPreparer;
@@ -33,7 +36,10 @@ import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IShardableTest;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
@@ -42,9 +48,18 @@ import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 /**
  * A tool for generating TradeFed suite modules during runtime.
@@ -61,11 +76,17 @@ import java.util.Set;
  * hacky, and in the long term a TradeFed centered solution is desired. For more details, see
  * go/sharding-hack-for-module-gen. Note that since the generate step is executed as a test instance
  * and cleanup step is executed as a target preparer, there should be no saved states between
- * generating and cleaning up module files.
+ * generating and cleaning up module files. The generated files are instead listed in a manifest
+ * written to the tests directory, which the cleanup step reads. Files listed in a manifest left by
+ * a previous run that did not clean up are deleted before generating new ones.
  *
  * <p>This module generator collects package names from all PackageNameProvider objects specified in
  * the test configs.
  *
+ * <p>When a bundle template is given, a single module that tests all the packages is generated
+ * along with an index file listing them, instead of one module per package. This keeps the number
+ * of files TradeFed has to load and clean up constant when testing tens of thousands of packages.
+ *
  * <h2>Syntax and usage</h2>
  *
  * <p>References to package name providers in TradeFed test configs must have the following syntax:
@@ -89,7 +110,15 @@ public final class ModuleGenerator
     @VisibleForTesting static final String MODULE_FILE_EXTENSION = ".config";
     @VisibleForTesting static final String OPTION_TEMPLATE = "template";
     @VisibleForTesting static final String PACKAGE_NAME_PROVIDER = "PACKAGE_NAME_PROVIDER";
-    private static final String TEMPLATE_PACKAGE_PATTERN = "\\{package\\}";
+    @VisibleForTesting static final String OPTION_GENERATION_THREADS = "generation-threads";
+    @VisibleForTesting static final String OPTION_BUNDLE_TEMPLATE = "bundle-template";
+    @VisibleForTesting static final String BUNDLE_MODULE_NAME = "csuite-bundle";
+    @VisibleForTesting static final String BUNDLE_PACKAGE_FILE_EXTENSION = ".packages";
+    @VisibleForTesting static final String GENERATION_TIME_METRIC = "csuite_module_generation_ms";
+    private static final String TEMPLATE_PACKAGE_PLACEHOLDER = "{package}";
+    private static final String TEMPLATE_PACKAGE_FILE_PLACEHOLDER = "{package_file}";
+    private static final Pattern TEMPLATE_PACKAGE_PATTERN =
+            Pattern.compile(Pattern.quote(TEMPLATE_PACKAGE_PLACEHOLDER));
     private static final Collection<IRemoteTest> NOT_SPLITABLE = null;
 
     @Option(
@@ -98,6 +127,20 @@ public final class ModuleGenerator
             importance = Importance.ALWAYS)
     private String mTemplate;
 
+    @Option(
+            name = OPTION_GENERATION_THREADS,
+            description = "Number of threads writing the generated module files.")
+    private int mGenerationThreads = 4;
+
+    @Option(
+            name = OPTION_BUNDLE_TEMPLATE,
+            description =
+                    "Bundle module config template resource path. When set, a single module "
+                            + "testing all the packages is generated from this template instead "
+                            + "of one module per package. The package names are written to an "
+                            + "index file whose path replaces the {package_file} placeholder.")
+    private String mBundleTemplate;
+
     private final TestDirectoryProvider mTestDirectoryProvider;
     private final ResourceLoader mResourceLoader;
     private final FileSystem mFileSystem;
@@ -185,41 +228,163 @@ public final class ModuleGenerator
     }
 
     private void generateModules() throws IOException {
-        String templateContent = mResourceLoader.load(mTemplate);
-
-        for (String packageName : getPackageNames()) {
+        long startTime = System.currentTimeMillis();
+        List<String> packageNames = new ArrayList<>(getPackageNames());
+        for (String packageName : packageNames) {
             validatePackageName(packageName);
-            Files.write(
-                    getModulePath(packageName),
-                    templateContent.replaceAll(TEMPLATE_PACKAGE_PATTERN, packageName).getBytes());
         }
+
+        Path testsDir = mTestDirectoryProvider.get(mBuildInfo);
+        int orphanCount = ModuleManifest.deleteGeneratedFiles(testsDir);
+        if (orphanCount > 0) {
+            CLog.w("Deleted %d files left over by a previous run", orphanCount);
+        }
+        if (packageNames.isEmpty()) {
+            return;
+        }
+
+        // The manifest lists the files before they are written so that they can be found even if
+        // the generation does not complete.
+        ModuleManifest manifest = new ModuleManifest();
+        if (mBundleTemplate != null) {
+            manifest.addPending(BUNDLE_MODULE_NAME + BUNDLE_PACKAGE_FILE_EXTENSION);
+            manifest.addPending(BUNDLE_MODULE_NAME + MODULE_FILE_EXTENSION);
+            manifest.write(testsDir);
+            generateBundle(testsDir, packageNames, manifest);
+        } else {
+            for (String packageName : packageNames) {
+                manifest.addPending(packageName + MODULE_FILE_EXTENSION);
+            }
+            manifest.write(testsDir);
+            generatePackageModules(testsDir, packageNames, manifest);
+        }
+        manifest.write(testsDir);
+
+        long generationTime = System.currentTimeMillis() - startTime;
+        CLog.i("Generated modules for %d packages in %d ms", packageNames.size(), generationTime);
+        InvocationMetricLogger.addInvocationMetrics(GENERATION_TIME_METRIC, generationTime);
     }
 
-    private void cleanUpModules() throws IOException {
-        getPackageNames()
-                .forEach(
-                        packageName -> {
-                            try {
-                                Files.delete(getModulePath(packageName));
-                            } catch (IOException ioException) {
-                                CLog.e(
-                                        "Failed to delete the generated module for package "
-                                                + packageName,
-                                        ioException);
-                            }
-                        });
+    /**
+     * Writes a single module and an index file listing the package names, so that the number of
+     * files in the tests directory does not grow with the number of packages.
+     */
+    private void generateBundle(
+            Path testsDir, List<String> packageNames, ModuleManifest manifest)
+            throws IOException {
+        String packageFileName = BUNDLE_MODULE_NAME + BUNDLE_PACKAGE_FILE_EXTENSION;
+        Path packageFile = testsDir.resolve(packageFileName);
+        List<String> sortedPackageNames = new ArrayList<>(packageNames);
+        Collections.sort(sortedPackageNames);
+        writeFile(
+                testsDir,
+                packageFileName,
+                (String.join("\n", sortedPackageNames) + "\n").getBytes(StandardCharsets.UTF_8),
+                manifest);
+
+        String content =
+                mResourceLoader
+                        .load(mBundleTemplate)
+                        .replace(
+                                TEMPLATE_PACKAGE_FILE_PLACEHOLDER,
+                                packageFile.toAbsolutePath().toString());
+        writeFile(
+                testsDir,
+                BUNDLE_MODULE_NAME + MODULE_FILE_EXTENSION,
+                content.getBytes(StandardCharsets.UTF_8),
+                manifest);
     }
 
-    private Path getModulePath(String packageName) throws IOException {
-        Path testsDir = mTestDirectoryProvider.get(mBuildInfo);
-        return testsDir.resolve(packageName + MODULE_FILE_EXTENSION);
+    /**
+     * Writes one module file per package. The template is split at its package placeholders once
+     * and the modules are written by a bounded pool of threads that each reuse a single buffer.
+     */
+    private void generatePackageModules(
+            Path testsDir, List<String> packageNames, ModuleManifest manifest)
+            throws IOException {
+        List<String> templateSegments =
+                Arrays.asList(TEMPLATE_PACKAGE_PATTERN.split(mResourceLoader.load(mTemplate), -1));
+        checkArgument(
+                mGenerationThreads > 0,
+                "%s (%s) must be positive",
+                OPTION_GENERATION_THREADS,
+                mGenerationThreads);
+        int threadCount = Math.min(mGenerationThreads, packageNames.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            int chunkSize = (packageNames.size() + threadCount - 1) / threadCount;
+            for (List<String> chunk : Lists.partition(packageNames, chunkSize)) {
+                futures.add(
+                        executor.submit(
+                                () -> {
+                                    writeModules(testsDir, templateSegments, chunk, manifest);
+                                    return null;
+                                }));
+            }
+            for (Future<Void> future : futures) {
+                getUninterruptibly(future);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void writeModules(
+            Path testsDir,
+            List<String> templateSegments,
+            List<String> packageNames,
+            ModuleManifest manifest)
+            throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        for (String packageName : packageNames) {
+            buffer.setLength(0);
+            buffer.append(templateSegments.get(0));
+            for (int i = 1; i < templateSegments.size(); i++) {
+                buffer.append(packageName).append(templateSegments.get(i));
+            }
+            writeFile(
+                    testsDir,
+                    packageName + MODULE_FILE_EXTENSION,
+                    buffer.toString().getBytes(StandardCharsets.UTF_8),
+                    manifest);
+        }
+    }
+
+    private static void writeFile(
+            Path testsDir, String fileName, byte[] content, ModuleManifest manifest)
+            throws IOException {
+        Path file = testsDir.resolve(fileName);
+        Files.write(file, content);
+        manifest.add(fileName, file, content);
+    }
+
+    /** Waits for a module writing task and rethrows its failure. */
+    private static void getUninterruptibly(Future<Void> future) throws IOException {
+        try {
+            Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Deletes the files listed in the manifest written when the modules were generated, without
+     * deriving the package names again.
+     */
+    private void cleanUpModules() throws IOException {
+        int deletedCount =
+                ModuleManifest.deleteGeneratedFiles(mTestDirectoryProvider.get(mBuildInfo));
+        CLog.i("Deleted %d generated files", deletedCount);
     }
 
     private static void validatePackageName(String packageName) {
-        if (packageName.isEmpty() || packageName.matches(".*" + TEMPLATE_PACKAGE_PATTERN + ".*")) {
+        if (packageName.isEmpty() || packageName.contains(TEMPLATE_PACKAGE_PLACEHOLDER)) {
             throw new IllegalArgumentException(
                     "Package name cannot be empty or contains package placeholder: "
-                            + TEMPLATE_PACKAGE_PATTERN);
+                            + TEMPLATE_PACKAGE_PLACEHOLDER);
         }
     }
 
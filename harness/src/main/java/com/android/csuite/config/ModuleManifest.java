@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.config;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The list of files generated into the tests directory, along with their size, modification time
+ * and a hash of their content.
+ *
+ * <p>The manifest is written next to the generated files so that they can be deleted without
+ * deriving the package names again, including by a later run when the run that generated them
+ * did not get to clean up. Each line holds the hash, size and modification time of a file and its
+ * name relative to the tests directory, separated by tabs. A file listed with {@link #UNKNOWN}
+ * fields was about to be written when the manifest was saved.
+ */
+final class ModuleManifest {
+    @VisibleForTesting static final String FILE_NAME = "csuite-modules.manifest";
+    @VisibleForTesting static final String UNKNOWN = "-";
+    private static final String SEPARATOR = "\t";
+    private static final int FIELD_COUNT = 4;
+    private static final String PENDING_FIELDS = String.join(SEPARATOR, UNKNOWN, UNKNOWN, UNKNOWN);
+
+    // The hash, size and modification time of each generated file, keyed by file name.
+    private final Map<String, String> mEntries = new TreeMap<>();
+
+    /** Lists a file that is about to be generated. */
+    synchronized void addPending(String fileName) {
+        mEntries.putIfAbsent(fileName, PENDING_FIELDS);
+    }
+
+    /** Lists a file that has been generated with the given content. */
+    void add(String fileName, Path file, byte[] content) throws IOException {
+        String fields =
+                String.join(
+                        SEPARATOR,
+                        hash(content),
+                        String.valueOf(content.length),
+                        String.valueOf(Files.getLastModifiedTime(file).toMillis()));
+        synchronized (this) {
+            mEntries.put(fileName, fields);
+        }
+    }
+
+    /** Writes the manifest to the tests directory, replacing any previous one. */
+    synchronized void write(Path testsDir) throws IOException {
+        List<String> lines = new ArrayList<>(mEntries.size());
+        for (Map.Entry<String, String> entry : mEntries.entrySet()) {
+            lines.add(entry.getValue() + SEPARATOR + entry.getKey());
+        }
+        Files.write(testsDir.resolve(FILE_NAME), lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes the files listed in the manifest of the tests directory and the manifest itself.
+     * Files whose content no longer matches the manifest were not written by the generator and are
+     * kept. Only files whose size or modification time changed are read to tell.
+     *
+     * @return the number of deleted files, 0 if there is no manifest.
+     */
+    static int deleteGeneratedFiles(Path testsDir) throws IOException {
+        Path manifestFile = testsDir.resolve(FILE_NAME);
+        if (!Files.exists(manifestFile)) {
+            return 0;
+        }
+
+        int deletedCount = 0;
+        for (String line : Files.readAllLines(manifestFile, StandardCharsets.UTF_8)) {
+            String[] fields = line.split(SEPARATOR, FIELD_COUNT);
+            if (fields.length != FIELD_COUNT) {
+                CLog.w("Ignoring malformed module manifest line: %s", line);
+                continue;
+            }
+            if (deleteGeneratedFile(testsDir.resolve(fields[3]), fields[0], fields[1], fields[2])) {
+                deletedCount++;
+            }
+        }
+        Files.delete(manifestFile);
+        return deletedCount;
+    }
+
+    private static boolean deleteGeneratedFile(
+            Path file, String expectedHash, String expectedSize, String expectedModifiedMillis) {
+        try {
+            if (!Files.exists(file)) {
+                return false;
+            }
+            if (!expectedHash.equals(UNKNOWN)
+                    && !isUnchanged(file, expectedSize, expectedModifiedMillis)
+                    && !expectedHash.equals(hash(Files.readAllBytes(file)))) {
+                CLog.w("Not deleting %s as it changed since it was generated", file);
+                return false;
+            }
+            Files.delete(file);
+            return true;
+        } catch (IOException e) {
+            CLog.e("Failed to delete the generated file %s", file);
+            CLog.e(e);
+            return false;
+        }
+    }
+
+    /** Returns whether a file still has the size and modification time it was generated with. */
+    private static boolean isUnchanged(
+            Path file, String expectedSize, String expectedModifiedMillis) throws IOException {
+        return String.valueOf(Files.size(file)).equals(expectedSize)
+                && String.valueOf(Files.getLastModifiedTime(file).toMillis())
+                        .equals(expectedModifiedMillis);
+    }
+
+    private static String hash(byte[] content) {
+        return Hashing.sha256().hashBytes(content).toString();
+    }
+}
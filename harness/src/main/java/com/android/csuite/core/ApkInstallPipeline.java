@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.targetprep.TargetSetupError;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Installs packages on a device in two steps so that the slow part overlaps with other work.
+ *
+ * <p>APK files are pushed to a staging directory on the device by a background thread as soon as
+ * the packages are known to be needed. Installing a package then only commits the staged files
+ * through a package installer session, which avoids transferring the files on the critical path.
+ *
+ * <p>The APK files of a package are expected in a subdirectory named after the package. This class
+ * is not thread-safe; only the pushes are performed in the background.
+ *
+ * <p>Unlike the preparers that install a single package, failed installs are neither retried nor
+ * timed out; a package that fails to install is reported as an error of its launch. The pipeline
+ * is therefore only used by batch launch tests, whose packages are not set up by a preparer.
+ */
+public final class ApkInstallPipeline implements AutoCloseable {
+    @VisibleForTesting static final String STAGING_DIR = "/data/local/tmp/csuite_staging";
+    private static final Pattern SESSION_ID_PATTERN = Pattern.compile("\\[(\\d+)\\]");
+    private static final List<String> DEFAULT_INSTALL_ARGS = Arrays.asList("-r", "-g");
+
+    private final ITestDevice mDevice;
+    private final File mApkRootDir;
+    private final List<String> mInstallArgs = new ArrayList<>(DEFAULT_INSTALL_ARGS);
+    private final ExecutorService mExecutor =
+            Executors.newSingleThreadExecutor(
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "ApkInstallPipeline");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+    private final Map<String, Future<List<String>>> mStagedFiles = new HashMap<>();
+    private final Set<String> mInstalledPackages = new HashSet<>();
+
+    /**
+     * @param device the device to install packages on.
+     * @param apkRootDir the directory containing one subdirectory of APK files per package.
+     * @param installArgs additional arguments passed when creating install sessions.
+     */
+    public ApkInstallPipeline(ITestDevice device, File apkRootDir, List<String> installArgs) {
+        mDevice = device;
+        mApkRootDir = apkRootDir;
+        mInstallArgs.addAll(installArgs);
+    }
+
+    /** Starts pushing the APK files of the given packages to the device in the background. */
+    public void prefetch(Collection<String> packageNames) {
+        for (String packageName : packageNames) {
+            mStagedFiles.computeIfAbsent(
+                    packageName, p -> mExecutor.submit(() -> stagePackage(p)));
+        }
+    }
+
+    /**
+     * Installs a package, waiting for its APK files to be pushed first if they have not been
+     * prefetched. Does nothing if the package was already installed by this pipeline.
+     */
+    public void install(String packageName) throws TargetSetupError, DeviceNotAvailableException {
+        if (mInstalledPackages.contains(packageName)) {
+            return;
+        }
+
+        prefetch(Collections.singletonList(packageName));
+        try {
+            commit(getStagedFiles(packageName));
+        } finally {
+            // The staged files are only assumed to belong to the package named by their
+            // directory, so any package may have changed.
+            PackageInventory.get(mDevice).invalidateAll();
+            mStagedFiles.remove(packageName);
+            mDevice.executeShellCommand("rm -rf " + getStagingDir(packageName));
+        }
+        mInstalledPackages.add(packageName);
+    }
+
+    /** Uninstalls the given packages if they were installed by this pipeline. */
+    public void uninstall(Collection<String> packageNames) throws DeviceNotAvailableException {
+        for (String packageName : packageNames) {
+            if (!mInstalledPackages.remove(packageName)) {
+                continue;
+            }
+            String error = mDevice.uninstallPackage(packageName);
+            PackageInventory.get(mDevice).invalidate(packageName);
+            if (error != null) {
+                CLog.w("Failed to uninstall package %s: %s", packageName, error);
+            }
+        }
+    }
+
+    /** Stops pending pushes and removes the staged files from the device. */
+    @Override
+    public void close() throws DeviceNotAvailableException {
+        mExecutor.shutdownNow();
+        mStagedFiles.clear();
+        mDevice.executeShellCommand("rm -rf " + STAGING_DIR);
+    }
+
+    private List<String> stagePackage(String packageName)
+            throws TargetSetupError, DeviceNotAvailableException {
+        File packageDir = new File(mApkRootDir, packageName);
+        File[] apkFiles = packageDir.listFiles((dir, name) -> name.endsWith(".apk"));
+        if (apkFiles == null || apkFiles.length == 0) {
+            throw new TargetSetupError(
+                    String.format("No APK files found for %s in %s", packageName, packageDir));
+        }
+        Arrays.sort(apkFiles);
+
+        String stagingDir = getStagingDir(packageName);
+        mDevice.executeShellCommand("mkdir -p " + stagingDir);
+
+        List<String> stagedFiles = new ArrayList<>();
+        for (File apkFile : apkFiles) {
+            String remotePath = stagingDir + "/" + apkFile.getName();
+            if (!mDevice.pushFile(apkFile, remotePath)) {
+                throw new TargetSetupError(
+                        String.format("Failed to push %s to %s", apkFile, remotePath));
+            }
+            stagedFiles.add(remotePath);
+        }
+        return stagedFiles;
+    }
+
+    private List<String> getStagedFiles(String packageName)
+            throws TargetSetupError, DeviceNotAvailableException {
+        try {
+            return mStagedFiles.get(packageName).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TargetSetupError("Interrupted while staging " + packageName, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) e.getCause();
+            }
+            if (e.getCause() instanceof TargetSetupError) {
+                throw (TargetSetupError) e.getCause();
+            }
+            throw new TargetSetupError("Failed to stage " + packageName, e.getCause());
+        }
+    }
+
+    private void commit(List<String> stagedFiles)
+            throws TargetSetupError, DeviceNotAvailableException {
+        String createOutput =
+                executeOrThrow("pm install-create " + String.join(" ", mInstallArgs));
+        Matcher matcher = SESSION_ID_PATTERN.matcher(createOutput);
+        if (!matcher.find()) {
+            throw new TargetSetupError("Failed to parse the install session: " + createOutput);
+        }
+        String sessionId = matcher.group(1);
+
+        try {
+            for (String stagedFile : stagedFiles) {
+                String splitName = stagedFile.substring(stagedFile.lastIndexOf('/') + 1);
+                executeOrThrow(
+                        String.format(
+                                "pm install-write %s %s %s", sessionId, splitName, stagedFile));
+            }
+            executeOrThrow("pm install-commit " + sessionId);
+        } catch (TargetSetupError e) {
+            mDevice.executeShellCommand("pm install-abandon " + sessionId);
+            throw e;
+        }
+    }
+
+    private String executeOrThrow(String command)
+            throws TargetSetupError, DeviceNotAvailableException {
+        CommandResult result = mDevice.executeShellV2Command(command);
+        if (result.getStatus() != CommandStatus.SUCCESS
+                || result.getStdout() == null
+                || !result.getStdout().startsWith("Success")) {
+            throw new TargetSetupError(
+                    String.format("Command '%s' failed: %s", command, result.getStderr()));
+        }
+        return result.getStdout();
+    }
+
+    private static String getStagingDir(String packageName) {
+        return STAGING_DIR + "/" + packageName;
+    }
+}
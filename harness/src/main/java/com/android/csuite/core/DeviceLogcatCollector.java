@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.BackgroundDeviceAction;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.FileUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * A long-lived logcat capture of a device that hands out slices of the log to individual tests.
+ *
+ * <p>A single logcat process is kept running per device and its output is appended to a local
+ * file. Tests record the byte offset of the log when they start and end and get the log written in
+ * between without restarting logcat. A test that runs without the shared collector can start a
+ * dedicated one to get the same slicing.
+ *
+ * <p>Once the local file reaches its maximum size a new one is started and the full one is kept as
+ * the previous file, so at least the maximum size of recent log is always available. The file
+ * before it is discarded and slices that refer to discarded data are truncated. A slice opens the
+ * files it reads when it is taken and stays readable after they are discarded.
+ */
+public final class DeviceLogcatCollector implements IShellOutputReceiver {
+    @VisibleForTesting static final String LOGCAT_COMMAND = "logcat -v threadtime";
+    private static final String LOGCAT_DESC = "shared logcat";
+    private static final long MAX_FILE_SIZE_BYTES = 512L * 1024 * 1024;
+    private static final Map<String, DeviceLogcatCollector> sCollectors =
+            new ConcurrentHashMap<>();
+
+    private final long mMaxFileSizeBytes;
+    private BackgroundDeviceAction mDeviceAction;
+    private File mFile;
+    private OutputStream mOutput;
+    // The absolute offset of the first byte stored in the current file.
+    private long mFileStartOffset = 0;
+    // The file filled before the current one, null if none. It ends where the current one starts.
+    @Nullable private File mPreviousFile;
+    // The absolute offset of the first byte stored in the previous file.
+    private long mPreviousFileStartOffset = 0;
+    // The absolute number of bytes received since the collector was created.
+    private long mOffset = 0;
+    private volatile boolean mCancelled = false;
+
+    @VisibleForTesting
+    DeviceLogcatCollector(long maxFileSizeBytes) throws IOException {
+        mMaxFileSizeBytes = maxFileSizeBytes;
+        openNewFile();
+    }
+
+    /**
+     * Starts collecting the logcat of a device. Returns the running collector if one was already
+     * started for the device.
+     */
+    public static DeviceLogcatCollector start(ITestDevice device) throws IOException {
+        DeviceLogcatCollector collector = new DeviceLogcatCollector(MAX_FILE_SIZE_BYTES);
+        DeviceLogcatCollector previous =
+                sCollectors.putIfAbsent(device.getSerialNumber(), collector);
+        if (previous != null) {
+            collector.close();
+            return previous;
+        }
+
+        collector.startCapture(device);
+        return collector;
+    }
+
+    /**
+     * Starts collecting the logcat of a device for a single caller, separately from the collector
+     * shared by the tests on the device. The caller must {@link #close()} it once done.
+     *
+     * @param maxFileSizeBytes the size of the local file beyond which older data is discarded.
+     */
+    public static DeviceLogcatCollector startDedicated(ITestDevice device, long maxFileSizeBytes)
+            throws IOException {
+        DeviceLogcatCollector collector = new DeviceLogcatCollector(maxFileSizeBytes);
+        collector.startCapture(device);
+        return collector;
+    }
+
+    /** Returns the collector running for a device, or null if none was started. */
+    @Nullable
+    public static DeviceLogcatCollector get(ITestDevice device) {
+        String serial = device.getSerialNumber();
+        return serial == null ? null : sCollectors.get(serial);
+    }
+
+    /** Stops the collector running for a device if any and deletes its data. */
+    public static void stop(ITestDevice device) {
+        DeviceLogcatCollector collector = sCollectors.remove(device.getSerialNumber());
+        if (collector != null) {
+            collector.close();
+        }
+    }
+
+    /** Returns the current offset of the log, to be used as the bound of a slice. */
+    public synchronized long getOffset() {
+        flush();
+        return mOffset;
+    }
+
+    /**
+     * Returns the log written between two offsets obtained from {@link #getOffset()}.
+     *
+     * <p>The returned source keeps the files it reads open and must be closed once consumed.
+     */
+    public synchronized InputStreamSource getSlice(long startOffset, long endOffset) {
+        flush();
+        long firstOffset = mPreviousFile != null ? mPreviousFileStartOffset : mFileStartOffset;
+        long start = Math.max(startOffset, firstOffset);
+        long end = Math.max(start, Math.min(endOffset, mOffset));
+
+        List<FileRange> ranges = new ArrayList<>();
+        try {
+            if (start < mFileStartOffset) {
+                ranges.add(
+                        FileRange.open(
+                                mPreviousFile,
+                                start - mPreviousFileStartOffset,
+                                Math.min(end, mFileStartOffset) - start));
+            }
+            if (end > mFileStartOffset) {
+                long fileStart = Math.max(start, mFileStartOffset);
+                ranges.add(FileRange.open(mFile, fileStart - mFileStartOffset, end - fileStart));
+            }
+        } catch (IOException e) {
+            CLog.e("Failed to open shared logcat file");
+            CLog.e(e);
+            ranges.forEach(FileRange::close);
+            return new ByteArrayInputStreamSource(new byte[0]);
+        }
+        return new FileSliceInputStreamSource(ranges);
+    }
+
+    @Override
+    public synchronized void addOutput(byte[] data, int offset, int length) {
+        if (mCancelled) {
+            return;
+        }
+
+        try {
+            if (mOffset > mFileStartOffset
+                    && mOffset - mFileStartOffset + length > mMaxFileSizeBytes) {
+                CLog.i("Shared logcat file is full, starting a new one");
+                mOutput.close();
+                if (mPreviousFile != null) {
+                    FileUtil.deleteFile(mPreviousFile);
+                }
+                mPreviousFile = mFile;
+                mPreviousFileStartOffset = mFileStartOffset;
+                mFileStartOffset = mOffset;
+                openNewFile();
+            }
+            mOutput.write(data, offset, length);
+            mOffset += length;
+        } catch (IOException e) {
+            CLog.e("Failed to write shared logcat data");
+            CLog.e(e);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        try {
+            mOutput.flush();
+        } catch (IOException e) {
+            CLog.e("Failed to flush shared logcat data");
+            CLog.e(e);
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /** Stops collecting and deletes the collected data. */
+    public synchronized void close() {
+        mCancelled = true;
+        if (mDeviceAction != null) {
+            mDeviceAction.cancel();
+        }
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            CLog.e(e);
+        }
+        if (mPreviousFile != null) {
+            FileUtil.deleteFile(mPreviousFile);
+        }
+        FileUtil.deleteFile(mFile);
+    }
+
+    private void startCapture(ITestDevice device) {
+        mDeviceAction = new BackgroundDeviceAction(LOGCAT_COMMAND, LOGCAT_DESC, device, this, 0);
+        mDeviceAction.start();
+    }
+
+    private void openNewFile() throws IOException {
+        mFile = FileUtil.createTempFile("shared_logcat_", ".txt");
+        mOutput = new BufferedOutputStream(new FileOutputStream(mFile));
+    }
+
+    /** An {@link InputStreamSource} that reads consecutive ranges of the collected files. */
+    private static final class FileSliceInputStreamSource implements InputStreamSource {
+        private final List<FileRange> mRanges;
+
+        FileSliceInputStreamSource(List<FileRange> ranges) {
+            mRanges = ranges;
+        }
+
+        @Override
+        public InputStream createInputStream() {
+            List<InputStream> streams = new ArrayList<>();
+            for (FileRange range : mRanges) {
+                streams.add(range.createInputStream());
+            }
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+
+        @Override
+        public long size() {
+            long size = 0;
+            for (FileRange range : mRanges) {
+                size += range.mLength;
+            }
+            return size;
+        }
+
+        @Override
+        public void close() {
+            mRanges.forEach(FileRange::close);
+        }
+    }
+
+    /**
+     * A range of bytes of a file that was opened when the range was created, so that it stays
+     * readable after the file is deleted.
+     */
+    private static final class FileRange implements Closeable {
+        private final FileChannel mChannel;
+        private final long mPosition;
+        private final long mLength;
+
+        private FileRange(FileChannel channel, long position, long length) {
+            mChannel = channel;
+            mPosition = position;
+            mLength = length;
+        }
+
+        static FileRange open(File file, long position, long length) throws IOException {
+            return new FileRange(new FileInputStream(file).getChannel(), position, length);
+        }
+
+        /** Returns a stream of the range; streams of the same range can be read independently. */
+        InputStream createInputStream() {
+            return new InputStream() {
+                private long mRead = 0;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] buffer = new byte[1];
+                    return read(buffer, 0, 1) < 0 ? -1 : buffer[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    if (mRead >= mLength) {
+                        return -1;
+                    }
+                    int count =
+                            mChannel.read(
+                                    ByteBuffer.wrap(
+                                            buffer,
+                                            offset,
+                                            (int) Math.min(length, mLength - mRead)),
+                                    mPosition + mRead);
+                    if (count < 0) {
+                        return -1;
+                    }
+                    mRead += count;
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                CLog.e(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/** The recorded failures that share a {@link FailureFingerprint}, across packages and runs. */
+public final class FailureCluster {
+    private final String mFingerprint;
+    private final String mSignature;
+    private final Set<String> mPackageNames = new TreeSet<>();
+    private int mCount = 0;
+    private long mFirstSeenMillis = Long.MAX_VALUE;
+    private long mLastSeenMillis = Long.MIN_VALUE;
+
+    FailureCluster(String fingerprint, String signature) {
+        mFingerprint = fingerprint;
+        mSignature = signature;
+    }
+
+    void add(LaunchRecord record) {
+        mPackageNames.add(record.getPackageName());
+        mCount++;
+        mFirstSeenMillis = Math.min(mFirstSeenMillis, record.getTimestampMillis());
+        mLastSeenMillis = Math.max(mLastSeenMillis, record.getTimestampMillis());
+    }
+
+    /** Returns the identifier of the fingerprint shared by the failures. */
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    /** Returns the normalized description of the failure cause. */
+    public String getSignature() {
+        return mSignature;
+    }
+
+    /** Returns the number of recorded failures in the cluster. */
+    public int getCount() {
+        return mCount;
+    }
+
+    /** Returns the names of the packages that failed, in alphabetical order. */
+    public Set<String> getPackageNames() {
+        return Collections.unmodifiableSet(mPackageNames);
+    }
+
+    /** Returns the time of the earliest failure, in milliseconds since the epoch. */
+    public long getFirstSeenMillis() {
+        return mFirstSeenMillis;
+    }
+
+    /** Returns the time of the latest failure, in milliseconds since the epoch. */
+    public long getLastSeenMillis() {
+        return mLastSeenMillis;
+    }
+}
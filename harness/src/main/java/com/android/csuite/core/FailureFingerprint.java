@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+/**
+ * Identifies failures that have the same cause regardless of the package and run they happened in.
+ *
+ * <p>A failure is reduced to its root exception type and its top meaningful stack frames. Process
+ * ids, addresses, timestamps, line numbers and obfuscated frames are dropped so that the same crash
+ * yields the same fingerprint on every run. Frames of the platform are only used when the failure
+ * has no app frame, and frames of the test harness are never used. The frames stop at the first
+ * frame of the failed package below a library frame, so that a crash in a library shared by many
+ * apps yields the same fingerprint for all of them. Failures without any stack frame are
+ * identified by their normalized description instead.
+ */
+public final class FailureFingerprint {
+    @VisibleForTesting static final int MAX_FRAMES = 5;
+    private static final int ID_LENGTH = 16;
+    // Errors collected by the on-device test start with a line of this form.
+    private static final String ERROR_SECTION_PREFIX = "### Type: ";
+    private static final List<String> HARNESS_FRAME_PREFIXES =
+            Arrays.asList("org.junit.", "com.android.compatibilitytest.", "androidx.test.");
+    private static final List<String> PLATFORM_FRAME_PREFIXES =
+            Arrays.asList(
+                    "java.",
+                    "javax.",
+                    "sun.",
+                    "libcore.",
+                    "dalvik.",
+                    "android.",
+                    "androidx.",
+                    "com.android.internal.",
+                    "kotlin.",
+                    "kotlinx.");
+
+    private static final Pattern EXCEPTION_PATTERN =
+            Pattern.compile("^\\s*(?:Caused by: )?((?:[\\w$]+\\.)+[\\w$]*(?:Exception|Error))\\b");
+    private static final Pattern JAVA_FRAME_PATTERN =
+            Pattern.compile("^\\s*at ((?:[\\w$<>]+\\.)+[\\w$<>]+)\\((.*)\\)");
+    private static final Pattern NATIVE_FRAME_PATTERN =
+            Pattern.compile("^\\s*#\\d+ pc [0-9a-fA-F]+\\s+(\\S+)(?:\\s+\\(([^+)]+))?");
+    private static final Pattern SYNTHETIC_SUFFIX_PATTERN = Pattern.compile("\\$\\d+");
+    private static final Pattern OBFUSCATED_NAME_PATTERN = Pattern.compile("[a-z]{1,2}");
+    private static final Pattern ADDRESS_PATTERN = Pattern.compile("\\b0x[0-9a-fA-F]+\\b");
+    private static final Pattern TIMESTAMP_PATTERN =
+            Pattern.compile(
+                    "\\b\\d{1,4}[-/]\\d{1,2}[-/]\\d{1,4}(?:[ T]\\d{1,2}:\\d{2}(?::\\d{2})?)?"
+                            + "|\\b\\d{1,2}:\\d{2}:\\d{2}(?:\\.\\d+)?");
+    private static final Pattern NUMBER_PATTERN = Pattern.compile("\\d+");
+
+    private final String mId;
+    private final String mSignature;
+
+    private FailureFingerprint(String signature) {
+        mSignature = signature;
+        mId =
+                Hashing.sha256()
+                        .hashString(signature, StandardCharsets.UTF_8)
+                        .toString()
+                        .substring(0, ID_LENGTH);
+    }
+
+    /**
+     * Computes the fingerprint of a failure.
+     *
+     * @param failure the failure message or stack trace.
+     * @param packageName the package that failed, which is masked from the failure description.
+     */
+    public static FailureFingerprint of(String failure, @Nullable String packageName) {
+        checkNotNull(failure);
+        String section = failure;
+        String errorType = null;
+        int sectionStart = failure.indexOf(ERROR_SECTION_PREFIX);
+        if (sectionStart >= 0) {
+            int sectionEnd =
+                    failure.indexOf(
+                            ERROR_SECTION_PREFIX, sectionStart + ERROR_SECTION_PREFIX.length());
+            section =
+                    failure.substring(
+                            sectionStart, sectionEnd < 0 ? failure.length() : sectionEnd);
+            errorType = section.split("[,\\n]", 2)[0].substring(ERROR_SECTION_PREFIX.length());
+        }
+
+        String[] lines = section.split("\\r?\\n");
+        // The root cause is the last exception of a chain, its frames follow it.
+        int rootCauseLine = -1;
+        String exception = null;
+        for (int i = 0; i < lines.length; i++) {
+            Matcher matcher = EXCEPTION_PATTERN.matcher(lines[i]);
+            if (matcher.find()) {
+                rootCauseLine = i;
+                exception = matcher.group(1);
+            }
+        }
+
+        // Failures raised by the harness itself are described by their message.
+        int framesStart = Math.max(rootCauseLine, 0);
+        List<String> frames = new ArrayList<>();
+        if (!isRaisedByHarness(lines, framesStart)) {
+            frames = getTopFrames(lines, framesStart, packageName, false);
+            if (frames.isEmpty()) {
+                frames = getTopFrames(lines, framesStart, packageName, true);
+            }
+        }
+
+        List<String> parts = new ArrayList<>();
+        if (errorType != null) {
+            parts.add(errorType.trim());
+        }
+        if (exception != null) {
+            parts.add(exception);
+        }
+        if (frames.isEmpty()) {
+            parts.add(normalizeDescription(getDescription(lines, rootCauseLine), packageName));
+        } else {
+            parts.addAll(frames);
+        }
+        return new FailureFingerprint(String.join(" | ", parts));
+    }
+
+    /** Returns a short identifier of the failure cause, equal for failures with the same cause. */
+    public String getId() {
+        return mId;
+    }
+
+    /** Returns the normalized description of the failure cause the identifier is computed from. */
+    public String getSignature() {
+        return mSignature;
+    }
+
+    @Override
+    public String toString() {
+        return mId + " " + mSignature;
+    }
+
+    private static boolean isRaisedByHarness(String[] lines, int startLine) {
+        for (int i = startLine; i < lines.length; i++) {
+            Matcher matcher = JAVA_FRAME_PATTERN.matcher(lines[i]);
+            if (matcher.find()) {
+                return startsWithAny(matcher.group(1), HARNESS_FRAME_PREFIXES);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the top frames following a line, skipping the harness and obfuscated frames. Platform
+     * frames are only returned if requested.
+     */
+    private static List<String> getTopFrames(
+            String[] lines, int startLine, @Nullable String packageName, boolean platform) {
+        List<String> frames = new ArrayList<>();
+        boolean hasLibraryFrame = false;
+        for (int i = startLine; i < lines.length && frames.size() < MAX_FRAMES; i++) {
+            String frame = normalizeFrame(lines[i]);
+            if (frame == null
+                    || startsWithAny(frame, HARNESS_FRAME_PREFIXES)
+                    || (!platform && startsWithAny(frame, PLATFORM_FRAME_PREFIXES))) {
+                continue;
+            }
+            if (packageName != null && frame.startsWith(packageName + ".")) {
+                if (hasLibraryFrame) {
+                    break;
+                }
+                frame = "<pkg>" + frame.substring(packageName.length());
+            } else {
+                hasLibraryFrame = true;
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    /** Returns the method or native symbol of a frame, or null if the line is not a frame. */
+    @VisibleForTesting
+    @Nullable
+    static String normalizeFrame(String line) {
+        Matcher matcher = JAVA_FRAME_PATTERN.matcher(line);
+        if (matcher.find()) {
+            if (isObfuscated(matcher.group(1))) {
+                return null;
+            }
+            return SYNTHETIC_SUFFIX_PATTERN.matcher(matcher.group(1)).replaceAll("\\$");
+        }
+
+        matcher = NATIVE_FRAME_PATTERN.matcher(line);
+        if (matcher.find()) {
+            String library = matcher.group(1).substring(matcher.group(1).lastIndexOf('/') + 1);
+            return matcher.group(2) != null ? library + " " + matcher.group(2) : library;
+        }
+        return null;
+    }
+
+    /** Returns whether every segment of the class name of a method is a minified name. */
+    private static boolean isObfuscated(String method) {
+        String[] segments = method.split("\\.");
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (!OBFUSCATED_NAME_PATTERN.matcher(segments[i]).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getDescription(String[] lines, int exceptionLine) {
+        if (exceptionLine >= 0) {
+            return lines[exceptionLine];
+        }
+        for (String line : lines) {
+            if (!line.trim().isEmpty() && !line.startsWith(ERROR_SECTION_PREFIX)) {
+                return line;
+            }
+        }
+        return "";
+    }
+
+    /** Masks the package name, addresses, timestamps and numbers of a failure description. */
+    @VisibleForTesting
+    static String normalizeDescription(String description, @Nullable String packageName) {
+        String normalized = description.trim();
+        if (packageName != null && !packageName.isEmpty()) {
+            normalized = normalized.replace(packageName, "<pkg>");
+        }
+        normalized = ADDRESS_PATTERN.matcher(normalized).replaceAll("<addr>");
+        normalized = TIMESTAMP_PATTERN.matcher(normalized).replaceAll("<time>");
+        return NUMBER_PATTERN.matcher(normalized).replaceAll("<n>");
+    }
+
+    private static boolean startsWithAny(String value, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (value.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
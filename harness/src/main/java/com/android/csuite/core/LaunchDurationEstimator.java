@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/** Estimates how long testing a package is going to take. */
+public interface LaunchDurationEstimator {
+    /** An estimator that has no knowledge of any package. */
+    LaunchDurationEstimator UNKNOWN = packageName -> Optional.empty();
+
+    /**
+     * Returns the expected duration of testing a package.
+     *
+     * @return the expected duration, or an empty optional if the package has not been seen before.
+     */
+    Optional<Duration> estimate(String packageName);
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/** The outcome of testing the launch of one version of a package. */
+public final class LaunchRecord {
+    private static final String KEY_PACKAGE = "package";
+    private static final String KEY_VERSION_CODE = "version_code";
+    private static final String KEY_STATUS = "status";
+    private static final String KEY_TIMESTAMP = "timestamp_ms";
+    private static final String KEY_LAUNCH_LATENCY = "launch_latency_ms";
+    private static final String KEY_TIME_TO_LAUNCH = "time_to_launch_ms";
+    private static final String KEY_INSTALL_TIME = "install_time_ms";
+    private static final String KEY_FAILURE_SIGNATURE = "failure_signature";
+    private static final String KEY_FAILURE_FINGERPRINT = "failure_fingerprint";
+    private static final String KEY_FAILURE_KIND = "failure_kind";
+    private static final String KEY_APK_HASH = "apk_hash";
+    private static final String KEY_ATTEMPT_OUTCOMES = "attempt_outcomes";
+
+    /** The value of a version code or a duration that was not measured. */
+    public static final long UNKNOWN = -1;
+
+    private final String mPackageName;
+    private final long mVersionCode;
+    private final String mStatus;
+    private final long mTimestampMillis;
+    private final long mLaunchLatencyMillis;
+    private final long mTimeToLaunchMillis;
+    private final long mInstallTimeMillis;
+    @Nullable private final String mFailureSignature;
+    @Nullable private final String mFailureFingerprint;
+    @Nullable private final String mFailureKind;
+    @Nullable private final String mApkHash;
+    private final List<String> mAttemptOutcomes;
+
+    private LaunchRecord(Builder builder) {
+        mPackageName = checkNotNull(builder.mPackageName);
+        mStatus = checkNotNull(builder.mStatus);
+        mVersionCode = builder.mVersionCode;
+        mTimestampMillis = builder.mTimestampMillis;
+        mLaunchLatencyMillis = builder.mLaunchLatencyMillis;
+        mTimeToLaunchMillis = builder.mTimeToLaunchMillis;
+        mInstallTimeMillis = builder.mInstallTimeMillis;
+        mFailureSignature = builder.mFailureSignature;
+        mFailureFingerprint = builder.mFailureFingerprint;
+        mFailureKind = builder.mFailureKind;
+        mApkHash = builder.mApkHash;
+        mAttemptOutcomes =
+                Collections.unmodifiableList(new ArrayList<>(builder.mAttemptOutcomes));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public String getPackageName() {
+        return mPackageName;
+    }
+
+    /** Returns the version code of the tested package, or {@link #UNKNOWN}. */
+    public long getVersionCode() {
+        return mVersionCode;
+    }
+
+    /** Returns one of the {@code CompatibilityTestResult} statuses. */
+    public String getStatus() {
+        return mStatus;
+    }
+
+    /** Returns the time the test ended at, in milliseconds since the epoch. */
+    public long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    /** Returns the time it took to test the launch of the package, or {@link #UNKNOWN}. */
+    public long getLaunchLatencyMillis() {
+        return mLaunchLatencyMillis;
+    }
+
+    /**
+     * Returns the time it took the app to show its first frame or resume its first activity once
+     * started, or {@link #UNKNOWN}.
+     */
+    public long getTimeToLaunchMillis() {
+        return mTimeToLaunchMillis;
+    }
+
+    /** Returns the time it took to install the package, or {@link #UNKNOWN}. */
+    public long getInstallTimeMillis() {
+        return mInstallTimeMillis;
+    }
+
+    /** Returns a short description identifying the failure, or null if the test passed. */
+    @Nullable
+    public String getFailureSignature() {
+        return mFailureSignature;
+    }
+
+    /**
+     * Returns the identifier of the {@link FailureFingerprint} of the failure, or null if the test
+     * passed.
+     */
+    @Nullable
+    public String getFailureFingerprint() {
+        return mFailureFingerprint;
+    }
+
+    /**
+     * Returns the kind of failure the launch ended with, such as {@code CRASH} or {@code ANR}, or
+     * null if the test passed or the failure was not classified.
+     */
+    @Nullable
+    public String getFailureKind() {
+        return mFailureKind;
+    }
+
+    /**
+     * Returns the outcome of each launch attempt of the package in order, such as {@code TIMEOUT}
+     * followed by {@code SUCCESS}. Empty if not known.
+     */
+    public List<String> getAttemptOutcomes() {
+        return mAttemptOutcomes;
+    }
+
+    /** Returns the content hash of the installed APK files, or null if not known. */
+    @Nullable
+    public String getApkHash() {
+        return mApkHash;
+    }
+
+    String toJsonString() throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put(KEY_PACKAGE, mPackageName);
+        o.put(KEY_VERSION_CODE, mVersionCode);
+        o.put(KEY_STATUS, mStatus);
+        o.put(KEY_TIMESTAMP, mTimestampMillis);
+        o.put(KEY_LAUNCH_LATENCY, mLaunchLatencyMillis);
+        o.put(KEY_TIME_TO_LAUNCH, mTimeToLaunchMillis);
+        o.put(KEY_INSTALL_TIME, mInstallTimeMillis);
+        if (mFailureSignature != null) {
+            o.put(KEY_FAILURE_SIGNATURE, mFailureSignature);
+        }
+        if (mFailureFingerprint != null) {
+            o.put(KEY_FAILURE_FINGERPRINT, mFailureFingerprint);
+        }
+        if (mFailureKind != null) {
+            o.put(KEY_FAILURE_KIND, mFailureKind);
+        }
+        if (mApkHash != null) {
+            o.put(KEY_APK_HASH, mApkHash);
+        }
+        if (!mAttemptOutcomes.isEmpty()) {
+            o.put(KEY_ATTEMPT_OUTCOMES, new JSONArray(mAttemptOutcomes));
+        }
+        return o.toString();
+    }
+
+    static LaunchRecord fromJsonString(String json) throws JSONException {
+        JSONObject o = new JSONObject(json);
+        List<String> attemptOutcomes = new ArrayList<>();
+        JSONArray attemptOutcomesArray = o.optJSONArray(KEY_ATTEMPT_OUTCOMES);
+        if (attemptOutcomesArray != null) {
+            for (int i = 0; i < attemptOutcomesArray.length(); i++) {
+                attemptOutcomes.add(attemptOutcomesArray.getString(i));
+            }
+        }
+        return builder()
+                .setPackageName(o.getString(KEY_PACKAGE))
+                .setVersionCode(o.optLong(KEY_VERSION_CODE, UNKNOWN))
+                .setStatus(o.getString(KEY_STATUS))
+                .setTimestampMillis(o.optLong(KEY_TIMESTAMP, 0))
+                .setLaunchLatencyMillis(o.optLong(KEY_LAUNCH_LATENCY, UNKNOWN))
+                .setTimeToLaunchMillis(o.optLong(KEY_TIME_TO_LAUNCH, UNKNOWN))
+                .setInstallTimeMillis(o.optLong(KEY_INSTALL_TIME, UNKNOWN))
+                .setFailureSignature(o.optString(KEY_FAILURE_SIGNATURE, null))
+                .setFailureFingerprint(o.optString(KEY_FAILURE_FINGERPRINT, null))
+                .setFailureKind(o.optString(KEY_FAILURE_KIND, null))
+                .setApkHash(o.optString(KEY_APK_HASH, null))
+                .setAttemptOutcomes(attemptOutcomes)
+                .build();
+    }
+
+    /** A builder for {@link LaunchRecord}. The package name and status are required. */
+    public static final class Builder {
+        private String mPackageName;
+        private long mVersionCode = UNKNOWN;
+        private String mStatus;
+        private long mTimestampMillis = System.currentTimeMillis();
+        private long mLaunchLatencyMillis = UNKNOWN;
+        private long mTimeToLaunchMillis = UNKNOWN;
+        private long mInstallTimeMillis = UNKNOWN;
+        private String mFailureSignature;
+        private String mFailureFingerprint;
+        private String mFailureKind;
+        private String mApkHash;
+        private List<String> mAttemptOutcomes = Collections.emptyList();
+
+        private Builder() {}
+
+        public Builder setPackageName(String packageName) {
+            mPackageName = packageName;
+            return this;
+        }
+
+        public Builder setVersionCode(long versionCode) {
+            mVersionCode = versionCode;
+            return this;
+        }
+
+        public Builder setStatus(String status) {
+            mStatus = status;
+            return this;
+        }
+
+        public Builder setTimestampMillis(long timestampMillis) {
+            mTimestampMillis = timestampMillis;
+            return this;
+        }
+
+        public Builder setLaunchLatencyMillis(long launchLatencyMillis) {
+            mLaunchLatencyMillis = launchLatencyMillis;
+            return this;
+        }
+
+        public Builder setTimeToLaunchMillis(long timeToLaunchMillis) {
+            mTimeToLaunchMillis = timeToLaunchMillis;
+            return this;
+        }
+
+        public Builder setInstallTimeMillis(long installTimeMillis) {
+            mInstallTimeMillis = installTimeMillis;
+            return this;
+        }
+
+        public Builder setFailureSignature(@Nullable String failureSignature) {
+            mFailureSignature = failureSignature;
+            return this;
+        }
+
+        public Builder setFailureFingerprint(@Nullable String failureFingerprint) {
+            mFailureFingerprint = failureFingerprint;
+            return this;
+        }
+
+        public Builder setFailureKind(@Nullable String failureKind) {
+            mFailureKind = failureKind;
+            return this;
+        }
+
+        public Builder setApkHash(@Nullable String apkHash) {
+            mApkHash = apkHash;
+            return this;
+        }
+
+        public Builder setAttemptOutcomes(List<String> attemptOutcomes) {
+            mAttemptOutcomes = attemptOutcomes;
+            return this;
+        }
+
+        public LaunchRecord build() {
+            return new LaunchRecord(this);
+        }
+    }
+}
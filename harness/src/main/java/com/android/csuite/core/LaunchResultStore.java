@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.CompatibilityTestResult;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
+
+/**
+ * A local, append-only history of launch test results.
+ *
+ * <p>Records are stored one JSON object per line so that results of concurrent or interrupted runs
+ * never corrupt earlier records. Lines that cannot be parsed are skipped. The history is kept in
+ * memory, indexed by package name, and read again when the size or modification time of the file
+ * shows that another process wrote to it.
+ *
+ * <p>The store also hands what a preparer records about the setup of a package, such as its install
+ * time, over to the launch test of the package. This is kept in memory only.
+ *
+ * <p>This class is thread-safe and a single instance is shared per file within a process.
+ */
+public final class LaunchResultStore implements LaunchDurationEstimator {
+    private static final Map<Path, LaunchResultStore> sStores = new ConcurrentHashMap<>();
+
+    private final Path mFile;
+    private List<LaunchRecord> mRecords;
+    private Map<String, List<LaunchRecord>> mRecordsByPackage;
+    // The size and modification time of the file when the records were last read or appended.
+    private long mLoadedSize;
+    private long mLoadedModifiedMillis;
+    // What was recorded about the setup of the packages that have not been tested yet. It is only
+    // kept in memory, to hand it from the preparer that set a package up to the launch test.
+    private final Map<String, PackageSetup> mSetups = new HashMap<>();
+
+    @VisibleForTesting
+    LaunchResultStore(Path file) {
+        mFile = file;
+    }
+
+    /** Returns the store backed by the given file, which is created on the first append. */
+    public static LaunchResultStore open(Path file) {
+        return sStores.computeIfAbsent(
+                file.toAbsolutePath().normalize(), LaunchResultStore::new);
+    }
+
+    /** Records the content hash of the APK files a package is set up from. */
+    public synchronized void recordApkHash(String packageName, String apkHash) {
+        getOrCreateSetup(packageName).mApkHash = apkHash;
+    }
+
+    /** Records the time it took to set a package up, in milliseconds. */
+    public synchronized void recordInstallTime(String packageName, long installTimeMillis) {
+        getOrCreateSetup(packageName).mInstallTimeMillis = installTimeMillis;
+    }
+
+    /**
+     * Records that a package was not installed because it is unchanged since it last passed, and
+     * should therefore not be tested either.
+     */
+    public synchronized void recordUnchangedSetup(String packageName) {
+        getOrCreateSetup(packageName).mUnchanged = true;
+    }
+
+    /** Returns what was recorded about the setup of a package since it was last tested. */
+    public synchronized PackageSetup getSetup(String packageName) {
+        return mSetups.getOrDefault(packageName, new PackageSetup()).copy();
+    }
+
+    /** Forgets what was recorded about the setup of a package once it was tested. */
+    public synchronized void clearSetup(String packageName) {
+        mSetups.remove(packageName);
+    }
+
+    /** Appends a record to the history. */
+    public synchronized void append(LaunchRecord record) throws IOException {
+        String line;
+        try {
+            line = record.toJsonString() + System.lineSeparator();
+        } catch (JSONException e) {
+            throw new IOException("Failed to serialize the launch record", e);
+        }
+
+        loadRecords();
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        long expectedSize = mLoadedSize + bytes.length;
+        Files.write(mFile, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (Files.size(mFile) != expectedSize) {
+            // Another process wrote to the file as well, so it is read again on the next query.
+            mRecords = null;
+            return;
+        }
+        addRecord(record);
+        mLoadedSize = expectedSize;
+        mLoadedModifiedMillis = Files.getLastModifiedTime(mFile).toMillis();
+    }
+
+    /** Returns the records of a package from the oldest to the most recent. */
+    public synchronized List<LaunchRecord> getRecords(String packageName) {
+        loadRecords();
+        return new ArrayList<>(
+                mRecordsByPackage.getOrDefault(packageName, Collections.emptyList()));
+    }
+
+    /** Returns the most recent record of a package, if any. */
+    public Optional<LaunchRecord> getLatestRecord(String packageName) {
+        List<LaunchRecord> records = getRecords(packageName);
+        return records.isEmpty()
+                ? Optional.empty()
+                : Optional.of(records.get(records.size() - 1));
+    }
+
+    /**
+     * Returns whether the most recent result of a package is a pass obtained with APK files of the
+     * given content hash.
+     */
+    public boolean isUnchangedSinceLastPass(String packageName, String apkHash) {
+        return getLatestRecord(packageName)
+                .filter(r -> CompatibilityTestResult.STATUS_SUCCESS.equals(r.getStatus()))
+                .map(r -> apkHash.equals(r.getApkHash()))
+                .orElse(false);
+    }
+
+    /**
+     * Returns a percentile of the recorded launch latencies of a package.
+     *
+     * @param percentile the percentile to compute, between 0 and 100.
+     * @return the latency in milliseconds, or an empty optional if no latency was recorded.
+     */
+    public Optional<Long> getLatencyPercentile(String packageName, double percentile) {
+        return getPercentile(packageName, LaunchRecord::getLaunchLatencyMillis, percentile, 1);
+    }
+
+    /**
+     * Returns a percentile of the recorded times it took a package to launch once started.
+     *
+     * @param percentile the percentile to compute, between 0 and 100.
+     * @param minSamples the minimum number of recorded times to compute the percentile from.
+     * @return the time in milliseconds, or an empty optional if fewer times were recorded.
+     */
+    public Optional<Long> getTimeToLaunchPercentile(
+            String packageName, double percentile, int minSamples) {
+        return getPercentile(
+                packageName, LaunchRecord::getTimeToLaunchMillis, percentile, minSamples);
+    }
+
+    /**
+     * Returns how often the status of a package flips between consecutive runs of the same version.
+     *
+     * @return the ratio of status changes to consecutive run pairs, or an empty optional if no
+     *     version of the package was tested more than once.
+     */
+    public Optional<Double> getFlakinessRate(String packageName) {
+        Map<Long, List<LaunchRecord>> recordsByVersion =
+                getRecords(packageName).stream()
+                        .collect(Collectors.groupingBy(LaunchRecord::getVersionCode));
+
+        int pairs = 0;
+        int flips = 0;
+        for (List<LaunchRecord> records : recordsByVersion.values()) {
+            for (int i = 1; i < records.size(); i++) {
+                pairs++;
+                if (!records.get(i).getStatus().equals(records.get(i - 1).getStatus())) {
+                    flips++;
+                }
+            }
+        }
+        return pairs == 0 ? Optional.empty() : Optional.of((double) flips / pairs);
+    }
+
+    /**
+     * Groups the recorded failures of all packages by fingerprint. Records without a fingerprint
+     * are left out.
+     *
+     * @return the clusters from the one with the most failures to the one with the fewest.
+     */
+    public synchronized List<FailureCluster> getFailureClusters() {
+        Map<String, FailureCluster> clusters = new LinkedHashMap<>();
+        for (LaunchRecord record : loadRecords()) {
+            String fingerprint = record.getFailureFingerprint();
+            if (fingerprint == null
+                    || CompatibilityTestResult.STATUS_SUCCESS.equals(record.getStatus())) {
+                continue;
+            }
+            String signature = Strings.nullToEmpty(record.getFailureSignature());
+            clusters.computeIfAbsent(fingerprint, k -> new FailureCluster(k, signature))
+                    .add(record);
+        }
+        List<FailureCluster> sorted = new ArrayList<>(clusters.values());
+        sorted.sort(Comparator.comparingInt(FailureCluster::getCount).reversed());
+        return sorted;
+    }
+
+    /** Estimates the duration of testing a package as its median recorded launch latency. */
+    @Override
+    public Optional<Duration> estimate(String packageName) {
+        return getLatencyPercentile(packageName, 50).map(Duration::ofMillis);
+    }
+
+    private Optional<Long> getPercentile(
+            String packageName,
+            ToLongFunction<LaunchRecord> durationGetter,
+            double percentile,
+            int minSamples) {
+        List<Long> durations =
+                getRecords(packageName).stream()
+                        .map(durationGetter::applyAsLong)
+                        .filter(duration -> duration != LaunchRecord.UNKNOWN)
+                        .collect(Collectors.toList());
+        if (durations.isEmpty() || durations.size() < minSamples) {
+            return Optional.empty();
+        }
+        return Optional.of(Math.round(Statistics.percentile(durations, percentile)));
+    }
+
+    private PackageSetup getOrCreateSetup(String packageName) {
+        return mSetups.computeIfAbsent(packageName, k -> new PackageSetup());
+    }
+
+    private void addRecord(LaunchRecord record) {
+        mRecords.add(record);
+        mRecordsByPackage
+                .computeIfAbsent(record.getPackageName(), k -> new ArrayList<>())
+                .add(record);
+    }
+
+    private List<LaunchRecord> loadRecords() {
+        long size = 0;
+        long modifiedMillis = 0;
+        try {
+            if (Files.exists(mFile)) {
+                size = Files.size(mFile);
+                modifiedMillis = Files.getLastModifiedTime(mFile).toMillis();
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to check the launch result history %s: %s", mFile, e);
+        }
+        if (mRecords != null && size == mLoadedSize && modifiedMillis == mLoadedModifiedMillis) {
+            return mRecords;
+        }
+
+        mRecords = new ArrayList<>();
+        mRecordsByPackage = new HashMap<>();
+        mLoadedSize = size;
+        mLoadedModifiedMillis = modifiedMillis;
+        if (size == 0) {
+            return mRecords;
+        }
+
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(mFile, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            CLog.e("Failed to read the launch result history %s", mFile);
+            CLog.e(e);
+            return mRecords;
+        }
+
+        for (String line : lines) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                addRecord(LaunchRecord.fromJsonString(line));
+            } catch (JSONException e) {
+                CLog.w("Skipping malformed launch record: %s", line);
+            }
+        }
+        return mRecords;
+    }
+
+    /** What was recorded about the setup of a package before it is tested. */
+    public static final class PackageSetup {
+        @Nullable private String mApkHash;
+        private long mInstallTimeMillis = LaunchRecord.UNKNOWN;
+        private boolean mUnchanged;
+
+        private PackageSetup copy() {
+            PackageSetup copy = new PackageSetup();
+            copy.mApkHash = mApkHash;
+            copy.mInstallTimeMillis = mInstallTimeMillis;
+            copy.mUnchanged = mUnchanged;
+            return copy;
+        }
+
+        /** Returns the content hash of the APK files, or null if it was not recorded. */
+        @Nullable
+        public String getApkHash() {
+            return mApkHash;
+        }
+
+        /** Returns the install time in milliseconds, or {@link LaunchRecord#UNKNOWN}. */
+        public long getInstallTimeMillis() {
+            return mInstallTimeMillis;
+        }
+
+        /** Returns whether the package was not installed as it did not change since it passed. */
+        public boolean isUnchanged() {
+            return mUnchanged;
+        }
+    }
+}
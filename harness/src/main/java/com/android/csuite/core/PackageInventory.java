@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.targetprep.TargetSetupError;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A cache of the packages installed on a device.
+ *
+ * <p>The whole package list is loaded with a single command and then kept in memory. Code that
+ * installs or uninstalls a package must invalidate it, after which only that package is queried
+ * again. Code that restarts the framework or installs packages it can't name must invalidate all
+ * of them instead. As a safeguard against changes made by other tools, the whole list is reloaded
+ * once it gets older than a few minutes.
+ *
+ * <p>This class is thread-safe and a single instance is shared per device within a process.
+ */
+public final class PackageInventory {
+    @VisibleForTesting static final String LIST_PACKAGES_COMMAND = "pm list packages -f -U";
+    @VisibleForTesting static final String SHOW_VERSION_CODE_FLAG = " --show-versioncode";
+    private static final String PACKAGE_PREFIX = "package:";
+    private static final String VERSION_CODE_PREFIX = "versionCode:";
+    private static final String UID_PREFIX = "uid:";
+    private static final long MAX_SNAPSHOT_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final Map<String, PackageInventory> sInventories = new ConcurrentHashMap<>();
+
+    private final ITestDevice mDevice;
+    private Map<String, Entry> mPackages;
+    private final Set<String> mInvalidatedPackages = new HashSet<>();
+    private long mSnapshotTimeMillis;
+    // Devices older than Android P do not support listing version codes.
+    private boolean mVersionCodeSupported = true;
+
+    private PackageInventory(ITestDevice device) {
+        mDevice = device;
+    }
+
+    /** Returns the inventory of a device. */
+    public static PackageInventory get(ITestDevice device) {
+        String serial = device.getSerialNumber();
+        if (serial == null) {
+            return new PackageInventory(device);
+        }
+        return sInventories.computeIfAbsent(serial, s -> new PackageInventory(device));
+    }
+
+    /** Returns whether a package is installed. */
+    public boolean isInstalled(String packageName)
+            throws TargetSetupError, DeviceNotAvailableException {
+        return getEntry(packageName).isPresent();
+    }
+
+    /** Returns the installed package, if any. */
+    public synchronized Optional<Entry> getEntry(String packageName)
+            throws TargetSetupError, DeviceNotAvailableException {
+        if (mPackages == null
+                || System.currentTimeMillis() - mSnapshotTimeMillis > MAX_SNAPSHOT_AGE_MILLIS) {
+            reload();
+        } else if (mInvalidatedPackages.remove(packageName)) {
+            reload(packageName);
+        }
+        return Optional.ofNullable(mPackages.get(packageName));
+    }
+
+    /** Marks a package as possibly changed after it was installed or uninstalled. */
+    public synchronized void invalidate(String packageName) {
+        mInvalidatedPackages.add(packageName);
+    }
+
+    /** Marks all packages as possibly changed, for example after the device was rebooted. */
+    public synchronized void invalidateAll() {
+        mPackages = null;
+        mInvalidatedPackages.clear();
+    }
+
+    private void reload() throws TargetSetupError, DeviceNotAvailableException {
+        mPackages = listPackages("");
+        mInvalidatedPackages.clear();
+        mSnapshotTimeMillis = System.currentTimeMillis();
+    }
+
+    private void reload(String packageName) throws TargetSetupError, DeviceNotAvailableException {
+        // The package name argument of pm filters by substring, hence the exact lookup.
+        Entry entry = listPackages(" " + packageName).get(packageName);
+        if (entry == null) {
+            mPackages.remove(packageName);
+        } else {
+            mPackages.put(packageName, entry);
+        }
+    }
+
+    private Map<String, Entry> listPackages(String filter)
+            throws TargetSetupError, DeviceNotAvailableException {
+        CommandResult result = null;
+        if (mVersionCodeSupported) {
+            result =
+                    mDevice.executeShellV2Command(
+                            LIST_PACKAGES_COMMAND + SHOW_VERSION_CODE_FLAG + filter);
+        }
+        if (!isSuccess(result)) {
+            result = mDevice.executeShellV2Command(LIST_PACKAGES_COMMAND + filter);
+            if (mVersionCodeSupported && isSuccess(result)) {
+                CLog.i("Version codes are not supported, listing packages without them.");
+                mVersionCodeSupported = false;
+            }
+        }
+
+        if (!isSuccess(result)) {
+            throw new TargetSetupError(
+                    String.format("Failed to list the installed packages: %s", result));
+        }
+
+        Map<String, Entry> packages = new HashMap<>();
+        for (String line : result.getStdout().split("\\r?\\n")) {
+            Entry entry = Entry.parse(line.trim());
+            if (entry != null) {
+                packages.put(entry.getPackageName(), entry);
+            }
+        }
+        return packages;
+    }
+
+    private static boolean isSuccess(CommandResult result) {
+        return result != null
+                && result.getStatus() == CommandStatus.SUCCESS
+                && result.getStdout() != null;
+    }
+
+    /** A package installed on a device. */
+    public static final class Entry {
+        private final String mPackageName;
+        @Nullable private final String mApkPath;
+        private final long mVersionCode;
+        private final int mUid;
+
+        @VisibleForTesting
+        Entry(String packageName, @Nullable String apkPath, long versionCode, int uid) {
+            mPackageName = packageName;
+            mApkPath = apkPath;
+            mVersionCode = versionCode;
+            mUid = uid;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        /** Returns the path of the base APK file, or null if not known. */
+        @Nullable
+        public String getApkPath() {
+            return mApkPath;
+        }
+
+        /** Returns the version code of the package, or -1 if not known. */
+        public long getVersionCode() {
+            return mVersionCode;
+        }
+
+        /** Returns the user id of the package, or -1 if not known. */
+        public int getUid() {
+            return mUid;
+        }
+
+        /**
+         * Parses a line of the form {@code package:<path>=<name> versionCode:<code> uid:<uid>}.
+         * Returns null if the line does not describe a package.
+         */
+        @VisibleForTesting
+        static Entry parse(String line) {
+            if (!line.startsWith(PACKAGE_PREFIX)) {
+                return null;
+            }
+
+            String[] tokens = line.substring(PACKAGE_PREFIX.length()).split(" ");
+            String apkPath = null;
+            String packageName = tokens[0];
+            int separator = tokens[0].lastIndexOf('=');
+            if (separator >= 0) {
+                apkPath = tokens[0].substring(0, separator);
+                packageName = tokens[0].substring(separator + 1);
+            }
+
+            long versionCode = -1;
+            int uid = -1;
+            try {
+                for (int i = 1; i < tokens.length; i++) {
+                    if (tokens[i].startsWith(VERSION_CODE_PREFIX)) {
+                        versionCode =
+                                Long.parseLong(tokens[i].substring(VERSION_CODE_PREFIX.length()));
+                    } else if (tokens[i].startsWith(UID_PREFIX)) {
+                        uid = Integer.parseInt(tokens[i].substring(UID_PREFIX.length()));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                CLog.w("Failed to parse package line: %s", line);
+            }
+
+            return new Entry(packageName, apkPath, versionCode, uid);
+        }
+    }
+}
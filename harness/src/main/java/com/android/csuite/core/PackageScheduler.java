@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * A work queue of packages shared by the devices of a test run.
+ *
+ * <p>Each device takes the next packages from the queue once it is done with its previous ones, so
+ * packages are not statically assigned to devices. Packages are handed out longest first based on
+ * their expected test duration which keeps the total run time close to optimal. Packages without
+ * any duration estimate are handed out before all others as they may be the longest ones.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class PackageScheduler {
+    private final Deque<String> mQueue;
+
+    public PackageScheduler(Collection<String> packageNames, LaunchDurationEstimator estimator) {
+        Map<String, Optional<Duration>> estimates = new HashMap<>();
+        for (String packageName : packageNames) {
+            estimates.computeIfAbsent(packageName, estimator::estimate);
+        }
+
+        Comparator<String> longestFirst =
+                Comparator.<String, Boolean>comparing(p -> estimates.get(p).isPresent())
+                        .thenComparing(
+                                p -> estimates.get(p).orElse(Duration.ZERO),
+                                Comparator.reverseOrder())
+                        .thenComparing(Comparator.naturalOrder());
+
+        mQueue =
+                estimates.keySet().stream()
+                        .sorted(longestFirst)
+                        .collect(Collectors.toCollection(ArrayDeque::new));
+    }
+
+    /**
+     * Takes the next packages to test from the queue.
+     *
+     * @param maxCount the maximum number of packages to take.
+     * @return the packages to test, or an empty list when the queue is drained.
+     */
+    public synchronized List<String> poll(int maxCount) {
+        checkArgument(maxCount > 0, "maxCount (%s) must be positive", maxCount);
+
+        List<String> packageNames = new ArrayList<>();
+        while (packageNames.size() < maxCount && !mQueue.isEmpty()) {
+            packageNames.add(mQueue.poll());
+        }
+        return packageNames;
+    }
+
+    /** Returns the number of packages left in the queue. */
+    public synchronized int size() {
+        return mQueue.size();
+    }
+}
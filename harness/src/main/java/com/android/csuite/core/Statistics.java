@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/** Utility methods for summarizing measured values. */
+public final class Statistics {
+
+    /**
+     * Returns a percentile of the given values, linearly interpolated between the closest ranks.
+     *
+     * @param values the values, which must not be empty.
+     * @param percentile the percentile to compute, between 0 and 100.
+     */
+    public static double percentile(Collection<? extends Number> values, double percentile) {
+        checkArgument(!values.isEmpty(), "Cannot compute a percentile of no values");
+        checkArgument(
+                percentile >= 0 && percentile <= 100,
+                "percentile (%s) must be between 0 and 100",
+                percentile);
+
+        List<Double> sorted = new ArrayList<>(values.size());
+        for (Number value : values) {
+            sorted.add(value.doubleValue());
+        }
+        Collections.sort(sorted);
+
+        double rank = percentile / 100 * (sorted.size() - 1);
+        int lower = (int) Math.floor(rank);
+        int upper = (int) Math.ceil(rank);
+        return sorted.get(lower) + (rank - lower) * (sorted.get(upper) - sorted.get(lower));
+    }
+
+    /** Returns the median of the given values, which must not be empty. */
+    public static double median(Collection<? extends Number> values) {
+        return percentile(values, 50);
+    }
+
+    /** Returns the sample standard deviation of the given values, which must not be empty. */
+    public static double standardDeviation(Collection<? extends Number> values) {
+        checkArgument(!values.isEmpty(), "Cannot compute a standard deviation of no values");
+        if (values.size() == 1) {
+            return 0;
+        }
+
+        double sum = 0;
+        for (Number value : values) {
+            sum += value.doubleValue();
+        }
+        double mean = sum / values.size();
+        double squaredDeviations = 0;
+        for (Number value : values) {
+            squaredDeviations += Math.pow(value.doubleValue() - mean, 2);
+        }
+        return Math.sqrt(squaredDeviations / (values.size() - 1));
+    }
+
+    /**
+     * Returns the given values without the outliers, which are the values further than 1.5 times
+     * the interquartile range below the first or above the third quartile. The order of the
+     * remaining values is preserved.
+     */
+    public static <T extends Number> List<T> withoutOutliers(Collection<T> values) {
+        if (values.isEmpty()) {
+            return new ArrayList<>(values);
+        }
+
+        double firstQuartile = percentile(values, 25);
+        double thirdQuartile = percentile(values, 75);
+        double margin = 1.5 * (thirdQuartile - firstQuartile);
+        List<T> kept = new ArrayList<>(values.size());
+        for (T value : values) {
+            double v = value.doubleValue();
+            if (v >= firstQuartile - margin && v <= thirdQuartile + margin) {
+                kept.add(value);
+            }
+        }
+        return kept;
+    }
+
+    private Statistics() {}
+}
@@ -28,10 +28,14 @@ import com.android.tradefed.util.CommandStatus;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 /**
- * Uninstalls a system app.
+ * Uninstalls system apps.
  *
  * <p>This utility class may not restore the uninstalled system app after test completes.
  *
@@ -50,6 +54,31 @@ public final class SystemPackageUninstaller {
             throws TargetSetupError, DeviceNotAvailableException {
         checkNotNull(packageName);
 
+        TargetSetupError error =
+                uninstallPackages(Collections.singleton(packageName), device).get(packageName);
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Uninstalls a set of system apps with a single remount and framework restart.
+     *
+     * <p>The updates of all packages are removed first while the framework is running. The install
+     * directories of the remaining system apps are then removed together while the framework is
+     * stopped.
+     *
+     * @return the errors of the packages that failed to be uninstalled, keyed by package name.
+     * @throws TargetSetupError if the device could not be prepared for uninstalling any package.
+     */
+    public static Map<String, TargetSetupError> uninstallPackages(
+            Set<String> packageNames, ITestDevice device)
+            throws TargetSetupError, DeviceNotAvailableException {
+        for (String packageName : packageNames) {
+            checkNotNull(packageName);
+        }
+
+        PackageInventory inventory = PackageInventory.get(device);
         if (!isPackageManagerRunning(device)) {
             CLog.w(
                     "Package manager is not available on the device."
@@ -60,45 +89,99 @@ public final class SystemPackageUninstaller {
                         stopFramework(device);
                         startFramework(device);
                     });
+            // The framework scans the installed packages again when it starts.
+            inventory.invalidateAll();
             if (!isPackageManagerRunning(device)) {
                 throw new TargetSetupError("The package manager failed to start.");
             }
         }
 
-        if (!isPackageInstalled(packageName, device)) {
+        Map<String, TargetSetupError> errors = new LinkedHashMap<>();
+        Map<String, String> packageInstallDirectories = new LinkedHashMap<>();
+        for (String packageName : packageNames) {
+            try {
+                String packageInstallDirectory =
+                        removeUpdatesOfSystemApp(packageName, inventory, device);
+                if (packageInstallDirectory != null) {
+                    packageInstallDirectories.put(packageName, packageInstallDirectory);
+                }
+            } catch (TargetSetupError e) {
+                CLog.w("Failed to uninstall %s: %s", packageName, e.getMessage());
+                errors.put(packageName, e);
+            }
+        }
+
+        if (packageInstallDirectories.isEmpty()) {
+            return errors;
+        }
+
+        CLog.i("Uninstalling system apps %s", packageInstallDirectories.keySet());
+
+        try {
+            runWithWritableFilesystem(
+                    device,
+                    () ->
+                            runWithFrameworkOff(
+                                    device,
+                                    () -> {
+                                        for (Map.Entry<String, String> entry :
+                                                packageInstallDirectories.entrySet()) {
+                                            try {
+                                                removePackageInstallDirectory(
+                                                        entry.getValue(), device);
+                                            } catch (TargetSetupError e) {
+                                                CLog.w(
+                                                        "Failed to uninstall %s: %s",
+                                                        entry.getKey(),
+                                                        e.getMessage());
+                                                errors.put(entry.getKey(), e);
+                                                continue;
+                                            }
+                                            removePackageData(entry.getKey(), device);
+                                        }
+                                    }));
+        } finally {
+            // The framework scans the installed packages again when it starts.
+            inventory.invalidateAll();
+        }
+
+        return errors;
+    }
+
+    /**
+     * Removes the updates of a package and returns the install directory of the system app that
+     * remains, or null if there is no system app left to remove.
+     */
+    private static String removeUpdatesOfSystemApp(
+            String packageName, PackageInventory inventory, ITestDevice device)
+            throws TargetSetupError, DeviceNotAvailableException {
+        if (!inventory.isInstalled(packageName)) {
             CLog.i("Package %s is not installed.", packageName);
-            return;
+            return null;
         }
 
         // Attempts to uninstall the package/updates from user partition.
         // This method should be called before the other methods and requires
         // the framework to be running.
-        removePackageUpdates(packageName, device);
+        if (removePackageUpdates(packageName, device)) {
+            inventory.invalidate(packageName);
+        }
 
-        if (!isPackageInstalled(packageName, device)) {
+        Optional<PackageInventory.Entry> entry = inventory.getEntry(packageName);
+        if (!entry.isPresent()) {
             CLog.i("Package %s has been removed.", packageName);
-            return;
+            return null;
         }
 
-        String packageInstallDirectory = getPackageInstallDirectory(packageName, device);
+        String packageInstallDirectory = getPackageInstallDirectory(entry.get());
         CLog.d("Install directory for package %s is %s", packageName, packageInstallDirectory);
 
         if (!isPackagePathSystemApp(packageInstallDirectory)) {
             CLog.w("%s is not a system app, skipping", packageName);
-            return;
+            return null;
         }
 
-        CLog.i("Uninstalling system app %s", packageName);
-
-        runWithWritableFilesystem(
-                device,
-                () ->
-                        runWithFrameworkOff(
-                                device,
-                                () -> {
-                                    removePackageInstallDirectory(packageInstallDirectory, device);
-                                    removePackageData(packageName, device);
-                                }));
+        return packageInstallDirectory;
     }
 
     private interface PreparerTask {
@@ -222,7 +305,8 @@ public final class SystemPackageUninstaller {
                         "Failed to remove system app package path %s", packageInstallDirectory));
     }
 
-    private static void removePackageUpdates(String packageName, ITestDevice device)
+    /** Removes the updates of a package and returns whether any update was removed. */
+    private static boolean removePackageUpdates(String packageName, ITestDevice device)
             throws TargetSetupError, DeviceNotAvailableException {
         CLog.i("Removing package updates for %s", packageName);
 
@@ -233,7 +317,7 @@ public final class SystemPackageUninstaller {
             String errMsg = device.uninstallPackage(packageName);
             if (errMsg != null) {
                 CLog.d("Completed removing updates as the uninstall command returned: %s", errMsg);
-                return;
+                return i > 0;
             }
             CLog.i("Removed an update package for %s", packageName);
         }
@@ -257,40 +341,15 @@ public final class SystemPackageUninstaller {
         return device.executeShellV2Command(PM_CHECK_COMMAND).getStatus() == CommandStatus.SUCCESS;
     }
 
-    private static boolean isPackageInstalled(String packageName, ITestDevice device)
-            throws TargetSetupError, DeviceNotAvailableException {
-        CommandResult commandResult =
-                executeShellCommandOrThrow(
-                        device,
-                        String.format("pm list packages %s", packageName),
-                        "Failed to execute pm command");
-
-        if (commandResult.getStdout() == null) {
-            throw new TargetSetupError(
-                    String.format(
-                            "Failed to get pm command output: %s", commandResult.getStdout()));
-        }
-
-        return Arrays.asList(commandResult.getStdout().split("\\r?\\n"))
-                .contains(String.format("package:%s", packageName));
-    }
-
-    private static String getPackageInstallDirectory(String packageName, ITestDevice device)
-            throws TargetSetupError, DeviceNotAvailableException {
-        CommandResult commandResult =
-                executeShellCommandOrThrow(
-                        device,
-                        String.format("pm path %s", packageName),
-                        "Failed to execute pm command");
-
-        if (commandResult.getStdout() == null
-                || !commandResult.getStdout().startsWith("package:")) {
+    private static String getPackageInstallDirectory(PackageInventory.Entry entry)
+            throws TargetSetupError {
+        if (entry.getApkPath() == null) {
             throw new TargetSetupError(
                     String.format(
-                            "Failed to get pm path command output %s", commandResult.getStdout()));
+                            "Failed to get the install path of package %s",
+                            entry.getPackageName()));
         }
 
-        String packageInstallPath = commandResult.getStdout().substring("package:".length());
-        return Paths.get(packageInstallPath).getParent().toString();
+        return Paths.get(entry.getApkPath()).getParent().toString();
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks with a timeout on a bounded pool of threads shared by the whole process.
+ *
+ * <p>The timeout of a task includes the time it waits for a free thread, so callers are not blocked
+ * indefinitely when every thread is stuck in a task that ignores interrupts. Tasks that time out
+ * are interrupted. The pool threads are daemon threads that exit once idle. The shared instance is
+ * shut down when the process exits.
+ *
+ * <p>The peak numbers of running and waiting tasks and the number of timed out tasks are reported
+ * as invocation metrics.
+ */
+public final class TimeoutExecutor {
+    private static final int DEFAULT_MAX_THREADS = 32;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+    private static final String PEAK_ACTIVE_METRIC = "csuite_timeout_executor_peak_active";
+    private static final String PEAK_QUEUED_METRIC = "csuite_timeout_executor_peak_queued";
+    private static final String TIMED_OUT_METRIC = "csuite_timeout_executor_timed_out";
+    private static final TimeoutExecutor sInstance = createSharedInstance();
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mActiveCount = new AtomicInteger();
+    private final AtomicLong mTimedOutCount = new AtomicLong();
+    private final AtomicInteger mPeakActiveCount = new AtomicInteger();
+    private final AtomicInteger mPeakQueuedCount = new AtomicInteger();
+
+    @VisibleForTesting
+    TimeoutExecutor(int maxThreads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        mExecutor =
+                new ThreadPoolExecutor(
+                        maxThreads,
+                        maxThreads,
+                        KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(),
+                        runnable -> {
+                            Thread thread =
+                                    new Thread(
+                                            runnable,
+                                            "TimeoutExecutor-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static TimeoutExecutor createSharedInstance() {
+        TimeoutExecutor executor = new TimeoutExecutor(DEFAULT_MAX_THREADS);
+        Runtime.getRuntime()
+                .addShutdownHook(new Thread(executor::shutdown, "TimeoutExecutor-shutdown"));
+        return executor;
+    }
+
+    /** Returns the executor shared by the whole process. */
+    public static TimeoutExecutor getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Runs a task and waits for its result.
+     *
+     * @param task the task to run.
+     * @param timeoutMillis the maximum time to wait for the task, including the time it waits for
+     *     a free thread.
+     * @return the result of the task.
+     * @throws TimeoutException if the task did not finish in time, in which case it is interrupted
+     *     or never started.
+     * @throws ExecutionException if the task threw an exception, available as the cause.
+     * @throws InterruptedException if the calling thread was interrupted while waiting.
+     */
+    public <T> T call(Callable<T> task, long timeoutMillis)
+            throws TimeoutException, ExecutionException, InterruptedException {
+        checkArgument(timeoutMillis >= 0, "timeoutMillis (%s) must not be negative", timeoutMillis);
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        CountDownLatch started = new CountDownLatch(1);
+        Future<T> future =
+                mExecutor.submit(
+                        () -> {
+                            mPeakActiveCount.accumulateAndGet(
+                                    mActiveCount.incrementAndGet(), Math::max);
+                            started.countDown();
+                            try {
+                                return task.call();
+                            } finally {
+                                mActiveCount.decrementAndGet();
+                            }
+                        });
+        mPeakQueuedCount.accumulateAndGet(getQueuedCount(), Math::max);
+
+        try {
+            if (!started.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException(
+                        String.format(
+                                "No thread became free to run the task within %d ms",
+                                timeoutMillis));
+            }
+            long remainingMillis = Math.max(0, deadline - System.currentTimeMillis());
+            return future.get(remainingMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            mTimedOutCount.incrementAndGet();
+            throw e;
+        } finally {
+            if (future.cancel(true)) {
+                // Drops the task from the queue if it never started.
+                mExecutor.purge();
+            }
+            reportMetrics();
+        }
+    }
+
+    /** Returns the number of tasks currently running. */
+    public int getActiveCount() {
+        return mActiveCount.get();
+    }
+
+    /** Returns the number of tasks waiting for a free thread. */
+    public int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    /** Returns the number of tasks that timed out since the executor was created. */
+    public long getTimedOutCount() {
+        return mTimedOutCount.get();
+    }
+
+    /**
+     * Stops accepting tasks and waits a few seconds for the running ones to finish before
+     * interrupting them.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                mExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            mExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @VisibleForTesting
+    void shutdownNow() {
+        mExecutor.shutdownNow();
+    }
+
+    private void reportMetrics() {
+        InvocationMetricLogger.addInvocationMetrics(PEAK_ACTIVE_METRIC, mPeakActiveCount.get());
+        InvocationMetricLogger.addInvocationMetrics(PEAK_QUEUED_METRIC, mPeakQueuedCount.get());
+        InvocationMetricLogger.addInvocationMetrics(TIMED_OUT_METRIC, mTimedOutCount.get());
+    }
+}
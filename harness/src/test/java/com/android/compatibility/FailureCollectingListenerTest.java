@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.compatibility.FailureCollectingListener.EventKind;
+import com.android.compatibility.FailureCollectingListener.FailureRecord;
+import com.android.tradefed.result.TestDescription;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class FailureCollectingListenerTest {
+    private static final TestDescription TEST = new TestDescription("Class", "test");
+
+    @Test
+    public void getStackTrace_noFailure_returnsNull() {
+        FailureCollectingListener listener = new FailureCollectingListener();
+
+        assertThat(listener.getStackTrace()).isNull();
+        assertThat(listener.getFailures()).isEmpty();
+    }
+
+    @Test
+    public void getFailures_testAndRunFailed_keepsBothInOrder() {
+        FailureCollectingListener listener = new FailureCollectingListener();
+
+        listener.testFailed(TEST, "app crashed");
+        listener.testRunFailed("Process crashed.");
+
+        assertThat(listener.getFailures()).hasSize(2);
+        FailureRecord testFailure = listener.getFailures().get(0);
+        assertThat(testFailure.getKind()).isEqualTo(EventKind.TEST_FAILED);
+        assertThat(testFailure.getTest()).isEqualTo(TEST);
+        assertThat(testFailure.getTrace()).isEqualTo("app crashed");
+        FailureRecord runFailure = listener.getFailures().get(1);
+        assertThat(runFailure.getKind()).isEqualTo(EventKind.RUN_FAILED);
+        assertThat(runFailure.getTest()).isNull();
+        assertThat(listener.getStackTrace()).isEqualTo("app crashed\n\nProcess crashed.");
+    }
+
+    @Test
+    public void getFailures_tooManyFailures_keepsFirstAndCountsDropped() {
+        FailureCollectingListener listener = new FailureCollectingListener();
+
+        for (int i = 0; i < FailureCollectingListener.MAX_FAILURE_RECORDS + 3; i++) {
+            listener.testFailed(TEST, "failure " + i);
+        }
+
+        assertThat(listener.getFailures()).hasSize(FailureCollectingListener.MAX_FAILURE_RECORDS);
+        assertThat(listener.getFailures().get(0).getTrace()).isEqualTo("failure 0");
+        assertThat(listener.getStackTrace()).endsWith("... 3 more failures omitted ...");
+    }
+}
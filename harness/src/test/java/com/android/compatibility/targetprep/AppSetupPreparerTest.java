@@ -15,6 +15,9 @@
  */
 package com.android.compatibility.targetprep;
 
+import com.android.csuite.core.LaunchRecord;
+import com.android.csuite.core.LaunchResultStore;
+import com.android.tradefed.build.BuildInfo;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.ArgsOptionParser;
 import com.android.tradefed.config.ConfigurationException;
@@ -22,9 +25,12 @@ import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.TestInformation;
+import com.android.tradefed.result.CompatibilityTestResult;
 import com.android.tradefed.targetprep.TargetSetupError;
 import com.android.tradefed.targetprep.TestAppInstallSetup;
 import com.android.tradefed.util.AaptParser.AaptVersion;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -34,6 +40,7 @@ import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertThrows;
@@ -52,6 +59,7 @@ import org.mockito.stubbing.Answer;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -417,6 +425,116 @@ public final class AppSetupPreparerTest {
         }
     }
 
+    @Test
+    public void setUp_historyFileSet_recordsApkHash() throws Exception {
+        IBuildInfo buildInfo = new BuildInfo();
+        AppSetupPreparer preparer =
+                createSkipUnchangedPreparer(mock(TestAppInstallSetup.class), createApkFile("v1"))
+                        .build();
+
+        preparer.setUp(createDeviceWithoutPackage(), buildInfo);
+
+        assertThat(getSetup().getApkHash()).isNotNull();
+        assertThat(buildInfo.getBuildAttributes()).isEmpty();
+    }
+
+    @Test
+    public void setUp_skipUnchangedAndApkUnchanged_doesNotInstall() throws Exception {
+        File apkFile = createApkFile("v1");
+        recordPassWithApkHash(getApkHash(apkFile));
+        TestAppInstallSetup installer = mock(TestAppInstallSetup.class);
+        AppSetupPreparer preparer =
+                createSkipUnchangedPreparer(installer, apkFile)
+                        .setOption(AppSetupPreparer.OPTION_SKIP_UNCHANGED, "true")
+                        .build();
+
+        preparer.setUp(createDeviceWithoutPackage(), new BuildInfo());
+
+        verify(installer, never()).setUp(any(), any());
+        assertThat(getSetup().isUnchanged()).isTrue();
+    }
+
+    @Test
+    public void setUp_skipUnchangedAndApkChanged_installs() throws Exception {
+        recordPassWithApkHash(getApkHash(createApkFile("v1")));
+        TestAppInstallSetup installer = mock(TestAppInstallSetup.class);
+        AppSetupPreparer preparer =
+                createSkipUnchangedPreparer(installer, createApkFile("v2"))
+                        .setOption(AppSetupPreparer.OPTION_SKIP_UNCHANGED, "true")
+                        .build();
+
+        preparer.setUp(createDeviceWithoutPackage(), new BuildInfo());
+
+        verify(installer).setUp(any(), any());
+        assertThat(getSetup().isUnchanged()).isFalse();
+    }
+
+    @Test
+    public void setUp_skipUnchangedAndSampled_installs() throws Exception {
+        File apkFile = createApkFile("v1");
+        recordPassWithApkHash(getApkHash(apkFile));
+        TestAppInstallSetup installer = mock(TestAppInstallSetup.class);
+        AppSetupPreparer preparer =
+                createSkipUnchangedPreparer(installer, apkFile)
+                        .setOption(AppSetupPreparer.OPTION_SKIP_UNCHANGED, "true")
+                        .setOption(AppSetupPreparer.OPTION_UNCHANGED_SAMPLE_RATE, "1")
+                        .build();
+
+        preparer.setUp(createDeviceWithoutPackage(), new BuildInfo());
+
+        verify(installer).setUp(any(), any());
+    }
+
+    private PreparerBuilder createSkipUnchangedPreparer(
+            TestAppInstallSetup installer, File apkFile) {
+        return new PreparerBuilder()
+                .setInstaller(installer)
+                .setOption("package-name", TEST_PACKAGE_NAME)
+                .setOption(AppSetupPreparer.OPTION_TEST_FILE_NAME, apkFile.getPath())
+                .setOption(AppSetupPreparer.OPTION_RESULT_HISTORY_FILE, getHistoryFile().getPath());
+    }
+
+    private String getApkHash(File apkFile) throws Exception {
+        createSkipUnchangedPreparer(mock(TestAppInstallSetup.class), apkFile)
+                .build()
+                .setUp(createDeviceWithoutPackage(), new BuildInfo());
+        String apkHash = getSetup().getApkHash();
+        LaunchResultStore.open(getHistoryFile().toPath()).clearSetup(TEST_PACKAGE_NAME);
+        return apkHash;
+    }
+
+    private LaunchResultStore.PackageSetup getSetup() {
+        return LaunchResultStore.open(getHistoryFile().toPath()).getSetup(TEST_PACKAGE_NAME);
+    }
+
+    private void recordPassWithApkHash(String apkHash) throws IOException {
+        LaunchResultStore.open(getHistoryFile().toPath())
+                .append(
+                        LaunchRecord.builder()
+                                .setPackageName(TEST_PACKAGE_NAME)
+                                .setStatus(CompatibilityTestResult.STATUS_SUCCESS)
+                                .setApkHash(apkHash)
+                                .build());
+    }
+
+    private File getHistoryFile() {
+        return new File(tempFolder.getRoot(), "history.jsonl");
+    }
+
+    private File createApkFile(String content) throws IOException {
+        File apkFile = tempFolder.newFile();
+        Files.write(apkFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return apkFile;
+    }
+
+    private static ITestDevice createDeviceWithoutPackage() throws Exception {
+        ITestDevice device = mock(ITestDevice.class);
+        CommandResult result = new CommandResult(CommandStatus.SUCCESS);
+        result.setStdout("");
+        when(device.executeShellV2Command(any())).thenReturn(result);
+        return device;
+    }
+
     private TestAppInstallSetup mockInstallerThatThrows(Exception e) throws Exception {
         TestAppInstallSetup installer = mock(TestAppInstallSetup.class);
         doThrow(e).when(installer).setUp(any(), any());
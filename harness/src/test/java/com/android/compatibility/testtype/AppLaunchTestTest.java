@@ -15,33 +15,46 @@
  */
 package com.android.compatibility.testtype;
 
+import com.android.compatibility.targetprep.AppSetupPreparer;
+import com.android.csuite.core.LaunchRecord;
+import com.android.csuite.core.LaunchResultStore;
+import com.android.tradefed.config.Configuration;
+import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.TestInformation;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.CompatibilityTestResult;
 import com.android.tradefed.result.FileInputStreamSource;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.InstrumentationTest;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.StreamUtil;
 
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyObject;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertThrows;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -51,16 +64,24 @@ import org.junit.runners.JUnit4;
 import org.mockito.InOrder;
 import org.mockito.Mockito;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(JUnit4.class)
 public final class AppLaunchTestTest {
 
     private final ITestInvocationListener mMockListener = mock(ITestInvocationListener.class);
     private static final String TEST_PACKAGE_NAME = "package_name";
+    private static final String TEST_PACKAGE_NAME_2 = "package_name_2";
     private static final TestInformation NULL_TEST_INFORMATION = null;
     @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
 
@@ -102,6 +123,158 @@ public final class AppLaunchTestTest {
                 .testLog(Mockito.contains("screenshot"), Mockito.any(), Mockito.eq(screenshotData));
     }
 
+    @Test
+    public void run_takeScreenShotWithLaunchMeasurements_capturesBeforeMeasuring()
+            throws Exception {
+        InstrumentationTest instrumentationTest = createPassingInstrumentationTest();
+        AppLaunchTest appLaunchTest = createLaunchTestWithInstrumentation(instrumentationTest);
+        OptionSetter optionSetter = new OptionSetter(appLaunchTest);
+        optionSetter.setOptionValue(AppLaunchTest.SCREENSHOT_AFTER_LAUNCH, "true");
+        optionSetter.setOptionValue("launch-measurement-count", "1");
+        ITestDevice mMockDevice = mock(ITestDevice.class);
+        appLaunchTest.setDevice(mMockDevice);
+        when(mMockDevice.getScreenshot())
+                .thenReturn(new FileInputStreamSource(tempFolder.newFile()));
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        InOrder inOrder = inOrder(mMockDevice);
+        inOrder.verify(mMockDevice).getScreenshot();
+        inOrder.verify(mMockDevice)
+                .executeShellCommand(Mockito.startsWith("cmd package resolve-activity"));
+    }
+
+    @Test
+    public void run_testPassed_postsLogcatWithResultHeader() throws Exception {
+        InstrumentationTest instrumentationTest = createPassingInstrumentationTest();
+        AppLaunchTest appLaunchTest = createLaunchTestWithInstrumentation(instrumentationTest);
+        List<String> logContents = new ArrayList<>();
+        Mockito.doAnswer(
+                        invocation -> {
+                            InputStreamSource source = invocation.getArgument(2);
+                            logContents.add(
+                                    StreamUtil.getStringFromStream(source.createInputStream()));
+                            return null;
+                        })
+                .when(mMockListener)
+                .testLog(Mockito.startsWith("logcat_"), Mockito.any(), Mockito.any());
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        assertEquals(1, logContents.size());
+        assertTrue(logContents.get(0).startsWith(CompatibilityTestResult.SEPARATOR));
+        assertTrue(logContents.get(0).contains(TEST_PACKAGE_NAME));
+    }
+
+    @Test
+    public void run_resultHistoryFileSet_appendsResult() throws Exception {
+        InstrumentationTest instrumentationTest = createFailingInstrumentationTest();
+        AppLaunchTest appLaunchTest = createLaunchTestWithInstrumentation(instrumentationTest);
+        ITestDevice device = mock(ITestDevice.class);
+        CommandResult listPackagesResult = new CommandResult(CommandStatus.SUCCESS);
+        listPackagesResult.setStdout(
+                "package:/data/app/base.apk=" + TEST_PACKAGE_NAME + " versionCode:7 uid:10001\n");
+        when(device.executeShellV2Command(Mockito.startsWith("pm list packages")))
+                .thenReturn(listPackagesResult);
+        appLaunchTest.setDevice(device);
+        File historyFile = new File(tempFolder.getRoot(), "history.jsonl");
+        new OptionSetter(appLaunchTest)
+                .setOptionValue("result-history-file", historyFile.getPath());
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        LaunchRecord record =
+                LaunchResultStore.open(historyFile.toPath())
+                        .getLatestRecord(TEST_PACKAGE_NAME)
+                        .get();
+        assertEquals(CompatibilityTestResult.STATUS_FAILURE, record.getStatus());
+        assertEquals(7, record.getVersionCode());
+        assertNotNull(record.getFailureSignature());
+    }
+
+    @Test
+    public void getLaunchTimeoutMs_adaptiveWithHistory_scalesAndClampsRecordedTimes()
+            throws Exception {
+        File historyFile = new File(tempFolder.getRoot(), "history.jsonl");
+        LaunchResultStore store = LaunchResultStore.open(historyFile.toPath());
+        for (int i = 0; i < AppLaunchTest.MIN_ADAPTIVE_LAUNCH_TIMEOUT_SAMPLES; i++) {
+            store.append(
+                    LaunchRecord.builder()
+                            .setPackageName(TEST_PACKAGE_NAME)
+                            .setStatus(CompatibilityTestResult.STATUS_SUCCESS)
+                            .setTimeToLaunchMillis(2000)
+                            .build());
+            store.append(
+                    LaunchRecord.builder()
+                            .setPackageName("com.fast.app")
+                            .setStatus(CompatibilityTestResult.STATUS_SUCCESS)
+                            .setTimeToLaunchMillis(100)
+                            .build());
+        }
+        AppLaunchTest appLaunchTest = new AppLaunchTest(TEST_PACKAGE_NAME);
+        OptionSetter optionSetter = new OptionSetter(appLaunchTest);
+        optionSetter.setOptionValue("result-history-file", historyFile.getPath());
+        optionSetter.setOptionValue("adaptive-launch-timeout", "true");
+        optionSetter.setOptionValue("adaptive-launch-timeout-factor", "3");
+        optionSetter.setOptionValue("min-adaptive-launch-timeout-ms", "1000");
+
+        assertEquals(6000, appLaunchTest.getLaunchTimeoutMs(TEST_PACKAGE_NAME));
+        assertEquals(1000, appLaunchTest.getLaunchTimeoutMs("com.fast.app"));
+        assertEquals(15000, appLaunchTest.getLaunchTimeoutMs("com.unknown.app"));
+    }
+
+    @Test
+    public void getLaunchTimeoutMs_adaptiveDisabled_returnsAppLaunchTimeout() throws Exception {
+        AppLaunchTest appLaunchTest = new AppLaunchTest(TEST_PACKAGE_NAME);
+        new OptionSetter(appLaunchTest).setOptionValue("app-launch-timeout-ms", "7000");
+
+        assertEquals(7000, appLaunchTest.getLaunchTimeoutMs(TEST_PACKAGE_NAME));
+    }
+
+    @Test
+    public void createBatchInstrumentationTest_adaptiveTimeouts_sumsPackageTimeouts()
+            throws Exception {
+        File historyFile = new File(tempFolder.getRoot(), "history.jsonl");
+        LaunchResultStore store = LaunchResultStore.open(historyFile.toPath());
+        for (int i = 0; i < AppLaunchTest.MIN_ADAPTIVE_LAUNCH_TIMEOUT_SAMPLES; i++) {
+            store.append(
+                    LaunchRecord.builder()
+                            .setPackageName("com.fast.app")
+                            .setStatus(CompatibilityTestResult.STATUS_SUCCESS)
+                            .setTimeToLaunchMillis(100)
+                            .build());
+        }
+        AppLaunchTest appLaunchTest = new AppLaunchTest();
+        OptionSetter optionSetter = new OptionSetter(appLaunchTest);
+        optionSetter.setOptionValue("result-history-file", historyFile.getPath());
+        optionSetter.setOptionValue("adaptive-launch-timeout", "true");
+        optionSetter.setOptionValue("min-adaptive-launch-timeout-ms", "1000");
+        optionSetter.setOptionValue("app-launch-timeout-ms", "15000");
+
+        InstrumentationTest instrumentationTest =
+                appLaunchTest.createBatchInstrumentationTest(
+                        Arrays.asList("com.fast.app", "com.unknown.app"));
+
+        // The base timeout plus twice the launch timeouts of 1000 and 15000 ms.
+        assertEquals(10000 + 2 * (1000 + 15000), instrumentationTest.getShellTimeout());
+    }
+
+    @Test
+    public void run_packageUnchangedSinceLastPass_reportsIgnored() throws Exception {
+        InstrumentationTest instrumentationTest = mock(InstrumentationTest.class);
+        AppLaunchTest appLaunchTest = createLaunchTestWithInstrumentation(instrumentationTest);
+        File historyFile = new File(tempFolder.getRoot(), "history.jsonl");
+        new OptionSetter(appLaunchTest)
+                .setOptionValue("result-history-file", historyFile.getPath());
+        LaunchResultStore.open(historyFile.toPath()).recordUnchangedSetup(TEST_PACKAGE_NAME);
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        Mockito.verify(mMockListener).testIgnored(any());
+        Mockito.verify(mMockListener, never()).testFailed(any(), anyString());
+        Mockito.verify(instrumentationTest, never()).run(any(), any());
+    }
+
     @Test
     public void run_packageResetSuccess() throws DeviceNotAvailableException {
         ITestDevice mMockDevice = mock(ITestDevice.class);
@@ -146,6 +319,344 @@ public final class AppLaunchTestTest {
         verifyFailedAndEndedCall(mMockListener);
     }
 
+    @Test
+    public void run_testRetry_crashIsNotRetried() throws Exception {
+        AtomicInteger runCount = new AtomicInteger();
+        InstrumentationTest instrumentationTest =
+                createCountingFailingInstrumentationTest(
+                        "### Type: crash, Details:\nFATAL EXCEPTION: main", runCount);
+        AppLaunchTest appLaunchTest = createLaunchTestWithInstrumentation(instrumentationTest, 2);
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        assertEquals(1, runCount.get());
+        verifyFailedAndEndedCall(mMockListener);
+    }
+
+    @Test
+    public void run_testRetry_unrecognizedFailureIsNotRetried() throws Exception {
+        AtomicInteger runCount = new AtomicInteger();
+        InstrumentationTest instrumentationTest =
+                createCountingFailingInstrumentationTest("test failed", runCount);
+        AppLaunchTest appLaunchTest = createLaunchTestWithInstrumentation(instrumentationTest, 2);
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        assertEquals(1, runCount.get());
+        verifyFailedAndEndedCall(mMockListener);
+    }
+
+    @Test
+    public void run_noLaunchIntent_passesWithoutRetrying() throws Exception {
+        AtomicInteger runCount = new AtomicInteger();
+        InstrumentationTest instrumentationTest =
+                new InstrumentationTest() {
+                    @Override
+                    public void run(
+                            final TestInformation testInfo, final ITestInvocationListener listener)
+                            throws DeviceNotAvailableException {
+                        runCount.incrementAndGet();
+                        HashMap<String, Metric> metrics = new HashMap<>();
+                        metrics.put(
+                                LaunchFailureKind.NO_LAUNCH_INTENT_METRIC,
+                                Metric.newBuilder()
+                                        .setMeasurements(
+                                                Measurements.newBuilder().setSingleString("true"))
+                                        .build());
+                        listener.testEnded(new TestDescription("", ""), metrics);
+                    }
+                };
+        AppLaunchTest appLaunchTest = createLaunchTestWithInstrumentation(instrumentationTest, 2);
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        assertEquals(1, runCount.get());
+        verifyPassedAndEndedCall(mMockListener);
+    }
+
+    @Test
+    public void run_testRetry_crashKindConfigured_isRetried() throws Exception {
+        AtomicInteger runCount = new AtomicInteger();
+        InstrumentationTest instrumentationTest =
+                createCountingFailingInstrumentationTest(
+                        "### Type: crash, Details:\nFATAL EXCEPTION: main", runCount);
+        AppLaunchTest appLaunchTest = createLaunchTestWithInstrumentation(instrumentationTest, 2);
+        new OptionSetter(appLaunchTest).setOptionValue("retry-failure-kind", "CRASH");
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        assertEquals(3, runCount.get());
+    }
+
+    @Test
+    public void run_testRetry_stopsWhenRetryBudgetIsExhausted() throws Exception {
+        AtomicInteger runCount = new AtomicInteger();
+        InstrumentationTest instrumentationTest =
+                createCountingFailingInstrumentationTest("test failed", runCount);
+        AppLaunchTest appLaunchTest = createLaunchTestWithInstrumentation(instrumentationTest, 5);
+        OptionSetter optionSetter = new OptionSetter(appLaunchTest);
+        optionSetter.setOptionValue("retry-failure-kind", "OTHER");
+        optionSetter.setOptionValue("retry-budget", "1");
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        assertEquals(2, runCount.get());
+        verifyFailedAndEndedCall(mMockListener);
+    }
+
+    @Test
+    public void run_testRetry_retryBudgetIsSharedByTheTestsOfAnInvocation() throws Exception {
+        TestInformation testInfo = TestInformation.newBuilder().build();
+        AtomicInteger runCount = new AtomicInteger();
+        InstrumentationTest instrumentationTest =
+                createCountingFailingInstrumentationTest("test failed", runCount);
+        AppLaunchTest firstTest = createLaunchTestWithInstrumentation(instrumentationTest, 5);
+        AppLaunchTest secondTest = createLaunchTestWithInstrumentation(instrumentationTest, 5);
+        for (AppLaunchTest appLaunchTest : Arrays.asList(firstTest, secondTest)) {
+            OptionSetter optionSetter = new OptionSetter(appLaunchTest);
+            optionSetter.setOptionValue("retry-failure-kind", "OTHER");
+            optionSetter.setOptionValue("retry-budget", "1");
+        }
+
+        firstTest.run(testInfo, mMockListener);
+        secondTest.run(testInfo, mMockListener);
+
+        // The first test takes the only retry of the invocation.
+        assertEquals(3, runCount.get());
+    }
+
+    @Test
+    public void run_batchPackageFile_launchesListedPackages() throws Exception {
+        File packageFile = tempFolder.newFile();
+        Files.write(
+                packageFile.toPath(),
+                Arrays.asList("# comment", TEST_PACKAGE_NAME, "", "  " + TEST_PACKAGE_NAME_2),
+                StandardCharsets.UTF_8);
+        AppLaunchTest appLaunchTest =
+                createLaunchTestWithBatchInstrumentation(
+                        Arrays.asList(TEST_PACKAGE_NAME), new HashSet<>(), false);
+        new OptionSetter(appLaunchTest)
+                .setOptionValue("batch-package-file", packageFile.getAbsolutePath());
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        Mockito.verify(mMockListener, times(1)).testRunStarted(anyString(), eq(2));
+        Mockito.verify(mMockListener, times(1))
+                .testStarted(testForPackage(TEST_PACKAGE_NAME), anyLong());
+        Mockito.verify(mMockListener, times(1))
+                .testStarted(testForPackage(TEST_PACKAGE_NAME_2), anyLong());
+        Mockito.verify(mMockListener, never()).testFailed(anyObject(), anyString());
+    }
+
+    @Test
+    public void run_batch_reportsResultPerPackage() throws Exception {
+        AppLaunchTest appLaunchTest =
+                createLaunchTestWithBatchInstrumentation(
+                        Arrays.asList(TEST_PACKAGE_NAME, TEST_PACKAGE_NAME_2),
+                        new HashSet<>(Arrays.asList(TEST_PACKAGE_NAME_2)),
+                        false);
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        Mockito.verify(mMockListener, times(1)).testRunStarted(anyString(), eq(2));
+        Mockito.verify(mMockListener, never())
+                .testFailed(testForPackage(TEST_PACKAGE_NAME), anyString());
+        Mockito.verify(mMockListener, times(1))
+                .testFailed(testForPackage(TEST_PACKAGE_NAME_2), anyString());
+        Mockito.verify(mMockListener, times(2))
+                .testEnded(anyObject(), anyLong(), (HashMap<String, Metric>) any());
+        Mockito.verify(mMockListener, times(1))
+                .testRunEnded(anyLong(), (HashMap<String, Metric>) any());
+    }
+
+    @Test
+    public void run_batchPackageUnchangedSinceLastPass_reportsIgnored() throws Exception {
+        AppLaunchTest appLaunchTest =
+                createLaunchTestWithBatchInstrumentation(
+                        Arrays.asList(TEST_PACKAGE_NAME, TEST_PACKAGE_NAME_2),
+                        new HashSet<>(Arrays.asList(TEST_PACKAGE_NAME_2)),
+                        false);
+        File historyFile = new File(tempFolder.getRoot(), "history.jsonl");
+        new OptionSetter(appLaunchTest)
+                .setOptionValue("result-history-file", historyFile.getPath());
+        LaunchResultStore.open(historyFile.toPath()).recordUnchangedSetup(TEST_PACKAGE_NAME_2);
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        Mockito.verify(mMockListener, times(1)).testIgnored(testForPackage(TEST_PACKAGE_NAME_2));
+        Mockito.verify(mMockListener, never()).testFailed(any(), anyString());
+        Mockito.verify(mMockListener, times(2))
+                .testEnded(anyObject(), anyLong(), (HashMap<String, Metric>) any());
+    }
+
+    @Test
+    public void run_batchInstrumentationRunFailed_reportsUnfinishedPackagesAsFailed()
+            throws Exception {
+        AppLaunchTest appLaunchTest =
+                createLaunchTestWithBatchInstrumentation(
+                        Arrays.asList(TEST_PACKAGE_NAME, TEST_PACKAGE_NAME_2),
+                        new HashSet<>(),
+                        true);
+        new OptionSetter(appLaunchTest).setOptionValue("max-retries-per-package", "0");
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        Mockito.verify(mMockListener, never())
+                .testFailed(testForPackage(TEST_PACKAGE_NAME), anyString());
+        Mockito.verify(mMockListener, times(1))
+                .testFailed(testForPackage(TEST_PACKAGE_NAME_2), anyString());
+    }
+
+    @Test
+    public void run_batchInstrumentationRunFailed_retriesUnfinishedPackagesByDefault()
+            throws Exception {
+        AppLaunchTest appLaunchTest =
+                createLaunchTestWithBatchInstrumentation(
+                        Arrays.asList(TEST_PACKAGE_NAME, TEST_PACKAGE_NAME_2),
+                        new HashSet<>(),
+                        true);
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        Mockito.verify(mMockListener, never()).testFailed(any(), anyString());
+        Mockito.verify(mMockListener, times(2))
+                .testEnded(anyObject(), anyLong(), (HashMap<String, Metric>) any());
+    }
+
+    @Test
+    public void run_batchDeviceUnavailableWhileReporting_endsEveryTest() throws Exception {
+        AppLaunchTest appLaunchTest =
+                createLaunchTestWithBatchInstrumentation(
+                        Arrays.asList(TEST_PACKAGE_NAME, TEST_PACKAGE_NAME_2),
+                        new HashSet<>(),
+                        false);
+        ITestDevice device = mock(ITestDevice.class);
+        when(device.executeShellCommand(Mockito.startsWith("am force-stop")))
+                .thenThrow(new DeviceNotAvailableException("Device lost", "SERIAL"));
+        appLaunchTest.setDevice(device);
+
+        assertThrows(
+                DeviceNotAvailableException.class,
+                () -> appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener));
+        Mockito.verify(mMockListener, times(2)).testStarted(anyObject(), anyLong());
+        Mockito.verify(mMockListener, times(2))
+                .testEnded(anyObject(), anyLong(), (HashMap<String, Metric>) any());
+        Mockito.verify(mMockListener).testRunEnded(anyLong(), (HashMap<String, Metric>) any());
+    }
+
+    @Test
+    public void run_batchApkDirectoryWithoutApks_reportsInstallErrors() throws Exception {
+        AppLaunchTest appLaunchTest =
+                createLaunchTestWithBatchInstrumentation(
+                        Arrays.asList(TEST_PACKAGE_NAME, TEST_PACKAGE_NAME_2),
+                        new HashSet<>(),
+                        false);
+        new OptionSetter(appLaunchTest)
+                .setOptionValue("apk-directory", tempFolder.newFolder().getPath());
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        Mockito.verify(mMockListener, times(2))
+                .testFailed(any(), Mockito.startsWith(CompatibilityTestResult.STATUS_ERROR));
+    }
+
+    @Test
+    public void run_apkDirectoryWithAppSetupPreparer_throwsException() throws Exception {
+        AppLaunchTest appLaunchTest =
+                createLaunchTestWithBatchInstrumentation(
+                        Arrays.asList(TEST_PACKAGE_NAME), new HashSet<>(), false);
+        new OptionSetter(appLaunchTest)
+                .setOptionValue("apk-directory", tempFolder.newFolder().getPath());
+        IConfiguration configuration = new Configuration("name", "description");
+        configuration.setTargetPreparer(new AppSetupPreparer());
+        appLaunchTest.setConfiguration(configuration);
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener));
+        Mockito.verify(mMockListener, never()).testRunStarted(anyString(), anyInt());
+    }
+
+    @Test
+    public void run_apkDirectoryWithoutBatch_throwsException() throws Exception {
+        AppLaunchTest appLaunchTest =
+                createLaunchTestWithInstrumentation(createPassingInstrumentationTest());
+        new OptionSetter(appLaunchTest)
+                .setOptionValue("apk-directory", tempFolder.newFolder().getPath());
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener));
+    }
+
+    @Test
+    public void run_batchWithLaunchDurations_reportsLaunchMetrics() throws Exception {
+        AppLaunchTest appLaunchTest =
+                createLaunchTestWithBatchInstrumentation(
+                        Arrays.asList(TEST_PACKAGE_NAME, TEST_PACKAGE_NAME_2),
+                        new HashSet<>(),
+                        false);
+
+        appLaunchTest.run(NULL_TEST_INFORMATION, mMockListener);
+
+        Mockito.verify(mMockListener)
+                .testEnded(
+                        testForPackage(TEST_PACKAGE_NAME),
+                        anyLong(),
+                        Mockito.<HashMap<String, Metric>>argThat(
+                                metrics ->
+                                        metrics.containsKey(LaunchMetrics.LAUNCH_DURATION)
+                                                && metrics.containsKey(LaunchMetrics.WALL_TIME)));
+        Mockito.verify(mMockListener)
+                .testRunEnded(
+                        anyLong(),
+                        Mockito.<HashMap<String, Metric>>argThat(
+                                metrics ->
+                                        metrics.containsKey(
+                                                LaunchMetrics.LAUNCH_DURATION
+                                                        + LaunchMetrics.MEDIAN_SUFFIX)));
+    }
+
+    @Test
+    public void split_batch_shardsLaunchEveryPackageOnce() throws Exception {
+        List<String> packageNames = Arrays.asList("package_a", "package_b", "package_c");
+        AppLaunchTest appLaunchTest =
+                createLaunchTestWithBatchInstrumentation(packageNames, new HashSet<>(), false);
+
+        Collection<IRemoteTest> shards = appLaunchTest.split(2);
+        for (IRemoteTest shard : shards) {
+            shard.run(NULL_TEST_INFORMATION, mMockListener);
+        }
+
+        assertEquals(2, shards.size());
+        for (String packageName : packageNames) {
+            Mockito.verify(mMockListener, times(1))
+                    .testStarted(testForPackage(packageName), anyLong());
+        }
+        Mockito.verify(mMockListener, times(3))
+                .testEnded(anyObject(), anyLong(), (HashMap<String, Metric>) any());
+    }
+
+    @Test
+    public void split_moreShardsThanPackages_limitsShardCount() throws Exception {
+        AppLaunchTest appLaunchTest =
+                createLaunchTestWithBatchInstrumentation(
+                        Arrays.asList(TEST_PACKAGE_NAME, TEST_PACKAGE_NAME_2),
+                        new HashSet<>(),
+                        false);
+
+        Collection<IRemoteTest> shards = appLaunchTest.split(5);
+
+        assertEquals(2, shards.size());
+    }
+
+    @Test
+    public void split_singlePackage_returnsNull() {
+        AppLaunchTest appLaunchTest = new AppLaunchTest(TEST_PACKAGE_NAME);
+
+        assertNull(appLaunchTest.split(2));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void addIncludeFilter_nullIncludeFilter_throwsException() {
         AppLaunchTest sut = new AppLaunchTest();
@@ -365,6 +876,18 @@ public final class AppLaunchTestTest {
         return instrumentation;
     }
 
+    private InstrumentationTest createCountingFailingInstrumentationTest(
+            String trace, AtomicInteger runCount) {
+        return new InstrumentationTest() {
+            @Override
+            public void run(final TestInformation testInfo, final ITestInvocationListener listener)
+                    throws DeviceNotAvailableException {
+                runCount.incrementAndGet();
+                listener.testFailed(new TestDescription("", ""), trace);
+            }
+        };
+    }
+
     private InstrumentationTest createPassingInstrumentationTest() {
         InstrumentationTest instrumentation =
                 new InstrumentationTest() {
@@ -386,7 +909,7 @@ public final class AppLaunchTestTest {
                             final TestInformation testInfo, final ITestInvocationListener listener)
                             throws DeviceNotAvailableException {
                         if (mRetryCount < failedCount) {
-                            listener.testFailed(new TestDescription("", ""), "test failed");
+                            listener.testRunFailed("Test run timed out");
                         }
                         mRetryCount++;
                     }
@@ -409,7 +932,8 @@ public final class AppLaunchTestTest {
                     }
 
                     @Override
-                    protected CommandResult resetPackage() throws DeviceNotAvailableException {
+                    protected CommandResult resetPackage(String packageName)
+                            throws DeviceNotAvailableException {
                         return createSuccessfulCommandResult();
                     }
                 };
@@ -417,6 +941,82 @@ public final class AppLaunchTestTest {
         return appLaunchTest;
     }
 
+    /**
+     * Creates a batch launch test whose instrumentation reports the given packages as failed and
+     * optionally aborts the run after the first package.
+     */
+    private AppLaunchTest createLaunchTestWithBatchInstrumentation(
+            List<String> packageNames, Set<String> failingPackages, boolean abortAfterFirst)
+            throws Exception {
+        AppLaunchTest appLaunchTest = new FakeBatchLaunchTest(failingPackages, abortAfterFirst);
+        OptionSetter optionSetter = new OptionSetter(appLaunchTest);
+        for (String packageName : packageNames) {
+            optionSetter.setOptionValue("batch-package-name", packageName);
+        }
+        return appLaunchTest;
+    }
+
+    private final class FakeBatchLaunchTest extends AppLaunchTest {
+        private final Set<String> mFailingPackages;
+        private final boolean mAbortAfterFirst;
+
+        FakeBatchLaunchTest(Set<String> failingPackages, boolean abortAfterFirst) {
+            mFailingPackages = failingPackages;
+            mAbortAfterFirst = abortAfterFirst;
+            setDevice(mock(ITestDevice.class));
+        }
+
+        @Override
+        protected InstrumentationTest createBatchInstrumentationTest(
+                List<String> packagesBeingTested) {
+            return new InstrumentationTest() {
+                @Override
+                public void run(
+                        final TestInformation testInfo, final ITestInvocationListener listener)
+                        throws DeviceNotAvailableException {
+                    for (String packageName : packagesBeingTested) {
+                        TestDescription test =
+                                new TestDescription(
+                                        "AppCompatibility",
+                                        "testAppStability[" + packageName + "]");
+                        listener.testStarted(test);
+                        if (mAbortAfterFirst
+                                && !packageName.equals(packagesBeingTested.get(0))) {
+                            listener.testRunFailed("Process crashed.");
+                            return;
+                        }
+                        if (mFailingPackages.contains(packageName)) {
+                            listener.testFailed(test, "test failed");
+                        }
+                        HashMap<String, Metric> metrics = new HashMap<>();
+                        metrics.put(
+                                LaunchMetrics.LAUNCH_DURATION,
+                                Metric.newBuilder()
+                                        .setMeasurements(
+                                                Measurements.newBuilder().setSingleString("100"))
+                                        .build());
+                        listener.testEnded(test, metrics);
+                    }
+                }
+            };
+        }
+
+        @Override
+        protected CommandResult resetPackage(String packageName)
+                throws DeviceNotAvailableException {
+            return createSuccessfulCommandResult();
+        }
+
+        @Override
+        protected AppLaunchTest createShard() {
+            return new FakeBatchLaunchTest(mFailingPackages, mAbortAfterFirst);
+        }
+    }
+
+    private static TestDescription testForPackage(String packageName) {
+        return Mockito.argThat(test -> test.getTestName().equals(packageName));
+    }
+
     private AppLaunchTest createLaunchTestWithMockDevice(ITestDevice device) {
         AppLaunchTest appLaunchTest = new AppLaunchTest(TEST_PACKAGE_NAME, 0);
         appLaunchTest.setDevice(device);
@@ -429,7 +1029,7 @@ public final class AppLaunchTestTest {
         inOrder.verify(listener, times(1)).testStarted(anyObject(), anyLong());
         inOrder.verify(listener, times(1)).testFailed(any(), anyString());
         inOrder.verify(listener, times(1))
-                .testEnded(anyObject(), anyLong(), (Map<String, String>) any());
+                .testEnded(anyObject(), anyLong(), (HashMap<String, Metric>) any());
         inOrder.verify(listener, times(1)).testRunEnded(anyLong(), (HashMap<String, Metric>) any());
     }
 
@@ -439,7 +1039,7 @@ public final class AppLaunchTestTest {
         inOrder.verify(listener, times(1)).testStarted(anyObject(), anyLong());
         inOrder.verify(listener, never()).testFailed(any(), anyString());
         inOrder.verify(listener, times(1))
-                .testEnded(anyObject(), anyLong(), (Map<String, String>) any());
+                .testEnded(anyObject(), anyLong(), (HashMap<String, Metric>) any());
         inOrder.verify(listener, times(1)).testRunEnded(anyLong(), (HashMap<String, Metric>) any());
     }
 
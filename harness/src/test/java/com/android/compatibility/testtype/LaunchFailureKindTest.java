@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.testtype;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.compatibility.FailureCollectingListener;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.TestDescription;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+
+@RunWith(JUnit4.class)
+public final class LaunchFailureKindTest {
+    private static final TestDescription TEST = new TestDescription("Class", "test");
+
+    @Test
+    public void classify_noFailure_returnsNull() {
+        FailureCollectingListener listener = new FailureCollectingListener();
+
+        assertThat(LaunchFailureKind.classify(listener)).isNull();
+    }
+
+    @Test
+    public void classify_noLaunchIntentMetric_returnsNoLaunchIntent() {
+        FailureCollectingListener listener = new FailureCollectingListener();
+        HashMap<String, Metric> metrics = new HashMap<>();
+        metrics.put(
+                LaunchFailureKind.NO_LAUNCH_INTENT_METRIC,
+                Metric.newBuilder()
+                        .setMeasurements(Measurements.newBuilder().setSingleString("true"))
+                        .build());
+
+        listener.testEnded(TEST, metrics);
+
+        assertThat(LaunchFailureKind.classify(listener))
+                .isEqualTo(LaunchFailureKind.NO_LAUNCH_INTENT);
+        assertThat(LaunchFailureKind.NO_LAUNCH_INTENT.isRetryable()).isFalse();
+    }
+
+    @Test
+    public void classify_anrAndCrash_returnsAnr() {
+        FailureCollectingListener listener = new FailureCollectingListener();
+
+        listener.testFailed(TEST, "### Type: crash, Details:\nFATAL EXCEPTION: main");
+        listener.testFailed(TEST, "### Type: ANR, Details:\nInput dispatching timed out");
+
+        assertThat(LaunchFailureKind.classify(listener)).isEqualTo(LaunchFailureKind.ANR);
+    }
+
+    @Test
+    public void classify_nativeCrash_returnsCrash() {
+        FailureCollectingListener listener = new FailureCollectingListener();
+
+        listener.testFailed(TEST, "### Type: dropbox:SYSTEM_TOMBSTONE, Details:\nsignal 11");
+
+        assertThat(LaunchFailureKind.classify(listener)).isEqualTo(LaunchFailureKind.CRASH);
+    }
+
+    @Test
+    public void classify_runTimedOut_returnsTimeout() {
+        FailureCollectingListener listener = new FailureCollectingListener();
+
+        listener.testRunFailed("Test run timed out after 60000 ms");
+
+        assertThat(LaunchFailureKind.classify(listener)).isEqualTo(LaunchFailureKind.TIMEOUT);
+    }
+
+    @Test
+    public void classify_runFailed_returnsInstrumentationCrash() {
+        FailureCollectingListener listener = new FailureCollectingListener();
+
+        listener.testFailed(TEST, "### Type: crash, Details:\nFATAL EXCEPTION: main");
+        listener.testRunFailed("Process crashed.");
+
+        assertThat(LaunchFailureKind.classify(listener))
+                .isEqualTo(LaunchFailureKind.INSTRUMENTATION_CRASH);
+    }
+
+    @Test
+    public void classify_unrecognizedFailure_returnsOther() {
+        FailureCollectingListener listener = new FailureCollectingListener();
+
+        listener.testFailed(TEST, "App did not launch");
+
+        assertThat(LaunchFailureKind.classify(listener)).isEqualTo(LaunchFailureKind.OTHER);
+        assertThat(LaunchFailureKind.OTHER.isRetryable()).isTrue();
+    }
+}
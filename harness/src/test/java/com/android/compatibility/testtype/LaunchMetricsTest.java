@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.testtype;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tradefed.metrics.proto.MetricMeasurement.Directionality;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RunWith(JUnit4.class)
+public final class LaunchMetricsTest {
+    private static final String PACKAGE_NAME = "com.example.app";
+    private static final String OTHER_PACKAGE_NAME = "com.example.other";
+
+    @Test
+    public void getDeviceValues_stringMetrics_parsesKnownMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put(LaunchMetrics.TIME_TO_FIRST_FRAME, createStringMetric("350"));
+        metrics.put(LaunchMetrics.LAUNCH_DURATION, createStringMetric("not a number"));
+        metrics.put("unrelated_metric", createStringMetric("1"));
+
+        Map<String, Long> values = LaunchMetrics.getDeviceValues(metrics);
+
+        assertThat(values).containsExactly(LaunchMetrics.TIME_TO_FIRST_FRAME, 350L);
+    }
+
+    @Test
+    public void addPackageValues_frameMetrics_setsUnitsAndDirections() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        values.put(LaunchMetrics.TOTAL_FRAMES, 120L);
+        values.put(LaunchMetrics.JANKY_FRAMES_PERCENT, 8L);
+        values.put(LaunchMetrics.FRAME_TIME_P90, 21L);
+
+        Map<String, Metric> metrics = new LaunchMetrics().addPackageValues(values);
+
+        assertThat(metrics.get(LaunchMetrics.TOTAL_FRAMES).getUnit()).isEmpty();
+        assertThat(metrics.get(LaunchMetrics.TOTAL_FRAMES).getDirection())
+                .isEqualTo(Directionality.DIRECTIONALITY_UNSPECIFIED);
+        assertThat(metrics.get(LaunchMetrics.JANKY_FRAMES_PERCENT).getUnit()).isEqualTo("%");
+        assertThat(metrics.get(LaunchMetrics.FRAME_TIME_P90).getUnit()).isEqualTo("ms");
+        assertThat(metrics.get(LaunchMetrics.FRAME_TIME_P90).getDirection())
+                .isEqualTo(Directionality.DOWN_BETTER);
+    }
+
+    @Test
+    public void getDeviceSeries_mixedMetrics_returnsSeriesOnly() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("pss_kb_series", createStringMetric("1000,2000"));
+        metrics.put(LaunchMetrics.PEAK_PSS, createStringMetric("2000"));
+
+        Map<String, String> series = LaunchMetrics.getDeviceSeries(metrics);
+
+        assertThat(series).containsExactly("pss_kb_series", "1000,2000");
+    }
+
+    @Test
+    public void addPackageValues_withSeries_reportsSeriesAndUnits() {
+        LaunchMetrics launchMetrics = new LaunchMetrics();
+
+        Map<String, Metric> metrics =
+                launchMetrics.addPackageValues(
+                        Collections.singletonMap(LaunchMetrics.PEAK_PSS, 2000L),
+                        Collections.singletonMap("pss_kb_series", "1000,2000"));
+
+        assertThat(metrics.get(LaunchMetrics.PEAK_PSS).getUnit()).isEqualTo("kB");
+        assertThat(metrics.get("pss_kb_series").getMeasurements().getSingleString())
+                .isEqualTo("1000,2000");
+        assertThat(launchMetrics.getRunMetrics())
+                .doesNotContainKey("pss_kb_series" + LaunchMetrics.MEDIAN_SUFFIX);
+    }
+
+    @Test
+    public void parseTimeToFullyDrawn_secondsAndMillis_returnsMillis() {
+        InputStreamSource logcat =
+                createLogcat(
+                        "I ActivityTaskManager: Fully drawn "
+                                + PACKAGE_NAME
+                                + "/.MainActivity: +1s234ms");
+
+        assertThat(LaunchMetrics.parseTimeToFullyDrawn(logcat, PACKAGE_NAME)).isEqualTo(1234);
+    }
+
+    @Test
+    public void parseTimeToFullyDrawn_otherPackageOnly_returnsNegative() {
+        InputStreamSource logcat =
+                createLogcat(
+                        "I ActivityTaskManager: Fully drawn "
+                                + OTHER_PACKAGE_NAME
+                                + "/.MainActivity: +850ms");
+
+        assertThat(LaunchMetrics.parseTimeToFullyDrawn(logcat, PACKAGE_NAME)).isEqualTo(-1);
+    }
+
+    @Test
+    public void parseTimeToFullyDrawn_multipleLaunches_returnsLast() {
+        InputStreamSource logcat =
+                createLogcat(
+                        "I ActivityTaskManager: Fully drawn " + PACKAGE_NAME + "/.Main: +900ms",
+                        "I ActivityTaskManager: Fully drawn " + PACKAGE_NAME + "/.Main: +850ms");
+
+        assertThat(LaunchMetrics.parseTimeToFullyDrawn(logcat, PACKAGE_NAME)).isEqualTo(850);
+    }
+
+    @Test
+    public void addInstrumentationValues_batch_splitsOverheadEvenly() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        values.put(LaunchMetrics.PM_CLEAR_DURATION, 50L);
+        Map<String, Long> otherValues = new LinkedHashMap<>();
+        Map<String, Map<String, Long>> packageValues = new LinkedHashMap<>();
+        packageValues.put(PACKAGE_NAME, values);
+        packageValues.put(OTHER_PACKAGE_NAME, otherValues);
+        Map<String, Map<String, Metric>> testMetrics = new HashMap<>();
+        testMetrics.put(
+                PACKAGE_NAME,
+                Collections.singletonMap(LaunchMetrics.LAUNCH_DURATION, createStringMetric("600")));
+        testMetrics.put(
+                OTHER_PACKAGE_NAME,
+                Collections.singletonMap(LaunchMetrics.LAUNCH_DURATION, createStringMetric("200")));
+
+        LaunchMetrics.addInstrumentationValues(packageValues, testMetrics, 1000);
+
+        assertThat(values.get(LaunchMetrics.INSTRUMENTATION_OVERHEAD)).isEqualTo(100);
+        assertThat(values.get(LaunchMetrics.WALL_TIME)).isEqualTo(750);
+        assertThat(otherValues.get(LaunchMetrics.INSTRUMENTATION_OVERHEAD)).isEqualTo(100);
+        assertThat(otherValues.get(LaunchMetrics.WALL_TIME)).isEqualTo(300);
+    }
+
+    @Test
+    public void getRunMetrics_multiplePackages_reportsMedianAndMax() {
+        LaunchMetrics launchMetrics = new LaunchMetrics();
+        launchMetrics.addPackageValues(
+                Collections.singletonMap(LaunchMetrics.TIME_TO_FIRST_FRAME, 100L));
+        launchMetrics.addPackageValues(
+                Collections.singletonMap(LaunchMetrics.TIME_TO_FIRST_FRAME, 200L));
+        launchMetrics.addPackageValues(
+                Collections.singletonMap(LaunchMetrics.TIME_TO_FIRST_FRAME, 600L));
+
+        Map<String, Metric> metrics = launchMetrics.getRunMetrics();
+
+        String name = LaunchMetrics.TIME_TO_FIRST_FRAME;
+        assertThat(getValue(metrics, name + LaunchMetrics.MEDIAN_SUFFIX)).isEqualTo(200);
+        assertThat(getValue(metrics, name + LaunchMetrics.MAX_SUFFIX)).isEqualTo(600);
+    }
+
+    @Test
+    public void getRunMetrics_noPackages_returnsEmpty() {
+        assertThat(new LaunchMetrics().getRunMetrics()).isEmpty();
+    }
+
+    private static long getValue(Map<String, Metric> metrics, String name) {
+        return metrics.get(name).getMeasurements().getSingleInt();
+    }
+
+    private static Metric createStringMetric(String value) {
+        return Metric.newBuilder()
+                .setMeasurements(Measurements.newBuilder().setSingleString(value))
+                .build();
+    }
+
+    private static InputStreamSource createLogcat(String... lines) {
+        return new ByteArrayInputStreamSource(
+                String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.testtype;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tradefed.result.CompatibilityTestResult;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Collections;
+import java.util.EnumSet;
+
+@RunWith(JUnit4.class)
+public final class LaunchRetryPolicyTest {
+    private static final String PACKAGE_NAME = "com.example.app";
+
+    @Test
+    public void shouldRetry_success_returnsFalse() {
+        LaunchRetryPolicy policy = createPolicy(3, -1);
+
+        CompatibilityTestResult result = createResult(CompatibilityTestResult.STATUS_SUCCESS);
+
+        assertThat(policy.shouldRetry(result, null, 0)).isFalse();
+    }
+
+    @Test
+    public void shouldRetry_defaultKinds_retriesOnlyFlakyFailures() {
+        LaunchRetryPolicy policy = createPolicy(3, -1);
+        CompatibilityTestResult result = createResult(CompatibilityTestResult.STATUS_FAILURE);
+
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.TIMEOUT, 0)).isTrue();
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.INSTRUMENTATION_CRASH, 0))
+                .isTrue();
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.CRASH, 0)).isFalse();
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.ANR, 0)).isFalse();
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.OTHER, 0)).isFalse();
+    }
+
+    @Test
+    public void shouldRetry_launchNotAttempted_returnsTrue() {
+        LaunchRetryPolicy policy = createPolicy(3, -1);
+
+        CompatibilityTestResult result = createResult(CompatibilityTestResult.STATUS_ERROR);
+
+        assertThat(policy.shouldRetry(result, null, 0)).isTrue();
+    }
+
+    @Test
+    public void shouldRetry_configuredKinds_retriesConfiguredKindsOnly() {
+        LaunchRetryPolicy policy =
+                new LaunchRetryPolicy(
+                        3,
+                        -1,
+                        EnumSet.of(LaunchFailureKind.CRASH, LaunchFailureKind.NO_LAUNCH_INTENT));
+        CompatibilityTestResult result = createResult(CompatibilityTestResult.STATUS_FAILURE);
+
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.CRASH, 0)).isTrue();
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.TIMEOUT, 0)).isFalse();
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.NO_LAUNCH_INTENT, 0)).isFalse();
+    }
+
+    @Test
+    public void shouldRetry_maxRetriesReached_returnsFalse() {
+        LaunchRetryPolicy policy = createPolicy(2, -1);
+        CompatibilityTestResult result = createResult(CompatibilityTestResult.STATUS_FAILURE);
+
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.TIMEOUT, 1)).isTrue();
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.TIMEOUT, 2)).isFalse();
+    }
+
+    @Test
+    public void shouldRetry_budgetExhausted_returnsFalse() {
+        LaunchRetryPolicy policy = createPolicy(5, 2);
+        CompatibilityTestResult result = createResult(CompatibilityTestResult.STATUS_FAILURE);
+
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.TIMEOUT, 0)).isTrue();
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.TIMEOUT, 0)).isTrue();
+        assertThat(policy.shouldRetry(result, LaunchFailureKind.TIMEOUT, 0)).isFalse();
+        assertThat(policy.getRemainingBudget()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldRetry_notRetryable_doesNotUseBudget() {
+        LaunchRetryPolicy policy = createPolicy(5, 1);
+        CompatibilityTestResult result = createResult(CompatibilityTestResult.STATUS_FAILURE);
+
+        policy.shouldRetry(result, LaunchFailureKind.CRASH, 0);
+
+        assertThat(policy.getRemainingBudget()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRetry_sharedBudget_isTakenByAllPolicies() {
+        LaunchRetryPolicy.Budget budget = new LaunchRetryPolicy.Budget(1);
+        LaunchRetryPolicy first = new LaunchRetryPolicy(5, budget, Collections.emptySet());
+        LaunchRetryPolicy second = new LaunchRetryPolicy(5, budget, Collections.emptySet());
+        CompatibilityTestResult result = createResult(CompatibilityTestResult.STATUS_FAILURE);
+
+        assertThat(first.shouldRetry(result, LaunchFailureKind.TIMEOUT, 0)).isTrue();
+        assertThat(second.shouldRetry(result, LaunchFailureKind.TIMEOUT, 0)).isFalse();
+    }
+
+    @Test
+    public void forInvocation_sameKey_returnsSameBudget() {
+        Object invocationKey = new Object();
+
+        LaunchRetryPolicy.Budget budget = LaunchRetryPolicy.Budget.forInvocation(invocationKey, 3);
+
+        assertThat(LaunchRetryPolicy.Budget.forInvocation(invocationKey, 3))
+                .isSameInstanceAs(budget);
+        assertThat(LaunchRetryPolicy.Budget.forInvocation(new Object(), 3))
+                .isNotSameInstanceAs(budget);
+    }
+
+    @Test
+    public void getOutcome_returnsKindOrStatus() {
+        CompatibilityTestResult result = createResult(CompatibilityTestResult.STATUS_FAILURE);
+
+        assertThat(LaunchRetryPolicy.getOutcome(result, LaunchFailureKind.ANR)).isEqualTo("ANR");
+        assertThat(LaunchRetryPolicy.getOutcome(result, null))
+                .isEqualTo(CompatibilityTestResult.STATUS_FAILURE);
+    }
+
+    private static LaunchRetryPolicy createPolicy(int maxRetriesPerPackage, int retryBudget) {
+        return new LaunchRetryPolicy(maxRetriesPerPackage, retryBudget, Collections.emptySet());
+    }
+
+    private static CompatibilityTestResult createResult(String status) {
+        CompatibilityTestResult result = new CompatibilityTestResult();
+        result.packageName = PACKAGE_NAME;
+        result.status = status;
+        return result;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.testtype;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.android.compatibility.testtype.LaunchTimeMeasurer.LaunchType;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public final class LaunchTimeMeasurerTest {
+    private static final String PACKAGE_NAME = "com.example.app";
+    private static final String COMPONENT = PACKAGE_NAME + "/.MainActivity";
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final ITestDevice mDevice = mock(ITestDevice.class);
+
+    @Before
+    public void setUp() throws Exception {
+        when(mDevice.executeShellCommand(startsWith("cmd package resolve-activity")))
+                .thenReturn("priority=0 preferredOrder=0 isDefault=true\n" + COMPONENT + "\n");
+        when(mDevice.isAdbRoot()).thenReturn(true);
+    }
+
+    @Test
+    public void measure_launchesEachType_reportsSummaryPerType() throws Exception {
+        mockLaunches(
+                createLaunchOutput("COLD", 500),
+                createLaunchOutput("COLD", 520),
+                createLaunchOutput("WARM", 200),
+                createLaunchOutput("WARM", 220),
+                createLaunchOutput("HOT", 50),
+                createLaunchOutput("HOT", 70));
+
+        Map<String, Long> summary =
+                new LaunchTimeMeasurer(mDevice, 2, TIMEOUT_MILLIS).measure(PACKAGE_NAME);
+
+        assertThat(summary).containsEntry("cold_launch_ms_median", 510L);
+        assertThat(summary).containsEntry("warm_launch_ms_median", 210L);
+        assertThat(summary).containsEntry("hot_launch_ms_median", 60L);
+        assertThat(summary).containsEntry("hot_launch_ms_p90", 68L);
+        verify(mDevice, times(2)).executeShellCommand(LaunchTimeMeasurer.DROP_CACHES_COMMAND);
+        verify(mDevice, times(6))
+                .executeShellV2Command(
+                        "am start -W -n " + COMPONENT, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void measure_reportedStateDiffers_classifiesByReportedState() throws Exception {
+        mockLaunches(
+                createLaunchOutput("COLD", 500),
+                createLaunchOutput("HOT", 40),
+                createLaunchOutput("HOT", 60));
+
+        Map<String, Long> summary =
+                new LaunchTimeMeasurer(mDevice, 1, TIMEOUT_MILLIS).measure(PACKAGE_NAME);
+
+        assertThat(summary).containsEntry("hot_launch_ms_median", 50L);
+        assertThat(summary).doesNotContainKey("warm_launch_ms_median");
+    }
+
+    @Test
+    public void measure_notRoot_doesNotDropCaches() throws Exception {
+        when(mDevice.isAdbRoot()).thenReturn(false);
+        mockLaunches(createLaunchOutput("COLD", 500));
+
+        new LaunchTimeMeasurer(mDevice, 1, TIMEOUT_MILLIS).measure(PACKAGE_NAME);
+
+        verify(mDevice, never()).executeShellCommand(LaunchTimeMeasurer.DROP_CACHES_COMMAND);
+    }
+
+    @Test
+    public void measure_noLauncherActivity_returnsEmpty() throws Exception {
+        when(mDevice.executeShellCommand(startsWith("cmd package resolve-activity")))
+                .thenReturn("No activity found\n");
+
+        Map<String, Long> summary =
+                new LaunchTimeMeasurer(mDevice, 1, TIMEOUT_MILLIS).measure(PACKAGE_NAME);
+
+        assertThat(summary).isEmpty();
+        verify(mDevice, never()).executeShellV2Command(startsWith("am start"), anyLong(), any());
+    }
+
+    @Test
+    public void summarize_outlier_isDiscarded() {
+        Map<LaunchType, List<Long>> launchTimes = new EnumMap<>(LaunchType.class);
+        launchTimes.put(LaunchType.COLD, Arrays.asList(500L, 510L, 490L, 505L, 495L, 3000L));
+
+        Map<String, Long> summary = LaunchTimeMeasurer.summarize(launchTimes);
+
+        assertThat(summary).containsEntry("cold_launch_ms_median", 500L);
+        assertThat(summary).containsEntry("cold_launch_ms_outliers", 1L);
+    }
+
+    @Test
+    public void toMetrics_summary_setsExplicitUnits() {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        summary.put("cold_launch_ms_median", 500L);
+        summary.put("cold_launch_ms_outliers", 1L);
+
+        Map<String, Metric> metrics = LaunchTimeMeasurer.toMetrics(summary);
+
+        assertThat(metrics.get("cold_launch_ms_median").getUnit()).isEqualTo("ms");
+        assertThat(metrics.get("cold_launch_ms_median").getMeasurements().getSingleInt())
+                .isEqualTo(500L);
+        assertThat(metrics.get("cold_launch_ms_outliers").getUnit()).isEmpty();
+    }
+
+    private void mockLaunches(CommandResult first, CommandResult... others) throws Exception {
+        when(mDevice.executeShellV2Command(startsWith("am start -W"), anyLong(), any()))
+                .thenReturn(first, others);
+    }
+
+    private static CommandResult createLaunchOutput(String launchState, long totalTime) {
+        CommandResult result = new CommandResult(CommandStatus.SUCCESS);
+        result.setStdout(
+                String.format(
+                        "Starting: Intent { cmp=%s }\nStatus: ok\nLaunchState: %s\n"
+                                + "Activity: %s\nTotalTime: %d\nWaitTime: %d\nComplete\n",
+                        COMPONENT, launchState, COMPONENT, totalTime, totalTime + 5));
+        return result;
+    }
+}
@@ -21,14 +21,27 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({
+    com.android.compatibility.FailureCollectingListenerTest.class,
     com.android.compatibility.targetprep.AppSetupPreparerTest.class,
     com.android.compatibility.targetprep.CheckGmsPreparerTest.class,
     com.android.compatibility.testtype.AppLaunchTestTest.class,
+    com.android.compatibility.testtype.LaunchFailureKindTest.class,
+    com.android.compatibility.testtype.LaunchMetricsTest.class,
+    com.android.compatibility.testtype.LaunchRetryPolicyTest.class,
+    com.android.compatibility.testtype.LaunchTimeMeasurerTest.class,
     com.android.csuite.config.AppRemoteFileResolverTest.class,
     com.android.csuite.config.ModuleGeneratorTest.class,
+    com.android.csuite.core.ApkInstallPipelineTest.class,
     com.android.csuite.core.CommandLinePackageNameProviderTest.class,
+    com.android.csuite.core.DeviceLogcatCollectorTest.class,
+    com.android.csuite.core.FailureFingerprintTest.class,
     com.android.csuite.core.FileBasedPackageNameProviderTest.class,
+    com.android.csuite.core.LaunchResultStoreTest.class,
+    com.android.csuite.core.PackageInventoryTest.class,
+    com.android.csuite.core.PackageSchedulerTest.class,
+    com.android.csuite.core.StatisticsTest.class,
     com.android.csuite.core.SystemAppUninstallerTest.class,
+    com.android.csuite.core.TimeoutExecutorTest.class,
     com.android.csuite.testing.CorrespondencesTest.class,
     com.android.csuite.testing.MoreAssertsTest.class,
 })
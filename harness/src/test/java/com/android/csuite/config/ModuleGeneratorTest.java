@@ -46,13 +46,16 @@ import org.mockito.Mockito;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.FileSystem;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(JUnit4.class)
 public final class ModuleGeneratorTest {
@@ -126,7 +129,8 @@ public final class ModuleGeneratorTest {
         assertThatListDirectory(testsDir)
                 .containsExactly(
                         getModuleConfigFile(testsDir, TEST_PACKAGE_NAME1),
-                        getModuleConfigFile(testsDir, TEST_PACKAGE_NAME2));
+                        getModuleConfigFile(testsDir, TEST_PACKAGE_NAME2),
+                        getManifestFile(testsDir));
     }
 
     @Test
@@ -175,6 +179,181 @@ public final class ModuleGeneratorTest {
                 .isEqualTo(String.format(content, TEST_PACKAGE_NAME2, TEST_PACKAGE_NAME2));
     }
 
+    @Test
+    public void split_morePackagesThanThreads_generatesModulesForAll() throws Exception {
+        Path testsDir = createTestsDir();
+        GeneratorBuilder builder =
+                createGeneratorBuilder()
+                        .setTestsDir(testsDir)
+                        .setTemplateContent(PACKAGE_PLACEHOLDER + " and " + PACKAGE_PLACEHOLDER)
+                        .setOption(ModuleGenerator.OPTION_GENERATION_THREADS, "3");
+        for (int i = 0; i < 10; i++) {
+            builder.addPackage("test.package.many" + i);
+        }
+        ModuleGenerator generator = builder.build();
+
+        generator.split();
+
+        assertThatListDirectory(testsDir).hasSize(11);
+        for (int i = 0; i < 10; i++) {
+            String packageName = "test.package.many" + i;
+            assertThatModuleConfigFileContent(testsDir, packageName)
+                    .isEqualTo(packageName + " and " + packageName);
+        }
+    }
+
+    @Test
+    public void split_generationThreadsNotPositive_throwsError() throws Exception {
+        ModuleGenerator generator =
+                createGeneratorBuilder()
+                        .setTestsDir(createTestsDir())
+                        .addPackage(TEST_PACKAGE_NAME1)
+                        .setOption(ModuleGenerator.OPTION_GENERATION_THREADS, "0")
+                        .build();
+
+        assertThrows(IllegalArgumentException.class, () -> generator.split());
+    }
+
+    @Test
+    public void split_bundleTemplateSet_generatesBundleModuleAndPackageFile() throws Exception {
+        Path testsDir = createTestsDir();
+        ModuleGenerator generator =
+                createGeneratorBuilder()
+                        .setTestsDir(testsDir)
+                        .addPackage(TEST_PACKAGE_NAME2)
+                        .addPackage(TEST_PACKAGE_NAME1)
+                        .setTemplateContent("file={package_file}")
+                        .setOption(ModuleGenerator.OPTION_BUNDLE_TEMPLATE, "bundle_path")
+                        .build();
+
+        generator.split();
+
+        Path moduleFile = getModuleConfigFile(testsDir, ModuleGenerator.BUNDLE_MODULE_NAME);
+        Path packageFile = getBundlePackageFile(testsDir);
+        assertThatListDirectory(testsDir)
+                .containsExactly(moduleFile, packageFile, getManifestFile(testsDir));
+        assertThatModuleConfigFileContent(testsDir, ModuleGenerator.BUNDLE_MODULE_NAME)
+                .isEqualTo("file=" + packageFile.toAbsolutePath());
+        assertThat(Files.readAllLines(packageFile))
+                .containsExactly(TEST_PACKAGE_NAME1, TEST_PACKAGE_NAME2)
+                .inOrder();
+    }
+
+    @Test
+    public void tearDown_bundleTemplateSet_deletesBundleFiles() throws Exception {
+        Path testsDir = createTestsDir();
+        ModuleGenerator generator =
+                createGeneratorBuilder()
+                        .setTestsDir(testsDir)
+                        .addPackage(TEST_PACKAGE_NAME1)
+                        .setOption(ModuleGenerator.OPTION_BUNDLE_TEMPLATE, "bundle_path")
+                        .build();
+        generator.split();
+
+        generator.tearDown(createTestInfo(), NO_EXCEPTION);
+
+        assertThatListDirectory(testsDir).isEmpty();
+    }
+
+    @Test
+    public void tearDown_doesNotQueryPackageNameProviders() throws Exception {
+        Path testsDir = createTestsDir();
+        AtomicInteger providerCallCount = new AtomicInteger();
+        ModuleGenerator generator =
+                createGeneratorBuilder()
+                        .setTestsDir(testsDir)
+                        .addPackageNameProvider(
+                                () -> {
+                                    providerCallCount.incrementAndGet();
+                                    return ImmutableSet.of(TEST_PACKAGE_NAME1);
+                                })
+                        .build();
+        generator.split();
+
+        generator.tearDown(createTestInfo(), NO_EXCEPTION);
+
+        assertThat(providerCallCount.get()).isEqualTo(1);
+        assertThatListDirectory(testsDir).isEmpty();
+    }
+
+    @Test
+    public void tearDown_generatedModuleChanged_keepsChangedModule() throws Exception {
+        Path testsDir = createTestsDir();
+        ModuleGenerator generator =
+                createGeneratorBuilder()
+                        .setTestsDir(testsDir)
+                        .addPackage(TEST_PACKAGE_NAME1)
+                        .addPackage(TEST_PACKAGE_NAME2)
+                        .build();
+        generator.split();
+        Path changedModule = getModuleConfigFile(testsDir, TEST_PACKAGE_NAME1);
+        Files.write(changedModule, "changed".getBytes(StandardCharsets.UTF_8));
+
+        generator.tearDown(createTestInfo(), NO_EXCEPTION);
+
+        assertThatListDirectory(testsDir).containsExactly(changedModule);
+    }
+
+    @Test
+    public void tearDown_generatedModuleTouched_deletesModule() throws Exception {
+        Path testsDir = createTestsDir();
+        ModuleGenerator generator =
+                createGeneratorBuilder()
+                        .setTestsDir(testsDir)
+                        .addPackage(TEST_PACKAGE_NAME1)
+                        .build();
+        generator.split();
+        Files.setLastModifiedTime(
+                getModuleConfigFile(testsDir, TEST_PACKAGE_NAME1), FileTime.fromMillis(0));
+
+        generator.tearDown(createTestInfo(), NO_EXCEPTION);
+
+        assertThatListDirectory(testsDir).isEmpty();
+    }
+
+    @Test
+    public void split_modulesLeftByPreviousRun_deletesOrphanedModules() throws Exception {
+        Path testsDir = createTestsDir();
+        createGeneratorBuilder()
+                .setTestsDir(testsDir)
+                .addPackage(TEST_PACKAGE_NAME1)
+                .build()
+                .split();
+        ModuleGenerator generator =
+                createGeneratorBuilder()
+                        .setTestsDir(testsDir)
+                        .addPackage(TEST_PACKAGE_NAME2)
+                        .build();
+
+        generator.split();
+
+        assertThatListDirectory(testsDir)
+                .containsExactly(
+                        getModuleConfigFile(testsDir, TEST_PACKAGE_NAME2),
+                        getManifestFile(testsDir));
+    }
+
+    @Test
+    public void tearDown_generationInterrupted_deletesPendingModules() throws Exception {
+        Path testsDir = createTestsDir();
+        Path module = getModuleConfigFile(testsDir, TEST_PACKAGE_NAME1);
+        Files.write(module, "partial".getBytes(StandardCharsets.UTF_8));
+        Files.write(
+                getManifestFile(testsDir),
+                String.join(
+                                "\t",
+                                ModuleManifest.UNKNOWN,
+                                ModuleManifest.UNKNOWN,
+                                ModuleManifest.UNKNOWN,
+                                module.getFileName() + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+        ModuleGenerator generator = createGeneratorBuilder().setTestsDir(testsDir).build();
+
+        generator.tearDown(createTestInfo(), NO_EXCEPTION);
+
+        assertThatListDirectory(testsDir).isEmpty();
+    }
+
     @Test
     public void split_templateDoesNotContainPlaceholder_outputsTemplateContent() throws Exception {
         Path testsDir = createTestsDir();
@@ -225,6 +404,14 @@ public final class ModuleGeneratorTest {
                         .collect(ImmutableList.toImmutableList()));
     }
 
+    private static Path getManifestFile(Path baseDir) {
+        return baseDir.resolve(ModuleManifest.FILE_NAME);
+    }
+
+    private static Path getBundlePackageFile(Path baseDir) {
+        return baseDir.resolve(ModuleGenerator.BUNDLE_MODULE_NAME + ".packages");
+    }
+
     private static Path getModuleConfigFile(Path baseDir, String packageName) {
         return baseDir.resolve(packageName + ".config");
     }
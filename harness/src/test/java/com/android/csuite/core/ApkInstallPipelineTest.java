@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.targetprep.TargetSetupError;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+@RunWith(JUnit4.class)
+public final class ApkInstallPipelineTest {
+    private static final String PACKAGE_NAME = "com.example.app";
+
+    @Rule public final TemporaryFolder mTempFolder = new TemporaryFolder();
+    private final ITestDevice mDevice = mock(ITestDevice.class);
+
+    @Before
+    public void setUp() throws Exception {
+        when(mDevice.pushFile(any(File.class), anyString())).thenReturn(true);
+        when(mDevice.executeShellV2Command(startsWith("pm install-create")))
+                .thenReturn(createResult("Success: created install session [42]"));
+        when(mDevice.executeShellV2Command(startsWith("pm install-write")))
+                .thenReturn(createResult("Success: streamed 1 bytes"));
+        when(mDevice.executeShellV2Command(startsWith("pm install-commit")))
+                .thenReturn(createResult("Success"));
+    }
+
+    @Test
+    public void install_prefetched_pushesAllApksAndCommitsSession() throws Exception {
+        createApkFiles(PACKAGE_NAME, "base.apk", "split_config.apk");
+        ApkInstallPipeline pipeline = createPipeline();
+
+        pipeline.prefetch(Collections.singletonList(PACKAGE_NAME));
+        pipeline.install(PACKAGE_NAME);
+
+        String stagingDir = ApkInstallPipeline.STAGING_DIR + "/" + PACKAGE_NAME;
+        verify(mDevice).pushFile(any(File.class), startsWith(stagingDir + "/base.apk"));
+        verify(mDevice).pushFile(any(File.class), startsWith(stagingDir + "/split_config.apk"));
+        verify(mDevice).executeShellV2Command("pm install-create -r -g");
+        verify(mDevice, times(2)).executeShellV2Command(startsWith("pm install-write 42 "));
+        verify(mDevice).executeShellV2Command("pm install-commit 42");
+    }
+
+    @Test
+    public void install_notPrefetched_stagesBeforeCommitting() throws Exception {
+        createApkFiles(PACKAGE_NAME, "base.apk");
+        ApkInstallPipeline pipeline = createPipeline();
+
+        pipeline.install(PACKAGE_NAME);
+
+        verify(mDevice).pushFile(any(File.class), anyString());
+        verify(mDevice).executeShellV2Command("pm install-commit 42");
+    }
+
+    @Test
+    public void install_alreadyInstalled_doesNothing() throws Exception {
+        createApkFiles(PACKAGE_NAME, "base.apk");
+        ApkInstallPipeline pipeline = createPipeline();
+        pipeline.install(PACKAGE_NAME);
+
+        pipeline.install(PACKAGE_NAME);
+
+        verify(mDevice, times(1)).pushFile(any(File.class), anyString());
+    }
+
+    @Test
+    public void install_noApkFiles_throwsException() {
+        ApkInstallPipeline pipeline = createPipeline();
+
+        assertThrows(TargetSetupError.class, () -> pipeline.install(PACKAGE_NAME));
+    }
+
+    @Test
+    public void install_commitFails_abandonsSession() throws Exception {
+        createApkFiles(PACKAGE_NAME, "base.apk");
+        when(mDevice.executeShellV2Command(startsWith("pm install-commit")))
+                .thenReturn(createResult("Failure [INSTALL_FAILED_INVALID_APK]"));
+        ApkInstallPipeline pipeline = createPipeline();
+
+        assertThrows(TargetSetupError.class, () -> pipeline.install(PACKAGE_NAME));
+        verify(mDevice).executeShellCommand("pm install-abandon 42");
+    }
+
+    @Test
+    public void install_committed_reloadsPackageList() throws Exception {
+        createApkFiles(PACKAGE_NAME, "base.apk");
+        CommandResult listResult = createResult("package:/data/app/base.apk=" + PACKAGE_NAME);
+        when(mDevice.executeShellV2Command(startsWith("pm list packages")))
+                .thenReturn(listResult);
+        when(mDevice.getSerialNumber()).thenReturn("pipeline-install-serial");
+        PackageInventory.get(mDevice).isInstalled("com.example.other");
+        ApkInstallPipeline pipeline = createPipeline();
+
+        pipeline.install(PACKAGE_NAME);
+        PackageInventory.get(mDevice).isInstalled("com.example.other");
+
+        verify(mDevice, times(2))
+                .executeShellV2Command(
+                        PackageInventory.LIST_PACKAGES_COMMAND
+                                + PackageInventory.SHOW_VERSION_CODE_FLAG);
+    }
+
+    @Test
+    public void uninstall_onlyUninstallsInstalledPackages() throws Exception {
+        createApkFiles(PACKAGE_NAME, "base.apk");
+        ApkInstallPipeline pipeline = createPipeline();
+        pipeline.install(PACKAGE_NAME);
+
+        pipeline.uninstall(Arrays.asList(PACKAGE_NAME, "com.example.other"));
+
+        verify(mDevice).uninstallPackage(PACKAGE_NAME);
+        verify(mDevice, never()).uninstallPackage("com.example.other");
+    }
+
+    private ApkInstallPipeline createPipeline() {
+        return new ApkInstallPipeline(mDevice, mTempFolder.getRoot(), Collections.emptyList());
+    }
+
+    private void createApkFiles(String packageName, String... apkNames) throws Exception {
+        File packageDir = mTempFolder.newFolder(packageName);
+        for (String apkName : apkNames) {
+            assertThat(new File(packageDir, apkName).createNewFile()).isTrue();
+        }
+    }
+
+    private static CommandResult createResult(String stdout) {
+        CommandResult result = new CommandResult(CommandStatus.SUCCESS);
+        result.setStdout(stdout);
+        return result;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.csuite.core;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.StreamUtil;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.nio.charset.StandardCharsets;
+
+@RunWith(JUnit4.class)
+public final class DeviceLogcatCollectorTest {
+    private static final long LARGE_FILE_SIZE_BYTES = 1024 * 1024;
+
+    private DeviceLogcatCollector mCollector;
+
+    @After
+    public void tearDown() {
+        if (mCollector != null) {
+            mCollector.close();
+        }
+    }
+
+    @Test
+    public void getSlice_returnsOnlyDataWrittenBetweenOffsets() throws Exception {
+        mCollector = new DeviceLogcatCollector(LARGE_FILE_SIZE_BYTES);
+        write(mCollector, "before\n");
+        long start = mCollector.getOffset();
+        write(mCollector, "during\n");
+        long end = mCollector.getOffset();
+        write(mCollector, "after\n");
+
+        assertThat(read(mCollector.getSlice(start, end))).isEqualTo("during\n");
+    }
+
+    @Test
+    public void getSlice_endOffsetBeyondData_returnsAvailableData() throws Exception {
+        mCollector = new DeviceLogcatCollector(LARGE_FILE_SIZE_BYTES);
+        long start = mCollector.getOffset();
+        write(mCollector, "during\n");
+
+        assertThat(read(mCollector.getSlice(start, Long.MAX_VALUE))).isEqualTo("during\n");
+    }
+
+    @Test
+    public void getSlice_fileFull_readsPreviousFile() throws Exception {
+        mCollector = new DeviceLogcatCollector(10);
+        long start = mCollector.getOffset();
+        write(mCollector, "12345678\n");
+        write(mCollector, "abc\n");
+        long end = mCollector.getOffset();
+
+        assertThat(read(mCollector.getSlice(start, end))).isEqualTo("12345678\nabc\n");
+    }
+
+    @Test
+    public void getSlice_dataDiscardedAfterTwoFilesFull_returnsTruncatedData() throws Exception {
+        mCollector = new DeviceLogcatCollector(10);
+        long start = mCollector.getOffset();
+        write(mCollector, "12345678\n");
+        write(mCollector, "abcdefgh\n");
+        write(mCollector, "xyz\n");
+        long end = mCollector.getOffset();
+
+        assertThat(read(mCollector.getSlice(start, end))).isEqualTo("abcdefgh\nxyz\n");
+    }
+
+    @Test
+    public void getSlice_filesDiscardedAfterSliceTaken_remainsReadable() throws Exception {
+        mCollector = new DeviceLogcatCollector(10);
+        long start = mCollector.getOffset();
+        write(mCollector, "12345678\n");
+        InputStreamSource slice = mCollector.getSlice(start, mCollector.getOffset());
+
+        write(mCollector, "abcdefgh\n");
+        write(mCollector, "xyz\n");
+
+        assertThat(read(slice)).isEqualTo("12345678\n");
+    }
+
+    @Test
+    public void get_collectorNotStarted_returnsNull() throws Exception {
+        ITestDevice device = Mockito.mock(ITestDevice.class);
+        Mockito.when(device.getSerialNumber()).thenReturn("SERIAL");
+
+        assertThat(DeviceLogcatCollector.get(device)).isNull();
+    }
+
+    @Test
+    public void startDedicated_isNotSharedWithOtherTests() throws Exception {
+        ITestDevice device = Mockito.mock(ITestDevice.class);
+        Mockito.when(device.getSerialNumber()).thenReturn("SERIAL");
+
+        mCollector = DeviceLogcatCollector.startDedicated(device, LARGE_FILE_SIZE_BYTES);
+
+        assertThat(DeviceLogcatCollector.get(device)).isNull();
+    }
+
+    private static void write(DeviceLogcatCollector collector, String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        collector.addOutput(data, 0, data.length);
+    }
+
+    private static String read(InputStreamSource source) throws Exception {
+        try (InputStreamSource slice = source) {
+            return StreamUtil.getStringFromStream(slice.createInputStream());
+        }
+    }
+}
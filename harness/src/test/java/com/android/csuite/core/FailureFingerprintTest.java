@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class FailureFingerprintTest {
+    private static final String PACKAGE_NAME = "com.example.app";
+    private static final String OTHER_PACKAGE_NAME = "com.example.other";
+
+    @Test
+    public void of_sameLibraryCrashInTwoPackages_hasSameId() {
+        FailureFingerprint first =
+                FailureFingerprint.of(
+                        createCrash(PACKAGE_NAME, "MainActivity", 42, 1234), PACKAGE_NAME);
+        FailureFingerprint second =
+                FailureFingerprint.of(
+                        createCrash(OTHER_PACKAGE_NAME, "HomeActivity", 57, 5678),
+                        OTHER_PACKAGE_NAME);
+
+        assertThat(first.getId()).isEqualTo(second.getId());
+        assertThat(first.getSignature())
+                .isEqualTo("crash | java.lang.NullPointerException | com.vendor.sdk.Tracker.init");
+    }
+
+    @Test
+    public void of_differentExceptionTypes_haveDifferentIds() {
+        String crash = createCrash(PACKAGE_NAME, "MainActivity", 42, 1234);
+
+        String otherCrash = crash.replace("NullPointerException", "IllegalStateException");
+
+        assertThat(FailureFingerprint.of(crash, PACKAGE_NAME).getId())
+                .isNotEqualTo(FailureFingerprint.of(otherCrash, PACKAGE_NAME).getId());
+    }
+
+    @Test
+    public void of_causedBy_usesRootCause() {
+        String trace =
+                "java.lang.RuntimeException: Unable to start activity\n"
+                        + "\tat android.app.ActivityThread.main(ActivityThread.java:1)\n"
+                        + "Caused by: java.lang.IllegalStateException: not initialized\n"
+                        + "\tat com.example.app.Config.get(Config.java:12)\n"
+                        + "\tat com.example.app.Config.load(Config.java:30)\n";
+
+        assertThat(FailureFingerprint.of(trace, PACKAGE_NAME).getSignature())
+                .isEqualTo(
+                        "java.lang.IllegalStateException | <pkg>.Config.get | <pkg>.Config.load");
+    }
+
+    @Test
+    public void of_obfuscatedFrames_areSkipped() {
+        String trace =
+                "java.lang.NullPointerException\n"
+                        + "\tat a.b.c(Unknown Source:3)\n"
+                        + "\tat com.vendor.sdk.Loader.load$1(Loader.java:8)\n";
+
+        assertThat(FailureFingerprint.of(trace, PACKAGE_NAME).getSignature())
+                .isEqualTo("java.lang.NullPointerException | com.vendor.sdk.Loader.load$");
+    }
+
+    @Test
+    public void of_onlyPlatformFrames_usesPlatformFrames() {
+        String trace =
+                "java.lang.IllegalArgumentException: bad\n"
+                        + "\tat android.view.View.setId(View.java:10)\n";
+
+        assertThat(FailureFingerprint.of(trace, PACKAGE_NAME).getSignature())
+                .isEqualTo("java.lang.IllegalArgumentException | android.view.View.setId");
+    }
+
+    @Test
+    public void of_nativeCrash_usesLibrariesAndSymbols() {
+        String trace =
+                "### Type: native crash, Details:\n"
+                        + "    #00 pc 000000000004e8d0  /apex/com.android.runtime/lib64/bionic/"
+                        + "libc.so (abort+160) (BuildId: 123)\n"
+                        + "    #01 pc 00000000000123ab  /data/app/~~x1/lib/arm64/libgame.so\n";
+
+        assertThat(FailureFingerprint.of(trace, PACKAGE_NAME).getSignature())
+                .isEqualTo("native crash | libc.so abort | libgame.so");
+    }
+
+    @Test
+    public void of_raisedByHarness_usesNormalizedMessage() {
+        String first = createHarnessFailure(PACKAGE_NAME, 1200);
+        String second = createHarnessFailure(OTHER_PACKAGE_NAME, 900);
+
+        assertThat(FailureFingerprint.of(first, PACKAGE_NAME).getId())
+                .isEqualTo(FailureFingerprint.of(second, OTHER_PACKAGE_NAME).getId());
+    }
+
+    @Test
+    public void normalizeDescription_masksVariableParts() {
+        assertThat(
+                        FailureFingerprint.normalizeDescription(
+                                "Process com.example.app (pid 1234) died at 12:01:02.345 near"
+                                        + " 0xdeadbeef",
+                                PACKAGE_NAME))
+                .isEqualTo("Process <pkg> (pid <n>) died at <time> near <addr>");
+    }
+
+    private static String createCrash(
+            String packageName, String activity, int lineNumber, int pid) {
+        return "java.lang.AssertionError: Error(s) detected for package: "
+                + packageName
+                + "\n\n### Type: crash, Details:\n"
+                + "Process: "
+                + packageName
+                + ", PID: "
+                + pid
+                + "\n"
+                + "java.lang.NullPointerException: Attempt to invoke a method on a null object\n"
+                + "\tat com.vendor.sdk.Tracker.init(Tracker.java:"
+                + lineNumber
+                + ")\n"
+                + "\tat "
+                + packageName
+                + "."
+                + activity
+                + ".onCreate("
+                + activity
+                + ".java:10)\n"
+                + "\tat android.app.Activity.performCreate(Activity.java:8000)\n"
+                + "\n\tat org.junit.Assert.fail(Assert.java:89)\n";
+    }
+
+    private static String createHarnessFailure(String packageName, long delayMillis) {
+        return "java.lang.AssertionError: Process "
+                + packageName
+                + " died "
+                + delayMillis
+                + " ms after launch\n"
+                + "\tat org.junit.Assert.fail(Assert.java:89)\n"
+                + "\tat com.android.compatibilitytest.AppCompatibility.testAppStability("
+                + "AppCompatibility.java:290)\n";
+    }
+}
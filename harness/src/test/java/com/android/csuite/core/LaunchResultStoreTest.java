@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public final class LaunchResultStoreTest {
+    private static final String PACKAGE_NAME = "com.example.app";
+    private static final String SUCCESS = "success";
+    private static final String FAILURE = "failure";
+
+    @Rule public final TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Test
+    public void append_newStore_readsRecordsBack() throws Exception {
+        Path file = mTempFolder.getRoot().toPath().resolve("history.jsonl");
+        new LaunchResultStore(file)
+                .append(
+                        LaunchRecord.builder()
+                                .setPackageName(PACKAGE_NAME)
+                                .setVersionCode(42)
+                                .setStatus(FAILURE)
+                                .setLaunchLatencyMillis(1500)
+                                .setInstallTimeMillis(800)
+                                .setFailureSignature("java.lang.NullPointerException")
+                                .build());
+
+        LaunchRecord record = new LaunchResultStore(file).getLatestRecord(PACKAGE_NAME).get();
+
+        assertThat(record.getVersionCode()).isEqualTo(42);
+        assertThat(record.getStatus()).isEqualTo(FAILURE);
+        assertThat(record.getLaunchLatencyMillis()).isEqualTo(1500);
+        assertThat(record.getInstallTimeMillis()).isEqualTo(800);
+        assertThat(record.getFailureSignature()).isEqualTo("java.lang.NullPointerException");
+    }
+
+    @Test
+    public void append_attemptOutcomes_readsOutcomesBack() throws Exception {
+        Path file = mTempFolder.getRoot().toPath().resolve("history.jsonl");
+        new LaunchResultStore(file)
+                .append(
+                        LaunchRecord.builder()
+                                .setPackageName(PACKAGE_NAME)
+                                .setStatus(SUCCESS)
+                                .setAttemptOutcomes(Arrays.asList("TIMEOUT", SUCCESS))
+                                .build());
+
+        LaunchRecord record = new LaunchResultStore(file).getLatestRecord(PACKAGE_NAME).get();
+
+        assertThat(record.getAttemptOutcomes()).containsExactly("TIMEOUT", SUCCESS).inOrder();
+    }
+
+    @Test
+    public void getRecords_malformedLine_isSkipped() throws Exception {
+        Path file = mTempFolder.newFile().toPath();
+        Files.write(file, "not json\n".getBytes(StandardCharsets.UTF_8));
+        LaunchResultStore store = new LaunchResultStore(file);
+        store.append(record(SUCCESS, 1000));
+
+        assertThat(new LaunchResultStore(file).getRecords(PACKAGE_NAME)).hasSize(1);
+    }
+
+    @Test
+    public void getRecords_fileWrittenByAnotherStore_readsNewRecords() throws Exception {
+        LaunchResultStore store = createStore();
+        store.append(record(SUCCESS, 1000));
+        assertThat(store.getRecords(PACKAGE_NAME)).hasSize(1);
+
+        createStore().append(record(FAILURE, 2000));
+
+        assertThat(store.getRecords(PACKAGE_NAME)).hasSize(2);
+        assertThat(store.getLatestRecord(PACKAGE_NAME).get().getStatus()).isEqualTo(FAILURE);
+    }
+
+    @Test
+    public void getRecords_otherPackages_areExcluded() throws Exception {
+        LaunchResultStore store = createStore();
+        store.append(record(SUCCESS, 1000));
+        store.append(
+                LaunchRecord.builder()
+                        .setPackageName("com.example.other")
+                        .setStatus(SUCCESS)
+                        .build());
+
+        assertThat(store.getRecords(PACKAGE_NAME)).hasSize(1);
+    }
+
+    @Test
+    public void getLatencyPercentile_ignoresUnknownLatencies() throws Exception {
+        LaunchResultStore store = createStore();
+        for (long latency : Arrays.asList(1000L, 2000L, 3000L, LaunchRecord.UNKNOWN)) {
+            store.append(record(SUCCESS, latency));
+        }
+
+        assertThat(store.getLatencyPercentile(PACKAGE_NAME, 50).get()).isEqualTo(2000L);
+        assertThat(store.getLatencyPercentile(PACKAGE_NAME, 100).get()).isEqualTo(3000L);
+    }
+
+    @Test
+    public void getLatencyPercentile_noRecords_returnsEmpty() {
+        assertThat(createStore().getLatencyPercentile(PACKAGE_NAME, 50).isPresent()).isFalse();
+    }
+
+    @Test
+    public void getTimeToLaunchPercentile_enoughSamples_returnsPercentile() throws Exception {
+        LaunchResultStore store = createStore();
+        for (long timeToLaunch : Arrays.asList(300L, 400L, 500L, LaunchRecord.UNKNOWN)) {
+            store.append(recordWithTimeToLaunch(timeToLaunch));
+        }
+
+        assertThat(store.getTimeToLaunchPercentile(PACKAGE_NAME, 100, 3).get()).isEqualTo(500L);
+    }
+
+    @Test
+    public void getTimeToLaunchPercentile_fewerThanMinSamples_returnsEmpty() throws Exception {
+        LaunchResultStore store = createStore();
+        store.append(recordWithTimeToLaunch(300));
+        store.append(recordWithTimeToLaunch(LaunchRecord.UNKNOWN));
+
+        assertThat(store.getTimeToLaunchPercentile(PACKAGE_NAME, 99, 2).isPresent()).isFalse();
+    }
+
+    @Test
+    public void getFlakinessRate_countsStatusFlipsWithinVersion() throws Exception {
+        LaunchResultStore store = createStore();
+        store.append(record(SUCCESS, 1000));
+        store.append(record(FAILURE, 1000));
+        store.append(record(FAILURE, 1000));
+        store.append(record(SUCCESS, 1000));
+
+        assertThat(store.getFlakinessRate(PACKAGE_NAME).get()).isWithin(1e-9).of(2.0 / 3);
+    }
+
+    @Test
+    public void getFlakinessRate_statusChangeAcrossVersions_isNotCounted() throws Exception {
+        LaunchResultStore store = createStore();
+        store.append(record(FAILURE, 1000));
+        store.append(
+                LaunchRecord.builder()
+                        .setPackageName(PACKAGE_NAME)
+                        .setVersionCode(2)
+                        .setStatus(SUCCESS)
+                        .build());
+
+        assertThat(store.getFlakinessRate(PACKAGE_NAME).isPresent()).isFalse();
+    }
+
+    @Test
+    public void getFailureClusters_groupsFailuresByFingerprint() throws Exception {
+        LaunchResultStore store = createStore();
+        store.append(recordWithFingerprint(PACKAGE_NAME, FAILURE, "a"));
+        store.append(recordWithFingerprint("com.example.other", FAILURE, "a"));
+        store.append(recordWithFingerprint(PACKAGE_NAME, FAILURE, "a"));
+        store.append(recordWithFingerprint(PACKAGE_NAME, FAILURE, "b"));
+        store.append(recordWithFingerprint(PACKAGE_NAME, SUCCESS, null));
+
+        List<FailureCluster> clusters = store.getFailureClusters();
+
+        assertThat(clusters).hasSize(2);
+        assertThat(clusters.get(0).getFingerprint()).isEqualTo("a");
+        assertThat(clusters.get(0).getCount()).isEqualTo(3);
+        assertThat(clusters.get(0).getPackageNames())
+                .containsExactly("com.example.other", PACKAGE_NAME)
+                .inOrder();
+        assertThat(clusters.get(1).getFingerprint()).isEqualTo("b");
+    }
+
+    @Test
+    public void isUnchangedSinceLastPass_lastRunPassedWithSameHash_returnsTrue() throws Exception {
+        LaunchResultStore store = createStore();
+        store.append(recordWithApkHash(SUCCESS, "hash"));
+
+        assertThat(store.isUnchangedSinceLastPass(PACKAGE_NAME, "hash")).isTrue();
+        assertThat(store.isUnchangedSinceLastPass(PACKAGE_NAME, "other_hash")).isFalse();
+    }
+
+    @Test
+    public void isUnchangedSinceLastPass_lastRunFailed_returnsFalse() throws Exception {
+        LaunchResultStore store = createStore();
+        store.append(recordWithApkHash(SUCCESS, "hash"));
+        store.append(recordWithApkHash(FAILURE, "hash"));
+
+        assertThat(store.isUnchangedSinceLastPass(PACKAGE_NAME, "hash")).isFalse();
+    }
+
+    @Test
+    public void estimate_returnsMedianLatency() throws Exception {
+        LaunchResultStore store = createStore();
+        store.append(record(SUCCESS, 1000));
+        store.append(record(SUCCESS, 5000));
+        store.append(record(FAILURE, 2000));
+
+        assertThat(store.estimate(PACKAGE_NAME).get()).isEqualTo(Duration.ofMillis(2000));
+    }
+
+    @Test
+    public void open_samePath_returnsSameInstance() throws Exception {
+        Path file = mTempFolder.getRoot().toPath().resolve("history.jsonl");
+
+        assertThat(LaunchResultStore.open(file)).isSameInstanceAs(LaunchResultStore.open(file));
+    }
+
+    private LaunchResultStore createStore() {
+        return new LaunchResultStore(mTempFolder.getRoot().toPath().resolve("history.jsonl"));
+    }
+
+    private static LaunchRecord record(String status, long latencyMillis) {
+        return LaunchRecord.builder()
+                .setPackageName(PACKAGE_NAME)
+                .setVersionCode(1)
+                .setStatus(status)
+                .setLaunchLatencyMillis(latencyMillis)
+                .build();
+    }
+
+    private static LaunchRecord recordWithTimeToLaunch(long timeToLaunchMillis) {
+        return LaunchRecord.builder()
+                .setPackageName(PACKAGE_NAME)
+                .setStatus(SUCCESS)
+                .setTimeToLaunchMillis(timeToLaunchMillis)
+                .build();
+    }
+
+    private static LaunchRecord recordWithFingerprint(
+            String packageName, String status, String fingerprint) {
+        return LaunchRecord.builder()
+                .setPackageName(packageName)
+                .setStatus(status)
+                .setFailureSignature(fingerprint != null ? "signature " + fingerprint : null)
+                .setFailureFingerprint(fingerprint)
+                .build();
+    }
+
+    private static LaunchRecord recordWithApkHash(String status, String apkHash) {
+        return LaunchRecord.builder()
+                .setPackageName(PACKAGE_NAME)
+                .setStatus(status)
+                .setApkHash(apkHash)
+                .build();
+    }
+}
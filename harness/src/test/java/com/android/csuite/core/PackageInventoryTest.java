@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.targetprep.TargetSetupError;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class PackageInventoryTest {
+    private static final String LIST_COMMAND =
+            PackageInventory.LIST_PACKAGES_COMMAND + PackageInventory.SHOW_VERSION_CODE_FLAG;
+    private static final String PACKAGE_NAME = "com.example.app";
+    private static final String PACKAGE_LINE =
+            "package:/data/app/base.apk=" + PACKAGE_NAME + " versionCode:12 uid:10001";
+    private static final String SYSTEM_PACKAGE_LINE =
+            "package:/system/app/Settings/Settings.apk=com.android.settings"
+                    + " versionCode:30 uid:1000";
+
+    private final ITestDevice mDevice = mock(ITestDevice.class);
+
+    @Test
+    public void parse_fullLine_returnsAllFields() {
+        PackageInventory.Entry entry = PackageInventory.Entry.parse(PACKAGE_LINE);
+
+        assertThat(entry.getPackageName()).isEqualTo(PACKAGE_NAME);
+        assertThat(entry.getApkPath()).isEqualTo("/data/app/base.apk");
+        assertThat(entry.getVersionCode()).isEqualTo(12);
+        assertThat(entry.getUid()).isEqualTo(10001);
+    }
+
+    @Test
+    public void parse_packageNameOnly_returnsUnknownFields() {
+        PackageInventory.Entry entry = PackageInventory.Entry.parse("package:" + PACKAGE_NAME);
+
+        assertThat(entry.getPackageName()).isEqualTo(PACKAGE_NAME);
+        assertThat(entry.getApkPath()).isNull();
+        assertThat(entry.getVersionCode()).isEqualTo(-1);
+        assertThat(entry.getUid()).isEqualTo(-1);
+    }
+
+    @Test
+    public void parse_notAPackageLine_returnsNull() {
+        assertThat(PackageInventory.Entry.parse("Error: unknown option")).isNull();
+    }
+
+    @Test
+    public void isInstalled_multiplePackages_listsPackagesOnce() throws Exception {
+        mockListCommand(LIST_COMMAND, PACKAGE_LINE + "\n" + SYSTEM_PACKAGE_LINE);
+        PackageInventory inventory = PackageInventory.get(mDevice);
+
+        assertThat(inventory.isInstalled(PACKAGE_NAME)).isTrue();
+        assertThat(inventory.isInstalled("com.android.settings")).isTrue();
+        assertThat(inventory.isInstalled("com.example.missing")).isFalse();
+        verify(mDevice, times(1)).executeShellV2Command(startsWith("pm list packages"));
+    }
+
+    @Test
+    public void isInstalled_packageNameIsPrefixOfInstalledPackage_returnsFalse()
+            throws Exception {
+        mockListCommand(LIST_COMMAND, PACKAGE_LINE);
+
+        assertThat(PackageInventory.get(mDevice).isInstalled("com.example")).isFalse();
+    }
+
+    @Test
+    public void getEntry_invalidated_queriesOnlyThatPackage() throws Exception {
+        mockListCommand(LIST_COMMAND, PACKAGE_LINE + "\n" + SYSTEM_PACKAGE_LINE);
+        mockListCommand(LIST_COMMAND + " " + PACKAGE_NAME, "");
+        PackageInventory inventory = PackageInventory.get(mDevice);
+        inventory.isInstalled(PACKAGE_NAME);
+
+        inventory.invalidate(PACKAGE_NAME);
+
+        assertThat(inventory.isInstalled(PACKAGE_NAME)).isFalse();
+        assertThat(inventory.isInstalled("com.android.settings")).isTrue();
+        verify(mDevice, times(1)).executeShellV2Command(LIST_COMMAND);
+        verify(mDevice, times(1)).executeShellV2Command(LIST_COMMAND + " " + PACKAGE_NAME);
+    }
+
+    @Test
+    public void getEntry_versionCodeNotSupported_listsWithoutVersionCode() throws Exception {
+        when(mDevice.executeShellV2Command(LIST_COMMAND))
+                .thenReturn(new CommandResult(CommandStatus.FAILED));
+        mockListCommand(PackageInventory.LIST_PACKAGES_COMMAND, "package:/data/app/a.apk=a.b");
+
+        PackageInventory.Entry entry = PackageInventory.get(mDevice).getEntry("a.b").get();
+
+        assertThat(entry.getApkPath()).isEqualTo("/data/app/a.apk");
+        assertThat(entry.getVersionCode()).isEqualTo(-1);
+    }
+
+    @Test
+    public void getEntry_listCommandFailed_throws() throws Exception {
+        when(mDevice.executeShellV2Command(startsWith("pm list packages")))
+                .thenReturn(new CommandResult(CommandStatus.FAILED));
+
+        assertThrows(
+                TargetSetupError.class, () -> PackageInventory.get(mDevice).getEntry(PACKAGE_NAME));
+    }
+
+    @Test
+    public void get_sameSerial_returnsSameInventory() {
+        ITestDevice otherDevice = mock(ITestDevice.class);
+        when(mDevice.getSerialNumber()).thenReturn("inventory-test-serial");
+        when(otherDevice.getSerialNumber()).thenReturn("inventory-test-serial");
+
+        PackageInventory inventory = PackageInventory.get(mDevice);
+
+        assertThat(PackageInventory.get(otherDevice)).isSameInstanceAs(inventory);
+    }
+
+    private void mockListCommand(String command, String stdout) throws Exception {
+        CommandResult result = new CommandResult(CommandStatus.SUCCESS);
+        result.setStdout(stdout);
+        when(mDevice.executeShellV2Command(command)).thenReturn(result);
+    }
+}
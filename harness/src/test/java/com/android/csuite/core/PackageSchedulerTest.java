@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@RunWith(JUnit4.class)
+public final class PackageSchedulerTest {
+
+    @Test
+    public void poll_knownDurations_returnsLongestFirst() {
+        PackageScheduler scheduler =
+                new PackageScheduler(
+                        Arrays.asList("short", "long", "medium"),
+                        estimator(ImmutableMap.of("short", 1L, "long", 30L, "medium", 10L)));
+
+        assertThat(scheduler.poll(3)).containsExactly("long", "medium", "short").inOrder();
+    }
+
+    @Test
+    public void poll_unknownDuration_returnsUnknownFirst() {
+        PackageScheduler scheduler =
+                new PackageScheduler(
+                        Arrays.asList("known", "unknown"),
+                        estimator(ImmutableMap.of("known", 30L)));
+
+        assertThat(scheduler.poll(2)).containsExactly("unknown", "known").inOrder();
+    }
+
+    @Test
+    public void poll_duplicatePackages_returnsEachOnce() {
+        PackageScheduler scheduler =
+                new PackageScheduler(
+                        Arrays.asList("a", "b", "a"), LaunchDurationEstimator.UNKNOWN);
+
+        assertThat(scheduler.poll(10)).containsExactly("a", "b");
+    }
+
+    @Test
+    public void poll_maxCountBelowSize_returnsChunks() {
+        PackageScheduler scheduler =
+                new PackageScheduler(Arrays.asList("a", "b", "c"), LaunchDurationEstimator.UNKNOWN);
+
+        assertThat(scheduler.poll(2)).hasSize(2);
+        assertThat(scheduler.size()).isEqualTo(1);
+        assertThat(scheduler.poll(2)).hasSize(1);
+        assertThat(scheduler.poll(2)).isEmpty();
+    }
+
+    @Test
+    public void poll_nonPositiveMaxCount_throws() {
+        PackageScheduler scheduler =
+                new PackageScheduler(Arrays.asList("a"), LaunchDurationEstimator.UNKNOWN);
+
+        assertThrows(IllegalArgumentException.class, () -> scheduler.poll(0));
+    }
+
+    @Test
+    public void poll_concurrentConsumers_returnEachPackageOnce() throws Exception {
+        List<String> packageNames = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            packageNames.add("package_" + i);
+        }
+        PackageScheduler scheduler =
+                new PackageScheduler(packageNames, LaunchDurationEstimator.UNKNOWN);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<List<String>>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> drain(scheduler)));
+            }
+            List<String> polled = new ArrayList<>();
+            for (Future<List<String>> future : futures) {
+                polled.addAll(future.get());
+            }
+
+            assertThat(polled).containsExactlyElementsIn(packageNames);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<String> drain(PackageScheduler scheduler) {
+        List<String> polled = new ArrayList<>();
+        List<String> chunk;
+        while (!(chunk = scheduler.poll(3)).isEmpty()) {
+            polled.addAll(chunk);
+        }
+        return Collections.unmodifiableList(polled);
+    }
+
+    private static LaunchDurationEstimator estimator(Map<String, Long> secondsByPackage) {
+        return packageName ->
+                Optional.ofNullable(secondsByPackage.get(packageName)).map(Duration::ofSeconds);
+    }
+}
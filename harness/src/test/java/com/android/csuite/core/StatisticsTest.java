@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+@RunWith(JUnit4.class)
+public final class StatisticsTest {
+
+    @Test
+    public void percentile_betweenRanks_interpolates() {
+        assertThat(Statistics.percentile(Arrays.asList(10, 20, 30, 40), 50)).isEqualTo(25.0);
+    }
+
+    @Test
+    public void percentile_bounds_returnMinAndMax() {
+        assertThat(Statistics.percentile(Arrays.asList(30, 10, 20), 0)).isEqualTo(10.0);
+        assertThat(Statistics.percentile(Arrays.asList(30, 10, 20), 100)).isEqualTo(30.0);
+    }
+
+    @Test
+    public void percentile_singleValue_returnsValue() {
+        assertThat(Statistics.percentile(Collections.singletonList(7L), 99)).isEqualTo(7.0);
+    }
+
+    @Test
+    public void percentile_noValues_throws() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> Statistics.percentile(Collections.<Long>emptyList(), 50));
+    }
+
+    @Test
+    public void percentile_outOfRange_throws() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> Statistics.percentile(Arrays.asList(1, 2), 101));
+    }
+
+    @Test
+    public void median_oddCount_returnsMiddleValue() {
+        assertThat(Statistics.median(Arrays.asList(5, 1, 3))).isEqualTo(3.0);
+    }
+
+    @Test
+    public void standardDeviation_multipleValues_returnsSampleStandardDeviation() {
+        assertThat(Statistics.standardDeviation(Arrays.asList(2, 4, 4, 4, 5, 5, 7, 9)))
+                .isWithin(1e-9)
+                .of(Math.sqrt(32.0 / 7));
+    }
+
+    @Test
+    public void standardDeviation_singleValue_returnsZero() {
+        assertThat(Statistics.standardDeviation(Collections.singletonList(3))).isEqualTo(0.0);
+    }
+
+    @Test
+    public void withoutOutliers_farValue_isRemoved() {
+        assertThat(Statistics.withoutOutliers(Arrays.asList(100L, 102L, 98L, 101L, 99L, 400L)))
+                .containsExactly(100L, 102L, 98L, 101L, 99L)
+                .inOrder();
+    }
+
+    @Test
+    public void withoutOutliers_noOutliers_keepsAllValues() {
+        assertThat(Statistics.withoutOutliers(Arrays.asList(1, 2, 3))).containsExactly(1, 2, 3);
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.android.csuite.core;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import static org.testng.Assert.assertThrows;
 
 import com.android.tradefed.device.DeviceNotAvailableException;
@@ -31,13 +33,18 @@ import org.junit.runners.JUnit4;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
 @RunWith(JUnit4.class)
 public final class SystemAppUninstallerTest {
     private static final ITestDevice NULL_DEVICE = null;
     private static final String TEST_PACKAGE_NAME = "test.package.name";
+    private static final String OTHER_PACKAGE_NAME = "other.package.name";
     private static final String SYSTEM_APP_INSTALL_DIRECTORY = "/system/app";
     private static final String CHECK_PACKAGE_INSTALLED_COMMAND_PREFIX = "pm list packages ";
-    private static final String GET_PACKAGE_INSTALL_PATH_COMMAND_PREFIX = "pm path ";
     private static final String REMOVE_SYSTEM_APP_COMMAND_PREFIX =
             "rm -r " + SYSTEM_APP_INSTALL_DIRECTORY;
     private static final String REMOVE_APP_DATA_COMMAND_PREFIX = "rm -r /data/data";
@@ -81,7 +88,7 @@ public final class SystemAppUninstallerTest {
         ITestDevice device = createGoodDeviceWithSystemAppInstalled();
         // Mock the device as if the test package does not exist on device
         CommandResult commandResult = createSuccessfulCommandResult();
-        commandResult.setStdout(String.format("package:%s_some_more_chars", TEST_PACKAGE_NAME));
+        commandResult.setStdout(listSystemApp(TEST_PACKAGE_NAME + "_some_more_chars"));
         Mockito.when(
                         device.executeShellV2Command(
                                 ArgumentMatchers.startsWith(
@@ -108,13 +115,15 @@ public final class SystemAppUninstallerTest {
     }
 
     @Test
-    public void uninstallPackage_getInstallDirectoryCommandFailed_throws() throws Exception {
+    public void uninstallPackage_installPathNotListed_throws() throws Exception {
         ITestDevice device = createGoodDeviceWithSystemAppInstalled();
+        CommandResult commandResult = createSuccessfulCommandResult();
+        commandResult.setStdout("package:" + TEST_PACKAGE_NAME);
         Mockito.when(
                         device.executeShellV2Command(
                                 ArgumentMatchers.startsWith(
-                                        GET_PACKAGE_INSTALL_PATH_COMMAND_PREFIX)))
-                .thenReturn(createFailedCommandResult());
+                                        CHECK_PACKAGE_INSTALLED_COMMAND_PREFIX)))
+                .thenReturn(commandResult);
 
         assertThrows(
                 TargetSetupError.class,
@@ -299,16 +308,129 @@ public final class SystemAppUninstallerTest {
                 () -> SystemPackageUninstaller.uninstallPackage(TEST_PACKAGE_NAME, device));
     }
 
+    @Test
+    public void uninstallPackages_multipleSystemApps_restartsFrameworkOnce() throws Exception {
+        ITestDevice device = createGoodDeviceWithSystemAppInstalled();
+        addSystemApp(device, OTHER_PACKAGE_NAME);
+
+        Map<String, TargetSetupError> errors =
+                SystemPackageUninstaller.uninstallPackages(
+                        new LinkedHashSet<>(Arrays.asList(TEST_PACKAGE_NAME, OTHER_PACKAGE_NAME)),
+                        device);
+
+        assertThat(errors).isEmpty();
+        Mockito.verify(device, Mockito.times(1)).remountSystemWritable();
+        Mockito.verify(device, Mockito.times(1)).executeShellV2Command(Mockito.eq("stop"));
+        Mockito.verify(device, Mockito.times(1)).executeShellV2Command(Mockito.eq("start"));
+        Mockito.verify(device, Mockito.times(2))
+                .executeShellV2Command(Mockito.startsWith(REMOVE_SYSTEM_APP_COMMAND_PREFIX));
+    }
+
+    @Test
+    public void uninstallPackages_multipleSystemApps_listsPackagesOnce() throws Exception {
+        ITestDevice device = createGoodDeviceWithSystemAppInstalled(0);
+        addSystemApp(device, OTHER_PACKAGE_NAME);
+
+        SystemPackageUninstaller.uninstallPackages(
+                new LinkedHashSet<>(Arrays.asList(TEST_PACKAGE_NAME, OTHER_PACKAGE_NAME)), device);
+
+        Mockito.verify(device, Mockito.times(1))
+                .executeShellV2Command(
+                        Mockito.startsWith(CHECK_PACKAGE_INSTALLED_COMMAND_PREFIX));
+    }
+
+    @Test
+    public void uninstallPackages_frameworkRestarted_reloadsPackageList() throws Exception {
+        ITestDevice device = createGoodDeviceWithSystemAppInstalled(0);
+        Mockito.when(device.getSerialNumber()).thenReturn("uninstaller-restart-serial");
+
+        SystemPackageUninstaller.uninstallPackages(
+                Collections.singleton(TEST_PACKAGE_NAME), device);
+        PackageInventory.get(device).isInstalled(TEST_PACKAGE_NAME);
+
+        Mockito.verify(device, Mockito.times(2))
+                .executeShellV2Command(
+                        PackageInventory.LIST_PACKAGES_COMMAND
+                                + PackageInventory.SHOW_VERSION_CODE_FLAG);
+    }
+
+    @Test
+    public void uninstallPackages_removalOfOnePackageFailed_reportsOnlyThatPackage()
+            throws Exception {
+        ITestDevice device = createGoodDeviceWithSystemAppInstalled();
+        addSystemApp(device, OTHER_PACKAGE_NAME);
+        Mockito.when(
+                        device.executeShellV2Command(
+                                Mockito.eq(
+                                        REMOVE_SYSTEM_APP_COMMAND_PREFIX
+                                                + "/"
+                                                + OTHER_PACKAGE_NAME)))
+                .thenReturn(createFailedCommandResult());
+
+        Map<String, TargetSetupError> errors =
+                SystemPackageUninstaller.uninstallPackages(
+                        new LinkedHashSet<>(Arrays.asList(TEST_PACKAGE_NAME, OTHER_PACKAGE_NAME)),
+                        device);
+
+        assertThat(errors.keySet()).containsExactly(OTHER_PACKAGE_NAME);
+        Mockito.verify(device, Mockito.times(1))
+                .executeShellV2Command(
+                        Mockito.eq(REMOVE_APP_DATA_COMMAND_PREFIX + "/" + TEST_PACKAGE_NAME));
+        Mockito.verify(device, Mockito.never())
+                .executeShellV2Command(
+                        Mockito.eq(REMOVE_APP_DATA_COMMAND_PREFIX + "/" + OTHER_PACKAGE_NAME));
+    }
+
+    @Test
+    public void uninstallPackages_updateRemovalOfOnePackageFailed_removesOtherPackages()
+            throws Exception {
+        ITestDevice device = createGoodDeviceWithSystemAppInstalled();
+        addSystemApp(device, OTHER_PACKAGE_NAME);
+        Mockito.when(device.uninstallPackage(OTHER_PACKAGE_NAME)).thenReturn(null);
+
+        Map<String, TargetSetupError> errors =
+                SystemPackageUninstaller.uninstallPackages(
+                        new LinkedHashSet<>(Arrays.asList(TEST_PACKAGE_NAME, OTHER_PACKAGE_NAME)),
+                        device);
+
+        assertThat(errors.keySet()).containsExactly(OTHER_PACKAGE_NAME);
+        Mockito.verify(device, Mockito.times(1))
+                .executeShellV2Command(
+                        Mockito.eq(
+                                REMOVE_SYSTEM_APP_COMMAND_PREFIX + "/" + TEST_PACKAGE_NAME));
+    }
+
+    private static void addSystemApp(ITestDevice device, String packageName) throws Exception {
+        Mockito.when(device.uninstallPackage(packageName))
+                .thenReturn("Failure [DELETE_FAILED_INTERNAL_ERROR]");
+
+        CommandResult commandResult = createSuccessfulCommandResult();
+        commandResult.setStdout(
+                listSystemApp(TEST_PACKAGE_NAME) + "\n" + listSystemApp(packageName));
+        Mockito.when(
+                        device.executeShellV2Command(
+                                Mockito.startsWith(CHECK_PACKAGE_INSTALLED_COMMAND_PREFIX)))
+                .thenReturn(commandResult);
+    }
+
+    private static String listSystemApp(String packageName) {
+        return String.format(
+                "package:%s/%s/%s.apk=%s versionCode:1 uid:1000",
+                SYSTEM_APP_INSTALL_DIRECTORY, packageName, packageName, packageName);
+    }
+
     private ITestDevice createGoodDeviceWithUserAppInstalled() throws Exception {
         ITestDevice device = createGoodDeviceWithSystemAppInstalled();
 
         CommandResult commandResult = createSuccessfulCommandResult();
         commandResult.setStdout(
-                String.format("package:/data/app/%s/%s.apk", TEST_PACKAGE_NAME, TEST_PACKAGE_NAME));
+                String.format(
+                        "package:/data/app/%s/%s.apk=%s versionCode:1 uid:10001",
+                        TEST_PACKAGE_NAME, TEST_PACKAGE_NAME, TEST_PACKAGE_NAME));
         Mockito.when(
                         device.executeShellV2Command(
                                 ArgumentMatchers.startsWith(
-                                        GET_PACKAGE_INSTALL_PATH_COMMAND_PREFIX)))
+                                        CHECK_PACKAGE_INSTALLED_COMMAND_PREFIX)))
                 .thenReturn(commandResult);
 
         return device;
@@ -355,25 +477,13 @@ public final class SystemAppUninstallerTest {
 
         // List package
         commandResult = createSuccessfulCommandResult();
-        commandResult.setStdout("package:" + TEST_PACKAGE_NAME);
+        commandResult.setStdout(listSystemApp(TEST_PACKAGE_NAME));
         Mockito.when(
                         device.executeShellV2Command(
                                 ArgumentMatchers.startsWith(
                                         CHECK_PACKAGE_INSTALLED_COMMAND_PREFIX)))
                 .thenReturn(commandResult);
 
-        // Get package path
-        commandResult = createSuccessfulCommandResult();
-        commandResult.setStdout(
-                String.format(
-                        "package:%s/%s/%s.apk",
-                        SYSTEM_APP_INSTALL_DIRECTORY, TEST_PACKAGE_NAME, TEST_PACKAGE_NAME));
-        Mockito.when(
-                        device.executeShellV2Command(
-                                ArgumentMatchers.startsWith(
-                                        GET_PACKAGE_INSTALL_PATH_COMMAND_PREFIX)))
-                .thenReturn(commandResult);
-
         // Adb root
         Mockito.when(device.isAdbRoot()).thenReturn(false);
         Mockito.when(device.enableAdbRoot()).thenReturn(true);
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.csuite.core;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+@RunWith(JUnit4.class)
+public final class TimeoutExecutorTest {
+    private static final long LONG_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final TimeoutExecutor mExecutor = new TimeoutExecutor(1);
+    private final ExecutorService mCallers = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mCallers.shutdownNow();
+    }
+
+    @Test
+    public void call_taskCompletes_returnsResult() throws Exception {
+        assertThat(mExecutor.call(() -> "result", LONG_TIMEOUT_MILLIS)).isEqualTo("result");
+    }
+
+    @Test
+    public void call_taskThrows_throwsExecutionExceptionWithCause() {
+        ExecutionException e =
+                assertThrows(
+                        ExecutionException.class,
+                        () ->
+                                mExecutor.call(
+                                        () -> {
+                                            throw new IOException("failed");
+                                        },
+                                        LONG_TIMEOUT_MILLIS));
+
+        assertThat(e).hasCauseThat().isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void call_taskExceedsTimeout_interruptsTaskAndCountsTimeout() throws Exception {
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        assertThrows(
+                TimeoutException.class,
+                () ->
+                        mExecutor.call(
+                                () -> {
+                                    try {
+                                        new CountDownLatch(1).await();
+                                    } catch (InterruptedException e) {
+                                        interrupted.countDown();
+                                    }
+                                    return null;
+                                },
+                                10));
+
+        assertThat(interrupted.await(LONG_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(mExecutor.getTimedOutCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void call_taskWaitingForThreadWithinTimeout_runsTask() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> blocking =
+                mCallers.submit(
+                        () ->
+                                mExecutor.call(
+                                        () -> {
+                                            release.await();
+                                            return null;
+                                        },
+                                        LONG_TIMEOUT_MILLIS));
+        waitUntilActiveCount(1);
+        Future<String> queued =
+                mCallers.submit(() -> mExecutor.call(() -> "queued", LONG_TIMEOUT_MILLIS));
+        waitUntilQueuedCount(1);
+
+        Thread.sleep(300);
+        release.countDown();
+
+        assertThat(queued.get(LONG_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)).isEqualTo("queued");
+        blocking.get(LONG_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertThat(mExecutor.getTimedOutCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void call_noThreadFreeWithinTimeout_timesOutWithoutRunningTask() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> blocking =
+                mCallers.submit(
+                        () ->
+                                mExecutor.call(
+                                        () -> {
+                                            release.await();
+                                            return null;
+                                        },
+                                        LONG_TIMEOUT_MILLIS));
+        waitUntilActiveCount(1);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        assertThrows(
+                TimeoutException.class,
+                () ->
+                        mExecutor.call(
+                                () -> {
+                                    ran.countDown();
+                                    return null;
+                                },
+                                100));
+
+        assertThat(mExecutor.getQueuedCount()).isEqualTo(0);
+        assertThat(mExecutor.getTimedOutCount()).isEqualTo(1);
+        release.countDown();
+        blocking.get(LONG_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertThat(ran.getCount()).isEqualTo(1);
+    }
+
+    private void waitUntilActiveCount(int count) throws InterruptedException {
+        while (mExecutor.getActiveCount() != count) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void waitUntilQueuedCount(int count) throws InterruptedException {
+        while (mExecutor.getQueuedCount() != count) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -17,8 +17,8 @@
 package com.android.compatibilitytest;
 
 import android.app.ActivityManager;
-import android.app.ActivityManager.ProcessErrorStateInfo;
-import android.app.ActivityManager.RunningTaskInfo;
+import android.app.ActivityManager.RunningAppProcessInfo;
+import android.app.ApplicationExitInfo;
 import android.app.IActivityController;
 import android.app.IActivityManager;
 import android.app.Instrumentation;
@@ -29,24 +29,32 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.DropBoxManager;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.util.Log;
 import android.view.KeyEvent;
+import android.view.accessibility.AccessibilityEvent;
 
 import androidx.test.InstrumentationRegistry;
-import androidx.test.runner.AndroidJUnit4;
 
 import com.android.internal.util.Preconditions;
 
 import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -56,30 +64,70 @@ import java.util.Map;
 import java.util.Set;
 import java.util.stream.IntStream;
 
-/** Application Compatibility Test that launches an application and detects crashes. */
-@RunWith(AndroidJUnit4.class)
+/**
+ * Application Compatibility Test that launches applications and detects crashes.
+ *
+ * <p>One test case is run per package to launch. The device is set up once for all packages so
+ * that launching a batch of packages in a single instrumentation run amortizes the setup cost.
+ */
+@RunWith(Parameterized.class)
 public final class AppCompatibility {
 
     private static final String TAG = AppCompatibility.class.getSimpleName();
     private static final String PACKAGE_TO_LAUNCH = "package_to_launch";
+    private static final String PACKAGES_TO_LAUNCH = "packages_to_launch";
+    private static final String PACKAGE_SEPARATOR = ",";
     private static final String APP_LAUNCH_TIMEOUT_MSECS = "app_launch_timeout_ms";
+    // The launch timeouts of individual packages, as "<package>:<timeout>" entries separated by
+    // PACKAGE_SEPARATOR. Packages without an entry use the app_launch_timeout_ms argument.
+    private static final String APP_LAUNCH_TIMEOUTS_MSECS = "app_launch_timeouts_ms";
+    private static final String TIMEOUT_SEPARATOR = ":";
     private static final String ARG_DISMISS_DIALOG = "ARG_DISMISS_DIALOG";
+    private static final String ARG_EVENT_DRIVEN_LAUNCH = "event_driven_launch";
+    private static final String ARG_STABILITY_WINDOW_MSECS = "stability_window_ms";
+    private static final String ARG_RESOURCE_SAMPLE_INTERVAL_MSECS = "resource_sample_interval_ms";
+    private static final String ARG_COLLECT_FRAME_STATS = "collect_frame_stats";
     private static final Set<String> DROPBOX_TAGS = new HashSet<>();
     private static final int MAX_CRASH_SNIPPET_LINES = 20;
     private static final int MAX_NUM_CRASH_SNIPPET = 3;
+    private static final int MAX_NUM_PROCESS_EXITS = 16;
     private static final int DELAY_AFTER_KEYEVENT_MILLIS = 500;
+    // Time given to the system to write the DropBox entry of a crash or ANR once it is reported.
+    private static final int DELAY_AFTER_FATAL_ERROR_MILLIS = 500;
+    // Status code of intermediate results, which the host attaches to the current test case.
+    private static final int INST_STATUS_IN_PROGRESS = 2;
+    private static final String METRIC_LAUNCH_DURATION = "launch_duration_ms";
+    private static final String METRIC_TIME_TO_FIRST_FRAME = "time_to_first_frame_ms";
+    private static final String METRIC_TIME_TO_RESUMED = "time_to_resumed_ms";
+    private static final String METRIC_NO_LAUNCH_INTENT = "no_launch_intent";
+    // Crash and ANR entries name the process in their first lines.
+    private static final int DROPBOX_HEADER_BYTES = 1024;
+    private static final int DROPBOX_CONTENT_BYTES = 4096;
 
     // time waiting for app to launch
-    private int mAppLaunchTimeout = 7000;
-
-    private Context mContext;
-    private ActivityManager mActivityManager;
-    private PackageManager mPackageManager;
-    private Bundle mArgs;
-    private Instrumentation mInstrumentation;
-    private String mLauncherPackageName;
-    private IActivityController mCrashSupressor = new CrashSuppressor();
-    private Map<String, List<String>> mAppErrors = new HashMap<>();
+    private static int sAppLaunchTimeout = 7000;
+    // time waiting for each package given its own launch timeout to launch
+    private static Map<String, Integer> sAppLaunchTimeouts = new HashMap<>();
+    // time to keep watching the app after it launched when the launch wait is event driven
+    private static int sStabilityWindow = 3000;
+    private static boolean sEventDrivenLaunch = false;
+    // interval between samples of the app resource usage during the launch window, 0 to disable
+    private static int sResourceSampleInterval = 0;
+    private static boolean sCollectFrameStats = false;
+
+    private static Context sContext;
+    private static ActivityManager sActivityManager;
+    private static PackageManager sPackageManager;
+    private static Bundle sArgs;
+    private static Instrumentation sInstrumentation;
+    private static String sLauncherPackageName;
+    private static IActivityController sCrashSupressor = new CrashSuppressor();
+    private static Map<String, List<String>> sAppErrors = new HashMap<>();
+    private static volatile LaunchMonitor sLaunchMonitor;
+    // The time of the last dropbox entry checked for each tag during this run.
+    private static Map<String, Long> sDropboxHighWaterMarks = new HashMap<>();
+
+    private final String mPackageName;
 
     static {
         DROPBOX_TAGS.add("SYSTEM_TOMBSTONE");
@@ -91,45 +139,110 @@ public final class AppCompatibility {
         DROPBOX_TAGS.add("data_app_crash");
     }
 
-    @Before
-    public void setUp() throws Exception {
-        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+    public AppCompatibility(String packageName) {
+        mPackageName = packageName;
+    }
+
+    /** Returns the packages to launch, one test case is run for each of them. */
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> getPackagesToLaunch() {
+        Bundle args = InstrumentationRegistry.getArguments();
+        String packages = args.getString(PACKAGES_TO_LAUNCH);
+        if (packages == null) {
+            packages = args.getString(PACKAGE_TO_LAUNCH);
+        }
+        Preconditions.checkStringNotEmpty(
+                packages,
+                String.format(
+                        "Missing argument, use %s or %s to specify the package(s) to launch",
+                        PACKAGE_TO_LAUNCH, PACKAGES_TO_LAUNCH));
+
+        List<Object[]> parameters = new ArrayList<>();
+        for (String packageName : packages.split(PACKAGE_SEPARATOR)) {
+            if (!packageName.trim().isEmpty()) {
+                parameters.add(new Object[] {packageName.trim()});
+            }
+        }
+        return parameters;
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        sInstrumentation = InstrumentationRegistry.getInstrumentation();
 
         // Get permissions for privileged device operations.
-        mInstrumentation.getUiAutomation().adoptShellPermissionIdentity();
+        sInstrumentation.getUiAutomation().adoptShellPermissionIdentity();
 
-        mContext = InstrumentationRegistry.getTargetContext();
-        mActivityManager = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
-        mPackageManager = mContext.getPackageManager();
-        mArgs = InstrumentationRegistry.getArguments();
+        sContext = InstrumentationRegistry.getTargetContext();
+        sActivityManager = (ActivityManager) sContext.getSystemService(Context.ACTIVITY_SERVICE);
+        sPackageManager = sContext.getPackageManager();
+        sArgs = InstrumentationRegistry.getArguments();
 
         // resolve launcher package name
         Intent intent = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_HOME);
         ResolveInfo resolveInfo =
-                mPackageManager.resolveActivity(intent, PackageManager.MATCH_DEFAULT_ONLY);
-        mLauncherPackageName = resolveInfo.activityInfo.packageName;
-        Assert.assertNotNull("failed to resolve package name for launcher", mLauncherPackageName);
-        Log.v(TAG, "Using launcher package name: " + mLauncherPackageName);
+                sPackageManager.resolveActivity(intent, PackageManager.MATCH_DEFAULT_ONLY);
+        sLauncherPackageName = resolveInfo.activityInfo.packageName;
+        Assert.assertNotNull("failed to resolve package name for launcher", sLauncherPackageName);
+        Log.v(TAG, "Using launcher package name: " + sLauncherPackageName);
 
         // Parse optional inputs.
-        String appLaunchTimeoutMsecs = mArgs.getString(APP_LAUNCH_TIMEOUT_MSECS);
+        String appLaunchTimeoutMsecs = sArgs.getString(APP_LAUNCH_TIMEOUT_MSECS);
         if (appLaunchTimeoutMsecs != null) {
-            mAppLaunchTimeout = Integer.parseInt(appLaunchTimeoutMsecs);
+            sAppLaunchTimeout = Integer.parseInt(appLaunchTimeoutMsecs);
         }
-        mInstrumentation.getUiAutomation().setRotation(UiAutomation.ROTATION_FREEZE_0);
+        sAppLaunchTimeouts.clear();
+        String appLaunchTimeoutsMsecs = sArgs.getString(APP_LAUNCH_TIMEOUTS_MSECS);
+        if (appLaunchTimeoutsMsecs != null) {
+            for (String entry : appLaunchTimeoutsMsecs.split(PACKAGE_SEPARATOR)) {
+                int separator = entry.lastIndexOf(TIMEOUT_SEPARATOR);
+                if (separator > 0) {
+                    sAppLaunchTimeouts.put(
+                            entry.substring(0, separator).trim(),
+                            Integer.parseInt(entry.substring(separator + 1).trim()));
+                }
+            }
+        }
+        sEventDrivenLaunch = sArgs.getString(ARG_EVENT_DRIVEN_LAUNCH, "false").equals("true");
+        String stabilityWindowMsecs = sArgs.getString(ARG_STABILITY_WINDOW_MSECS);
+        if (stabilityWindowMsecs != null) {
+            sStabilityWindow = Integer.parseInt(stabilityWindowMsecs);
+        }
+        String resourceSampleIntervalMsecs = sArgs.getString(ARG_RESOURCE_SAMPLE_INTERVAL_MSECS);
+        if (resourceSampleIntervalMsecs != null) {
+            sResourceSampleInterval = Integer.parseInt(resourceSampleIntervalMsecs);
+        }
+        sCollectFrameStats = sArgs.getString(ARG_COLLECT_FRAME_STATS, "false").equals("true");
+        sInstrumentation.getUiAutomation().setRotation(UiAutomation.ROTATION_FREEZE_0);
 
         // set activity controller to suppress crash dialogs and collects them by process name
-        mAppErrors.clear();
         IActivityManager.Stub.asInterface(ServiceManager.checkService(Context.ACTIVITY_SERVICE))
-                .setActivityController(mCrashSupressor, false);
+                .setActivityController(sCrashSupressor, false);
     }
 
-    @After
-    public void tearDown() throws Exception {
+    @AfterClass
+    public static void tearDownClass() throws Exception {
         // unset activity controller
         IActivityManager.Stub.asInterface(ServiceManager.checkService(Context.ACTIVITY_SERVICE))
                 .setActivityController(null, false);
-        mInstrumentation.getUiAutomation().setRotation(UiAutomation.ROTATION_UNFREEZE);
+        sInstrumentation.getUiAutomation().setRotation(UiAutomation.ROTATION_UNFREEZE);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        synchronized (sAppErrors) {
+            sAppErrors.clear();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // When several packages are launched in a single run, stop the current one so that it
+        // does not interfere with the next launch. A single package is left running for the host
+        // to inspect and stop.
+        if (sArgs.getString(PACKAGES_TO_LAUNCH) != null) {
+            sActivityManager.forceStopPackage(mPackageName);
+        }
     }
 
     /**
@@ -139,60 +252,77 @@ public final class AppCompatibility {
      */
     @Test
     public void testAppStability() throws Exception {
-        String packageName = mArgs.getString(PACKAGE_TO_LAUNCH);
-        Preconditions.checkStringNotEmpty(
-                packageName,
-                String.format(
-                        "Missing argument, use %s to specify the package to launch",
-                        PACKAGE_TO_LAUNCH));
+        String packageName = mPackageName;
 
         Log.d(TAG, "Launching app " + packageName);
         Intent intent = getLaunchIntentForPackage(packageName);
         if (intent == null) {
             Log.w(TAG, String.format("Skipping %s; no launch intent", packageName));
+            // Lets the host tell a package that could not be launched from one that passed.
+            Bundle metrics = new Bundle();
+            metrics.putString(METRIC_NO_LAUNCH_INTENT, "true");
+            sInstrumentation.sendStatus(INST_STATUS_IN_PROGRESS, metrics);
             return;
         }
+        ResourceSampler sampler =
+                sResourceSampleInterval > 0
+                        ? new ResourceSampler(
+                                packageName,
+                                sResourceSampleInterval,
+                                sActivityManager,
+                                sInstrumentation.getUiAutomation())
+                        : null;
         long startTime = System.currentTimeMillis();
-        launchActivity(packageName, intent);
-
-        if (mArgs.getString(ARG_DISMISS_DIALOG, "false").equals("true")) {
-            // Attempt to dismiss any dialogs which some apps display to 'gracefully' handle
-            // errors. The dialog prevents the app from crashing thereby hiding issues. The
-            // first key event is to select a default button on the error dialog if any while
-            // the second event pushes the button.
-            IntStream.range(0, 2)
-                    .forEach(i -> mInstrumentation.sendKeyDownUpSync(KeyEvent.KEYCODE_ENTER));
-            // Give the app process enough time to terminate after dismissing the error.
-            Thread.sleep(DELAY_AFTER_KEYEVENT_MILLIS);
-        }
-
-        checkDropbox(startTime, packageName);
-        if (mAppErrors.containsKey(packageName)) {
-            StringBuilder message =
-                    new StringBuilder("Error(s) detected for package: ").append(packageName);
-            List<String> errors = mAppErrors.get(packageName);
-            for (int i = 0; i < MAX_NUM_CRASH_SNIPPET && i < errors.size(); i++) {
-                String err = errors.get(i);
-                message.append("\n\n");
-                // limit the size of each crash snippet
-                message.append(truncate(err, MAX_CRASH_SNIPPET_LINES));
+        LaunchMonitor monitor = launchActivity(packageName, intent, sampler);
+
+        try {
+            if (sArgs.getString(ARG_DISMISS_DIALOG, "false").equals("true")) {
+                // Attempt to dismiss any dialogs which some apps display to 'gracefully' handle
+                // errors. The dialog prevents the app from crashing thereby hiding issues. The
+                // first key event is to select a default button on the error dialog if any while
+                // the second event pushes the button.
+                IntStream.range(0, 2)
+                        .forEach(i -> sInstrumentation.sendKeyDownUpSync(KeyEvent.KEYCODE_ENTER));
+                // Give the app process enough time to terminate after dismissing the error.
+                Thread.sleep(DELAY_AFTER_KEYEVENT_MILLIS);
             }
-            if (errors.size() > MAX_NUM_CRASH_SNIPPET) {
-                message.append(
-                        String.format(
-                                "\n... %d more errors omitted ...",
-                                errors.size() - MAX_NUM_CRASH_SNIPPET));
+
+            checkDropbox(startTime, packageName);
+            List<String> errors;
+            synchronized (sAppErrors) {
+                errors = sAppErrors.get(packageName);
             }
-            Assert.fail(message.toString());
-        }
-        // last check: see if app process is still running
-        Assert.assertTrue(
-                "app package \""
-                        + packageName
-                        + "\" no longer found in running "
-                        + "tasks, but no explicit crashes were detected; check logcat for "
-                        + "details",
-                processStillUp(packageName));
+            if (errors != null) {
+                StringBuilder message =
+                        new StringBuilder("Error(s) detected for package: ").append(packageName);
+                for (int i = 0; i < MAX_NUM_CRASH_SNIPPET && i < errors.size(); i++) {
+                    String err = errors.get(i);
+                    message.append("\n\n");
+                    // limit the size of each crash snippet
+                    message.append(truncate(err, MAX_CRASH_SNIPPET_LINES));
+                }
+                if (errors.size() > MAX_NUM_CRASH_SNIPPET) {
+                    message.append(
+                            String.format(
+                                    "\n... %d more errors omitted ...",
+                                    errors.size() - MAX_NUM_CRASH_SNIPPET));
+                }
+                Assert.fail(message.toString());
+            }
+            // last check: see if the app process died during the launch window or is gone
+            String processError = checkProcessLifecycle(packageName, startTime);
+            if (processError != null) {
+                Assert.fail(processError);
+            }
+        } finally {
+            // The metrics are best-effort and must not hide the failure of the test case.
+            try {
+                reportLaunchMetrics(
+                        packageName, monitor, sampler, System.currentTimeMillis() - startTime);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to report the launch metrics of " + packageName, e);
+            }
+        }
     }
 
     /**
@@ -221,40 +351,75 @@ public final class AppCompatibility {
     /**
      * Check dropbox for entries of interest regarding the specified process
      *
+     * <p>Each tag of interest is queried separately, starting after the last entry seen for that
+     * tag in this run, so that each launch only scans the entries added since the previous one.
+     * Only the header of an entry is read unless it mentions the process.
+     *
      * @param startTime if not 0, only check entries with timestamp later than the start time
      * @param processName the process name to check for
      */
     private void checkDropbox(long startTime, String processName) {
         DropBoxManager dropbox =
-                (DropBoxManager) mContext.getSystemService(Context.DROPBOX_SERVICE);
-        DropBoxManager.Entry entry = null;
-        while (null != (entry = dropbox.getNextEntry(null, startTime))) {
-            try {
-                // only check entries with tag that's of interest
-                String tag = entry.getTag();
-                if (DROPBOX_TAGS.contains(tag)) {
-                    String content = entry.getText(4096);
+                (DropBoxManager) sContext.getSystemService(Context.DROPBOX_SERVICE);
+        for (String tag : DROPBOX_TAGS) {
+            long time = Math.max(startTime, sDropboxHighWaterMarks.getOrDefault(tag, 0L));
+            DropBoxManager.Entry entry = null;
+            while (null != (entry = dropbox.getNextEntry(tag, time))) {
+                try {
+                    time = entry.getTimeMillis();
+                    String content = readDropboxEntry(entry, processName);
                     if (content != null) {
-                        if (content.contains(processName)) {
-                            addProcessError(processName, "dropbox:" + tag, content);
-                        }
+                        addProcessError(processName, "dropbox:" + tag, content);
                     }
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to read dropbox entry " + tag, e);
+                } finally {
+                    entry.close();
                 }
-                startTime = entry.getTimeMillis();
-            } finally {
-                entry.close();
             }
+            sDropboxHighWaterMarks.put(tag, time);
+        }
+    }
+
+    /**
+     * Reads the beginning of a dropbox entry, or returns null without reading further than its
+     * header if the header does not mention the process.
+     */
+    private static String readDropboxEntry(DropBoxManager.Entry entry, String processName)
+            throws IOException {
+        // The stream must be read once as file backed entries close it.
+        try (InputStream in = entry.getInputStream()) {
+            if (in == null) {
+                return null;
+            }
+            byte[] buffer = new byte[DROPBOX_CONTENT_BYTES];
+            int length = readFully(in, buffer, 0, DROPBOX_HEADER_BYTES);
+            if (!new String(buffer, 0, length, StandardCharsets.UTF_8).contains(processName)) {
+                return null;
+            }
+            length += readFully(in, buffer, length, buffer.length - length);
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
         }
     }
 
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length)
+            throws IOException {
+        int total = 0;
+        int read;
+        while (total < length && (read = in.read(buffer, offset + total, length - total)) >= 0) {
+            total += read;
+        }
+        return total;
+    }
+
     private Intent getLaunchIntentForPackage(String packageName) {
-        UiModeManager umm = (UiModeManager) mContext.getSystemService(Context.UI_MODE_SERVICE);
+        UiModeManager umm = (UiModeManager) sContext.getSystemService(Context.UI_MODE_SERVICE);
         boolean isLeanback = umm.getCurrentModeType() == Configuration.UI_MODE_TYPE_TELEVISION;
         Intent intent = null;
         if (isLeanback) {
-            intent = mPackageManager.getLeanbackLaunchIntentForPackage(packageName);
+            intent = sPackageManager.getLeanbackLaunchIntentForPackage(packageName);
         } else {
-            intent = mPackageManager.getLaunchIntentForPackage(packageName);
+            intent = sPackageManager.getLaunchIntentForPackage(packageName);
         }
         return intent;
     }
@@ -263,61 +428,283 @@ public final class AppCompatibility {
      * Launches and activity and queries for errors.
      *
      * @param packageName {@link String} the package name of the application to launch.
-     * @return {@link Collection} of {@link ProcessErrorStateInfo} detected during the app launch.
+     * @param sampler the {@link ResourceSampler} to run while the app launches, or null.
+     * @return the {@link LaunchMonitor} that recorded the launch signals.
      */
-    private void launchActivity(String packageName, Intent intent) {
+    private LaunchMonitor launchActivity(
+            String packageName, Intent intent, ResourceSampler sampler) {
         Log.d(
                 TAG,
                 String.format(
                         "launching package \"%s\" with intent: %s",
                         packageName, intent.toString()));
 
+        LaunchMonitor monitor = new LaunchMonitor(packageName);
+        UiAutomation uiAutomation = sInstrumentation.getUiAutomation();
+        sLaunchMonitor = monitor;
+        uiAutomation.setOnAccessibilityEventListener(
+                event -> {
+                    if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+                        monitor.onWindowShown(event.getPackageName());
+                    }
+                });
+
         // Launch Activity
-        mContext.startActivity(intent);
+        sContext.startActivity(intent);
+        if (sampler != null) {
+            sampler.start();
+        }
 
         try {
-            // artificial delay: in case app crashes after doing some work during launch
-            Thread.sleep(mAppLaunchTimeout);
+            if (sEventDrivenLaunch) {
+                waitForLaunchEvents(packageName, monitor);
+            } else {
+                // artificial delay: in case app crashes after doing some work during launch. A
+                // crash or ANR of the package ends the delay as there is nothing left to wait for.
+                monitor.awaitFatalError(getAppLaunchTimeout(packageName));
+            }
+            if (monitor.hasFatalError()) {
+                Log.d(
+                        TAG,
+                        String.format(
+                                "%s hit a fatal error after %d ms, ending the launch wait",
+                                packageName, monitor.getTimeToFatalErrorMillis()));
+                Thread.sleep(DELAY_AFTER_FATAL_ERROR_MILLIS);
+            }
         } catch (InterruptedException e) {
             // ignore
+        } finally {
+            uiAutomation.setOnAccessibilityEventListener(null);
+            sLaunchMonitor = null;
+            stopSampler(sampler);
+        }
+        return monitor;
+    }
+
+    private static void stopSampler(ResourceSampler sampler) {
+        if (sampler == null) {
+            return;
+        }
+        try {
+            sampler.stop();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while stopping the resource sampler", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reports the launch timings, the resource usage and the frame timings of the current test
+     * case to the host. The values are attached to the metrics of the test case.
+     */
+    private static void reportLaunchMetrics(
+            String packageName,
+            LaunchMonitor monitor,
+            ResourceSampler sampler,
+            long launchDurationMillis) {
+        Bundle metrics = new Bundle();
+        metrics.putString(METRIC_LAUNCH_DURATION, Long.toString(launchDurationMillis));
+        if (monitor.getTimeToWindowShownMillis() >= 0) {
+            metrics.putString(
+                    METRIC_TIME_TO_FIRST_FRAME,
+                    Long.toString(monitor.getTimeToWindowShownMillis()));
+        }
+        if (monitor.getTimeToResumedMillis() >= 0) {
+            metrics.putString(
+                    METRIC_TIME_TO_RESUMED, Long.toString(monitor.getTimeToResumedMillis()));
+        }
+        if (sampler != null) {
+            metrics.putAll(sampler.getMetrics());
+        }
+        if (sCollectFrameStats) {
+            metrics.putAll(FrameStats.collect(sInstrumentation.getUiAutomation(), packageName));
         }
+        sInstrumentation.sendStatus(INST_STATUS_IN_PROGRESS, metrics);
     }
 
-    private void addProcessError(String processName, String errorType, String errorInfo) {
+    /** Returns the time to wait for a package to launch. */
+    private static int getAppLaunchTimeout(String packageName) {
+        return sAppLaunchTimeouts.getOrDefault(packageName, sAppLaunchTimeout);
+    }
+
+    /**
+     * Waits until the app is shown or resumed, then keeps watching it for the stability window.
+     * The wait ends early when the app crashes or stops responding.
+     */
+    private void waitForLaunchEvents(String packageName, LaunchMonitor monitor)
+            throws InterruptedException {
+        int appLaunchTimeout = getAppLaunchTimeout(packageName);
+        if (!monitor.awaitLaunched(appLaunchTimeout)) {
+            Log.w(
+                    TAG,
+                    String.format(
+                            "No launch signal received for %s within %d ms",
+                            packageName, appLaunchTimeout));
+            return;
+        }
+        if (monitor.hasFatalError()) {
+            return;
+        }
+        Log.d(
+                TAG,
+                String.format(
+                        "%s launched (resumed: %d ms, window shown: %d ms), watching for %d ms",
+                        packageName,
+                        monitor.getTimeToResumedMillis(),
+                        monitor.getTimeToWindowShownMillis(),
+                        sStabilityWindow));
+        monitor.awaitFatalError(sStabilityWindow);
+    }
+
+    private static void addProcessError(String processName, String errorType, String errorInfo) {
         // parse out the package name if necessary, for apps with multiple processes
         String pkgName = processName.split(":", 2)[0];
-        List<String> errors;
-        if (mAppErrors.containsKey(pkgName)) {
-            errors = mAppErrors.get(pkgName);
-        } else {
-            errors = new ArrayList<>();
+        synchronized (sAppErrors) {
+            List<String> errors;
+            if (sAppErrors.containsKey(pkgName)) {
+                errors = sAppErrors.get(pkgName);
+            } else {
+                errors = new ArrayList<>();
+            }
+            errors.add(String.format("### Type: %s, Details:\n%s", errorType, errorInfo));
+            sAppErrors.put(pkgName, errors);
         }
-        errors.add(String.format("### Type: %s, Details:\n%s", errorType, errorInfo));
-        mAppErrors.put(pkgName, errors);
     }
 
     /**
-     * Determine if a given package is still running.
+     * Checks the processes of a package that started and died since the launch, as recorded by the
+     * activity manager, and whether the package is still running.
      *
      * @param packageName {@link String} package to look for
-     * @return True if package is running, false otherwise.
+     * @param startTime the wall clock time at which the launch started
+     * @return a description of the failure, or null if the package is running and none of its
+     *     processes died abnormally during the launch window.
      */
-    private boolean processStillUp(String packageName) {
-        @SuppressWarnings("deprecation")
-        List<RunningTaskInfo> infos = mActivityManager.getRunningTasks(100);
-        for (RunningTaskInfo info : infos) {
-            if (info.baseActivity.getPackageName().equals(packageName)) {
+    private String checkProcessLifecycle(String packageName, long startTime) {
+        List<String> abnormalExits = new ArrayList<>();
+        List<String> normalExits = new ArrayList<>();
+        // Historical exit reasons are only recorded since Android R.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            List<ApplicationExitInfo> exits =
+                    sActivityManager.getHistoricalProcessExitReasons(
+                            packageName, 0, MAX_NUM_PROCESS_EXITS);
+            for (ApplicationExitInfo exit : exits) {
+                // Exits are ordered from the most recent one.
+                if (exit.getTimestamp() < startTime) {
+                    break;
+                }
+                String description = describeExit(exit, startTime);
+                if (isAbnormalExit(exit.getReason())) {
+                    abnormalExits.add(description);
+                } else {
+                    normalExits.add(description);
+                }
+            }
+        }
+
+        List<Integer> pids = getRunningPids(packageName);
+        Log.d(
+                TAG,
+                String.format(
+                        "%s is running with pids %s, exits since launch: %s %s",
+                        packageName, pids, abnormalExits, normalExits));
+
+        if (!abnormalExits.isEmpty()) {
+            return String.format(
+                    "Process(es) of package \"%s\" died during the launch window%s:\n%s",
+                    packageName,
+                    pids.isEmpty() ? "" : " and were restarted",
+                    String.join("\n", abnormalExits));
+        }
+        if (pids.isEmpty()) {
+            return String.format(
+                    "app package \"%s\" is no longer running, but no explicit crashes were"
+                            + " detected; %s",
+                    packageName,
+                    normalExits.isEmpty()
+                            ? "check logcat for details"
+                            : "exits since launch:\n" + String.join("\n", normalExits));
+        }
+        return null;
+    }
+
+    private static String describeExit(ApplicationExitInfo exit, long startTime) {
+        return String.format(
+                "%s (pid %d) exited %d ms after launch; reason: %s, status: %d, description: %s",
+                exit.getProcessName(),
+                exit.getPid(),
+                exit.getTimestamp() - startTime,
+                getExitReasonName(exit.getReason()),
+                exit.getStatus(),
+                exit.getDescription());
+    }
+
+    private static boolean isAbnormalExit(int reason) {
+        switch (reason) {
+            case ApplicationExitInfo.REASON_ANR:
+            case ApplicationExitInfo.REASON_CRASH:
+            case ApplicationExitInfo.REASON_CRASH_NATIVE:
+            case ApplicationExitInfo.REASON_DEPENDENCY_DIED:
+            case ApplicationExitInfo.REASON_EXCESSIVE_RESOURCE_USAGE:
+            case ApplicationExitInfo.REASON_INITIALIZATION_FAILURE:
+            case ApplicationExitInfo.REASON_SIGNALED:
                 return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String getExitReasonName(int reason) {
+        switch (reason) {
+            case ApplicationExitInfo.REASON_ANR:
+                return "ANR";
+            case ApplicationExitInfo.REASON_CRASH:
+                return "CRASH";
+            case ApplicationExitInfo.REASON_CRASH_NATIVE:
+                return "CRASH_NATIVE";
+            case ApplicationExitInfo.REASON_DEPENDENCY_DIED:
+                return "DEPENDENCY_DIED";
+            case ApplicationExitInfo.REASON_EXCESSIVE_RESOURCE_USAGE:
+                return "EXCESSIVE_RESOURCE_USAGE";
+            case ApplicationExitInfo.REASON_EXIT_SELF:
+                return "EXIT_SELF";
+            case ApplicationExitInfo.REASON_INITIALIZATION_FAILURE:
+                return "INITIALIZATION_FAILURE";
+            case ApplicationExitInfo.REASON_LOW_MEMORY:
+                return "LOW_MEMORY";
+            case ApplicationExitInfo.REASON_PERMISSION_CHANGE:
+                return "PERMISSION_CHANGE";
+            case ApplicationExitInfo.REASON_SIGNALED:
+                return "SIGNALED";
+            case ApplicationExitInfo.REASON_USER_REQUESTED:
+                return "USER_REQUESTED";
+            case ApplicationExitInfo.REASON_USER_STOPPED:
+                return "USER_STOPPED";
+            default:
+                return "OTHER(" + reason + ")";
+        }
+    }
+
+    /** Returns the pids of the running processes of a package. */
+    private static List<Integer> getRunningPids(String packageName) {
+        List<Integer> pids = new ArrayList<>();
+        List<RunningAppProcessInfo> processes = sActivityManager.getRunningAppProcesses();
+        if (processes == null) {
+            return pids;
+        }
+        for (RunningAppProcessInfo process : processes) {
+            if (packageName.equals(process.processName.split(":", 2)[0])) {
+                pids.add(process.pid);
             }
         }
-        return false;
+        return pids;
     }
 
     /**
      * An {@link IActivityController} that instructs framework to kill processes hitting crashes
      * directly without showing crash dialogs
      */
-    private class CrashSuppressor extends IActivityController.Stub {
+    private static class CrashSuppressor extends IActivityController.Stub {
 
         @Override
         public boolean activityStarting(Intent intent, String pkg) throws RemoteException {
@@ -328,6 +715,10 @@ public final class AppCompatibility {
         @Override
         public boolean activityResuming(String pkg) throws RemoteException {
             Log.d(TAG, "activity resuming: " + pkg);
+            LaunchMonitor monitor = sLaunchMonitor;
+            if (monitor != null) {
+                monitor.onActivityResuming(pkg);
+            }
             return true;
         }
 
@@ -342,6 +733,7 @@ public final class AppCompatibility {
                 throws RemoteException {
             Log.d(TAG, "app crash: " + processName);
             addProcessError(processName, "crash", stackTrace);
+            notifyFatalError(processName);
             // don't show dialog
             return false;
         }
@@ -358,6 +750,7 @@ public final class AppCompatibility {
                 throws RemoteException {
             Log.d(TAG, "app ANR: " + processName);
             addProcessError(processName, "ANR", processStats);
+            notifyFatalError(processName);
             // don't show dialog
             return -1;
         }
@@ -367,5 +760,12 @@ public final class AppCompatibility {
             // ignore
             return -1;
         }
+
+        private void notifyFatalError(String processName) {
+            LaunchMonitor monitor = sLaunchMonitor;
+            if (monitor != null) {
+                monitor.onFatalError(processName);
+            }
+        }
     }
 }
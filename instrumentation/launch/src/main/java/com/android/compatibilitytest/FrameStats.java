@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibilitytest;
+
+import android.app.UiAutomation;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the frame timings rendered by a package from the graphics stats of its processes.
+ *
+ * <p>The stats cover the frames rendered since the processes started, which is the launch window
+ * when the package is launched from a stopped state.
+ */
+final class FrameStats {
+    private static final String TAG = FrameStats.class.getSimpleName();
+
+    static final String METRIC_TOTAL_FRAMES = "total_frames";
+    static final String METRIC_JANKY_FRAMES = "janky_frames";
+    static final String METRIC_JANKY_FRAMES_PERCENT = "janky_frames_percent";
+    static final String METRIC_FRAME_TIME_P50 = "frame_time_p50_ms";
+    static final String METRIC_FRAME_TIME_P90 = "frame_time_p90_ms";
+    static final String METRIC_FRAME_TIME_P99 = "frame_time_p99_ms";
+
+    // Each process of the package starts a section with a line of this form.
+    private static final String PROCESS_HEADER = "** Graphics info for pid";
+    private static final Pattern TOTAL_FRAMES_PATTERN =
+            Pattern.compile("^\\s*Total frames rendered: (\\d+)");
+    private static final Pattern JANKY_FRAMES_PATTERN =
+            Pattern.compile("^\\s*Janky frames: (\\d+) \\(([\\d.]+)%\\)");
+    private static final Pattern PERCENTILE_PATTERN =
+            Pattern.compile("^\\s*(50|90|99)th percentile: (\\d+)ms");
+
+    private FrameStats() {}
+
+    /**
+     * Returns the frame metrics of a package as strings, or an empty bundle if it rendered no
+     * frame or is no longer running.
+     *
+     * <p>The values of the process that rendered the most frames are reported for multi-process
+     * packages.
+     */
+    static Bundle collect(UiAutomation uiAutomation, String packageName) {
+        Bundle best = new Bundle();
+        long bestTotalFrames = 0;
+        Bundle current = null;
+        ParcelFileDescriptor output =
+                uiAutomation.executeShellCommand("dumpsys gfxinfo " + packageName);
+        try (BufferedReader reader =
+                new BufferedReader(
+                        new InputStreamReader(
+                                new ParcelFileDescriptor.AutoCloseInputStream(output),
+                                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(PROCESS_HEADER)) {
+                    current = new Bundle();
+                    continue;
+                }
+                if (current == null) {
+                    continue;
+                }
+                Matcher matcher = TOTAL_FRAMES_PATTERN.matcher(line);
+                if (matcher.find()) {
+                    long totalFrames = Long.parseLong(matcher.group(1));
+                    current.putString(METRIC_TOTAL_FRAMES, matcher.group(1));
+                    if (totalFrames > bestTotalFrames) {
+                        bestTotalFrames = totalFrames;
+                        best = current;
+                    }
+                    continue;
+                }
+                matcher = JANKY_FRAMES_PATTERN.matcher(line);
+                if (matcher.find()) {
+                    current.putString(METRIC_JANKY_FRAMES, matcher.group(1));
+                    current.putString(
+                            METRIC_JANKY_FRAMES_PERCENT,
+                            Long.toString(Math.round(Double.parseDouble(matcher.group(2)))));
+                    continue;
+                }
+                matcher = PERCENTILE_PATTERN.matcher(line);
+                if (matcher.find()) {
+                    current.putString(getPercentileMetric(matcher.group(1)), matcher.group(2));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Failed to read the graphics stats of " + packageName, e);
+        }
+        return best;
+    }
+
+    private static String getPercentileMetric(String percentile) {
+        switch (percentile) {
+            case "50":
+                return METRIC_FRAME_TIME_P50;
+            case "90":
+                return METRIC_FRAME_TIME_P90;
+            default:
+                return METRIC_FRAME_TIME_P99;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibilitytest;
+
+import android.os.SystemClock;
+
+/**
+ * Collects the signals emitted while a single package is being launched and allows the test to
+ * block until one of them arrives.
+ *
+ * <p>All callbacks may be invoked from binder or accessibility threads.
+ */
+final class LaunchMonitor {
+
+    private final String mPackageName;
+    private final long mStartTimeMillis;
+    private long mResumedTimeMillis = -1;
+    private long mWindowShownTimeMillis = -1;
+    private long mFatalErrorTimeMillis = -1;
+
+    LaunchMonitor(String packageName) {
+        mPackageName = packageName;
+        mStartTimeMillis = SystemClock.uptimeMillis();
+    }
+
+    /** Called when an activity of the given package is about to be resumed. */
+    synchronized void onActivityResuming(String packageName) {
+        if (mResumedTimeMillis < 0 && mPackageName.equals(packageName)) {
+            mResumedTimeMillis = SystemClock.uptimeMillis();
+            notifyAll();
+        }
+    }
+
+    /** Called when a window of the given package has been shown on screen. */
+    synchronized void onWindowShown(CharSequence packageName) {
+        if (mWindowShownTimeMillis < 0
+                && packageName != null
+                && mPackageName.contentEquals(packageName)) {
+            mWindowShownTimeMillis = SystemClock.uptimeMillis();
+            notifyAll();
+        }
+    }
+
+    /** Called when the given process hit a crash or an ANR. */
+    synchronized void onFatalError(String processName) {
+        // Multi-process apps report process names of the form <package>:<process>.
+        if (mFatalErrorTimeMillis < 0 && mPackageName.equals(processName.split(":", 2)[0])) {
+            mFatalErrorTimeMillis = SystemClock.uptimeMillis();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the package has been resumed or shown a window, or has hit a fatal error.
+     *
+     * @return true if a launch or fatal error signal was received before the timeout.
+     */
+    synchronized boolean awaitLaunched(long timeoutMillis) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        while (!isLaunched() && !hasFatalError()) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the package hits a fatal error.
+     *
+     * @return true if a fatal error was received before the timeout.
+     */
+    synchronized boolean awaitFatalError(long timeoutMillis) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        while (!hasFatalError()) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    synchronized boolean isLaunched() {
+        return mResumedTimeMillis >= 0 || mWindowShownTimeMillis >= 0;
+    }
+
+    synchronized boolean hasFatalError() {
+        return mFatalErrorTimeMillis >= 0;
+    }
+
+    /** Returns the elapsed time from launch start to the first window being shown, or -1. */
+    synchronized long getTimeToWindowShownMillis() {
+        return mWindowShownTimeMillis < 0 ? -1 : mWindowShownTimeMillis - mStartTimeMillis;
+    }
+
+    /** Returns the elapsed time from launch start to the first crash or ANR, or -1. */
+    synchronized long getTimeToFatalErrorMillis() {
+        return mFatalErrorTimeMillis < 0 ? -1 : mFatalErrorTimeMillis - mStartTimeMillis;
+    }
+
+    /** Returns the elapsed time from launch start to the first activity resume, or -1. */
+    synchronized long getTimeToResumedMillis() {
+        return mResumedTimeMillis < 0 ? -1 : mResumedTimeMillis - mStartTimeMillis;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibilitytest;
+
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
+import android.app.UiAutomation;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Samples the memory, CPU time and thread count of the processes of a package at a fixed interval
+ * on a background thread.
+ *
+ * <p>The values of all the processes of the package are summed. The PSS is queried from the
+ * activity manager, which may return cached values when sampled often. The other values are read
+ * from procfs through a shell command as the processes of other apps are not readable by this one.
+ */
+final class ResourceSampler {
+    private static final String TAG = ResourceSampler.class.getSimpleName();
+    private static final int MAX_SERIES_LENGTH = 100;
+    // Fields of /proc/<pid>/stat, counted from the state field that follows the command name.
+    private static final int STAT_UTIME_INDEX = 11;
+    private static final int STAT_STIME_INDEX = 12;
+    private static final int STAT_NUM_THREADS_INDEX = 17;
+
+    static final String METRIC_PEAK_PSS = "peak_pss_kb";
+    static final String METRIC_PEAK_RSS = "peak_rss_kb";
+    static final String METRIC_PEAK_THREADS = "peak_thread_count";
+    static final String METRIC_CPU_TIME = "cpu_time_ms";
+    static final String SERIES_SUFFIX = "_series";
+    private static final String SERIES_TIME = "sample_time_ms";
+    private static final String SERIES_PSS = "pss_kb";
+    private static final String SERIES_RSS = "rss_kb";
+    private static final String SERIES_CPU_TIME = "cpu_time_ms";
+    private static final String SERIES_THREADS = "thread_count";
+
+    private final String mPackageName;
+    private final long mIntervalMillis;
+    private final ActivityManager mActivityManager;
+    private final UiAutomation mUiAutomation;
+    private final long mClockTicksPerSecond;
+    private final List<long[]> mSamples = new ArrayList<>();
+    private long mStartTimeMillis;
+    private Thread mThread;
+
+    ResourceSampler(
+            String packageName,
+            long intervalMillis,
+            ActivityManager activityManager,
+            UiAutomation uiAutomation) {
+        mPackageName = packageName;
+        mIntervalMillis = intervalMillis;
+        mActivityManager = activityManager;
+        mUiAutomation = uiAutomation;
+        mClockTicksPerSecond = Os.sysconf(OsConstants._SC_CLK_TCK);
+    }
+
+    /** Starts sampling. */
+    void start() {
+        mStartTimeMillis = SystemClock.uptimeMillis();
+        mThread = new Thread(this::sampleUntilInterrupted, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** Stops sampling and waits for the sample being taken, if any. */
+    void stop() throws InterruptedException {
+        if (mThread == null) {
+            return;
+        }
+        mThread.interrupt();
+        mThread.join();
+        mThread = null;
+    }
+
+    /**
+     * Returns the peak values and the time series of the samples taken. Values are reported as
+     * strings, series as comma separated values.
+     */
+    synchronized Bundle getMetrics() {
+        Bundle metrics = new Bundle();
+        if (mSamples.isEmpty()) {
+            return metrics;
+        }
+
+        long[] peaks = new long[5];
+        StringBuilder[] series = new StringBuilder[5];
+        for (int i = 0; i < series.length; i++) {
+            series[i] = new StringBuilder();
+        }
+        for (int s = 0; s < mSamples.size(); s++) {
+            long[] sample = mSamples.get(s);
+            for (int i = 0; i < sample.length; i++) {
+                peaks[i] = Math.max(peaks[i], sample[i]);
+                if (s < MAX_SERIES_LENGTH) {
+                    series[i].append(s == 0 ? "" : ",").append(sample[i]);
+                }
+            }
+        }
+
+        metrics.putString(METRIC_PEAK_PSS, Long.toString(peaks[1]));
+        metrics.putString(METRIC_PEAK_RSS, Long.toString(peaks[2]));
+        // CPU time is cumulative, its last value is the total.
+        metrics.putString(
+                METRIC_CPU_TIME, Long.toString(mSamples.get(mSamples.size() - 1)[3]));
+        metrics.putString(METRIC_PEAK_THREADS, Long.toString(peaks[4]));
+        String[] names = {SERIES_TIME, SERIES_PSS, SERIES_RSS, SERIES_CPU_TIME, SERIES_THREADS};
+        for (int i = 0; i < names.length; i++) {
+            metrics.putString(names[i] + SERIES_SUFFIX, series[i].toString());
+        }
+        return metrics;
+    }
+
+    private void sampleUntilInterrupted() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long[] sample = takeSample();
+            if (sample != null) {
+                synchronized (this) {
+                    mSamples.add(sample);
+                }
+            }
+            try {
+                Thread.sleep(mIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the time of the sample followed by the PSS, RSS, CPU time and thread count of the
+     * package, or null if it is not running.
+     */
+    private long[] takeSample() {
+        long time = SystemClock.uptimeMillis() - mStartTimeMillis;
+        List<Integer> pids = new ArrayList<>();
+        List<RunningAppProcessInfo> processes = mActivityManager.getRunningAppProcesses();
+        if (processes != null) {
+            for (RunningAppProcessInfo process : processes) {
+                if (mPackageName.equals(process.processName.split(":", 2)[0])) {
+                    pids.add(process.pid);
+                }
+            }
+        }
+        if (pids.isEmpty()) {
+            return null;
+        }
+
+        long[] sample = new long[] {time, 0, 0, 0, 0};
+        int[] pidArray = pids.stream().mapToInt(Integer::intValue).toArray();
+        for (Debug.MemoryInfo info : mActivityManager.getProcessMemoryInfo(pidArray)) {
+            sample[1] += info.getTotalPss();
+        }
+
+        StringBuilder command = new StringBuilder("cat");
+        for (int pid : pids) {
+            command.append(" /proc/").append(pid).append("/stat /proc/").append(pid);
+            command.append("/status");
+        }
+        long cpuTicks = 0;
+        try (BufferedReader reader = executeShellCommand(command.toString())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    sample[2] += parseKilobytes(line);
+                } else if (line.contains(") ")) {
+                    String[] fields = line.substring(line.lastIndexOf(") ") + 2).split(" ");
+                    if (fields.length > STAT_NUM_THREADS_INDEX) {
+                        cpuTicks +=
+                                Long.parseLong(fields[STAT_UTIME_INDEX])
+                                        + Long.parseLong(fields[STAT_STIME_INDEX]);
+                        sample[4] += Long.parseLong(fields[STAT_NUM_THREADS_INDEX]);
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Failed to read the process stats of " + mPackageName, e);
+        }
+        sample[3] = mClockTicksPerSecond > 0 ? cpuTicks * 1000 / mClockTicksPerSecond : 0;
+        return sample;
+    }
+
+    private BufferedReader executeShellCommand(String command) {
+        ParcelFileDescriptor output = mUiAutomation.executeShellCommand(command);
+        return new BufferedReader(
+                new InputStreamReader(
+                        new ParcelFileDescriptor.AutoCloseInputStream(output),
+                        StandardCharsets.UTF_8));
+    }
+
+    /** Parses a line of the form {@code VmRSS:    12345 kB}. */
+    private static long parseKilobytes(String line) {
+        String[] fields = line.trim().split("\\s+");
+        return fields.length >= 2 ? Long.parseLong(fields[1]) : 0;
+    }
+}